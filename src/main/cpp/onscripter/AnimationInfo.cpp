@@ -53,6 +53,7 @@ AnimationInfo::AnimationInfo()
     image_surface = NULL;
     alpha_buf = NULL;
     mutex = SDL_CreateMutex();
+    generation = 0;
 
     duration_list = NULL;
     color_list = NULL;
@@ -178,6 +179,7 @@ void AnimationInfo::deleteSurface(bool delete_surface_name)
     SDL_mutexP(mutex);
     if ( image_surface ) SDL_FreeSurface( image_surface );
     image_surface = NULL;
+    generation++;
     SDL_mutexV(mutex);
     if (alpha_buf) delete[] alpha_buf;
     alpha_buf = NULL;
@@ -610,20 +612,28 @@ void AnimationInfo::blendOnSurface2( SDL_Surface *dst_surface, int dst_x, int ds
 // Alpha = 1 - (1-Da)(1-Sa)
 // Color = (DaSaSc + Da(1-Sa)Dc + Sa(1-Da)Sc)/A
 void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_Color &color,
-                               SDL_Rect *clip, bool rotate_flag )
+                               SDL_Rect *clip, bool rotate_flag, SDL_Rect *src_rect )
 {
     if (image_surface == NULL || surface == NULL) return;
+    generation++;
     
+    // src_rect is the glyph in an atlas page
+    int src_w = surface->w, src_h = surface->h;
+    if (src_rect){
+        src_w = src_rect->w;
+        src_h = src_rect->h;
+    }
+
     SDL_Rect dst_rect;
     dst_rect.x = dst_x;
     dst_rect.y = dst_y;
-    dst_rect.w = surface->w;
-    dst_rect.h = surface->h;
+    dst_rect.w = src_w;
+    dst_rect.h = src_h;
     if (rotate_flag){
-        dst_rect.w = surface->h;
-        dst_rect.h = surface->w;
+        dst_rect.w = src_h;
+        dst_rect.h = src_w;
     }
-    SDL_Rect src_rect = {0, 0, 0, 0};
+    SDL_Rect src_offset = {0, 0, 0, 0};
     SDL_Rect clipped_rect;
 
     /* ---------------------------------------- */
@@ -631,8 +641,8 @@ void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_C
     if ( clip ){
         if ( doClipping( &dst_rect, clip, &clipped_rect ) ) return;
 
-        src_rect.x += clipped_rect.x;
-        src_rect.y += clipped_rect.y;
+        src_offset.x += clipped_rect.x;
+        src_offset.y += clipped_rect.y;
     }
     
     /* ---------------------------------------- */
@@ -643,13 +653,16 @@ void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_C
     clip_rect.h = image_surface->h;
     if ( doClipping( &dst_rect, &clip_rect, &clipped_rect ) ) return;
     
-    src_rect.x += clipped_rect.x;
-    src_rect.y += clipped_rect.y;
+    src_offset.x += clipped_rect.x;
+    src_offset.y += clipped_rect.y;
 
     /* ---------------------------------------- */
     
     SDL_LockSurface( surface );
     SDL_LockSurface( image_surface );
+
+    unsigned char *src_pixels = (unsigned char*)surface->pixels;
+    if (src_rect) src_pixels += surface->pitch*src_rect->y + src_rect->x;
     
     SDL_PixelFormat *fmt = image_surface->format;
 
@@ -668,8 +681,8 @@ void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_C
 #endif
 
     if (!rotate_flag){
-        unsigned char *src_buffer = (unsigned char*)surface->pixels + 
-            surface->pitch*src_rect.y + src_rect.x;
+        unsigned char *src_buffer = src_pixels + 
+            surface->pitch*src_offset.y + src_offset.x;
         for (int i=dst_rect.h ; i!=0 ; i--){
             for (int j=dst_rect.w ; j!=0 ; j--){
                 BLEND_TEXT_ALPHA();
@@ -685,8 +698,8 @@ void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_C
     }
     else{
         for (int i=0 ; i<dst_rect.h ; i++){
-            unsigned char *src_buffer = (unsigned char*)surface->pixels + 
-                surface->pitch*(surface->h - src_rect.x - 1) + src_rect.y + i;
+            unsigned char *src_buffer = src_pixels + 
+                surface->pitch*(src_h - src_offset.x - 1) + src_offset.y + i;
             for (int j=dst_rect.w ; j!=0 ; j--){
                 BLEND_TEXT_ALPHA();
                 src_buffer -= surface->pitch;
@@ -790,6 +803,7 @@ void AnimationInfo::allocImage( int w, int h, Uint32 texture_format )
         alpha_buf = new unsigned char[w*h];
 #endif        
     }
+    generation++; // the caller draws the new image
 
     abs_flag = true;
     pos.w = w / num_of_cells;
@@ -839,6 +853,7 @@ void AnimationInfo::copySurface( SDL_Surface *surface, SDL_Rect *src_rect, SDL_R
     for (i=0 ; i<_src_rect.h ; i++)
         memset( alpha_buf + image_surface->w * (_dst_rect.y+i) + _dst_rect.x, 0xff, _src_rect.w );
 #endif
+    generation++;
 
     SDL_UnlockSurface( image_surface );
     SDL_UnlockSurface( surface );
@@ -869,6 +884,7 @@ void AnimationInfo::fill( Uint8 r, Uint8 g, Uint8 b, Uint8 a )
 #endif
         }
     }
+    generation++;
     SDL_UnlockSurface( image_surface );
 }
 
@@ -1100,6 +1116,7 @@ void AnimationInfo::convertFromYUV(SDL_Overlay *src)
                 AMASK;
         }
     }
+    generation++;
     SDL_UnlockSurface(ls);
 
     SDL_mutexV(mutex);
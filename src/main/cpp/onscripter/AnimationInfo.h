@@ -88,6 +88,7 @@ public:
     unsigned char *alpha_buf;
     Uint32 texture_format;
     SDL_mutex *mutex;
+    unsigned int generation; // incremented whenever the pixels of image_surface change
         
     /* Variables for extended sprite (lsp2, drawsp2, etc.) */
     int scale_x, scale_y, rot;
@@ -142,7 +143,7 @@ public:
     void blendOnSurface2( SDL_Surface *dst_surface, int dst_x, int dst_y,
                           SDL_Rect &clip, int alpha=255 );
     void blendText( SDL_Surface *surface, int dst_x, int dst_y, 
-                    SDL_Color &color, SDL_Rect *clip, bool rotate_flag );
+                    SDL_Color &color, SDL_Rect *clip, bool rotate_flag, SDL_Rect *src_rect=NULL );
     void calcAffineMatrix();
     
     static SDL_Surface *allocSurface( int w, int h, Uint32 texture_format );
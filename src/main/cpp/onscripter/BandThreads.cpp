@@ -0,0 +1,141 @@
+/* -*- C++ -*-
+ *
+ *  BandThreads.cpp - Worker threads processing bands of rows in parallel
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "BandThreads.h"
+#include "ONScripter_log.h"
+#include <stdio.h>
+
+BandThreads::BandThreads()
+{
+    for ( int i=0 ; i<MAX_THREADS ; i++ ){
+        workers[i].owner = this;
+        workers[i].index = i;
+        workers[i].thread = NULL;
+    }
+    num_of_threads = 1;
+
+    func = NULL;
+    data = NULL;
+    num_of_rows = num_of_bands = num_of_done = 0;
+    generation = 0;
+    quit_flag = false;
+    mutex = SDL_CreateMutex();
+    start_cond = SDL_CreateCond();
+    done_cond = SDL_CreateCond();
+}
+
+BandThreads::~BandThreads()
+{
+    stop();
+    if (done_cond) SDL_DestroyCond( done_cond );
+    if (start_cond) SDL_DestroyCond( start_cond );
+    if (mutex) SDL_DestroyMutex( mutex );
+}
+
+void BandThreads::start( int num_of_threads )
+{
+    stop();
+    if ( mutex == NULL || start_cond == NULL || done_cond == NULL ) return;
+    if ( num_of_threads > MAX_THREADS ) num_of_threads = MAX_THREADS;
+    generation = 0;
+
+    // workers[0] stands for the calling thread
+    for ( int i=1 ; i<num_of_threads ; i++ ){
+        workers[i].thread = SDL_CreateThread( workerMain, &workers[i] );
+        if ( workers[i].thread == NULL ){
+            logw( stderr, "BandThreads: can't create thread, %s\n", SDL_GetError() );
+            break;
+        }
+        this->num_of_threads++;
+    }
+}
+
+void BandThreads::stop()
+{
+    SDL_mutexP( mutex );
+    quit_flag = true;
+    SDL_CondBroadcast( start_cond );
+    SDL_mutexV( mutex );
+
+    for ( int i=1 ; i<num_of_threads ; i++ ){
+        SDL_WaitThread( workers[i].thread, NULL );
+        workers[i].thread = NULL;
+    }
+    num_of_threads = 1;
+    quit_flag = false;
+}
+
+void BandThreads::run( BandFunc func, void *data, int num_of_rows )
+{
+    int n = num_of_threads;
+    if ( n > num_of_rows ) n = num_of_rows;
+    if ( n <= 1 ){
+        func( data, 0, num_of_rows );
+        return;
+    }
+
+    SDL_mutexP( mutex );
+    this->func = func;
+    this->data = data;
+    this->num_of_rows = num_of_rows;
+    num_of_bands = n;
+    num_of_done = 0;
+    generation++;
+    SDL_CondBroadcast( start_cond );
+    SDL_mutexV( mutex );
+
+    func( data, 0, num_of_rows / n );
+
+    SDL_mutexP( mutex );
+    while ( num_of_done < n-1 ) SDL_CondWait( done_cond, mutex );
+    SDL_mutexV( mutex );
+}
+
+int BandThreads::workerMain( void *data )
+{
+    Worker *worker = (Worker*)data;
+    worker->owner->runWorker( worker );
+
+    return 0;
+}
+
+void BandThreads::runWorker( Worker *worker )
+{
+    unsigned int last_generation = 0;
+
+    SDL_mutexP( mutex );
+    while (1){
+        while ( generation == last_generation && !quit_flag )
+            SDL_CondWait( start_cond, mutex );
+        if ( quit_flag ) break;
+        last_generation = generation;
+        if ( worker->index >= num_of_bands ) continue;
+
+        BandFunc func = this->func;
+        void *data = this->data;
+        int n = num_of_bands, rows = num_of_rows;
+        SDL_mutexV( mutex );
+
+        func( data, rows * worker->index / n, rows * (worker->index+1) / n );
+
+        SDL_mutexP( mutex );
+        if ( ++num_of_done == n-1 ) SDL_CondSignal( done_cond );
+    }
+    SDL_mutexV( mutex );
+}
@@ -0,0 +1,68 @@
+/* -*- C++ -*-
+ *
+ *  BandThreads.h - Worker threads processing bands of rows in parallel
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __BAND_THREADS_H__
+#define __BAND_THREADS_H__
+
+#include <SDL.h>
+#include <SDL_thread.h>
+
+// Splits the rows of a per frame job into bands, one for each thread. The threads are
+// kept between the calls; the calling thread works on the first band and returns when
+// all bands are done, so the function never runs after run() returns.
+class BandThreads
+{
+public:
+    enum { MAX_THREADS = 4 };
+
+    typedef void (*BandFunc)( void *data, int row_start, int row_end );
+
+    BandThreads();
+    ~BandThreads();
+
+    void start( int num_of_threads );
+    void stop();
+    int getNumThreads(){ return num_of_threads; };
+
+    void run( BandFunc func, void *data, int num_of_rows );
+
+private:
+    struct Worker{
+        BandThreads *owner;
+        int index;
+        SDL_Thread *thread;
+    } workers[MAX_THREADS];
+    int num_of_threads; // including the calling thread
+
+    BandFunc func;
+    void *data;
+    int num_of_rows;
+    int num_of_bands;
+    int num_of_done;
+    unsigned int generation;
+    bool quit_flag;
+    SDL_mutex *mutex;
+    SDL_cond *start_cond;
+    SDL_cond *done_cond;
+
+    static int workerMain( void *data );
+    void runWorker( Worker *worker );
+};
+
+#endif // __BAND_THREADS_H__
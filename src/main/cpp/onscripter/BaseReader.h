@@ -40,6 +40,11 @@ extern "C" int stat_ons(const char *str, struct stat * buf);
 #define SEEK_END 2
 #endif
 
+#if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
+#include <sys/mman.h>
+#define MMAP_ARCHIVE_SUPPORTED
+#endif
+
 #if defined(LINUX) || defined(MACOSX)
 #define DELIMITER '/'
 #elif defined(WIN32)
@@ -88,6 +93,10 @@ struct BaseReader
         FileInfo *fi_list;
         unsigned int num_of_files;
         unsigned long base_offset;
+        unsigned char *mapped_buffer; // whole archive when it is memory mapped
+        size_t mapped_length;
+        unsigned int *index_table; // hash of the file names to fi_list index + 1, 0 is empty
+        unsigned int index_table_size;
 
         ArchiveInfo(){
             next = NULL;
@@ -96,11 +105,19 @@ struct BaseReader
             file_name = NULL;
             fi_list = NULL;
             num_of_files = 0;
+            mapped_buffer = NULL;
+            mapped_length = 0;
+            index_table = NULL;
+            index_table_size = 0;
         }
         ~ArchiveInfo(){
+#if defined(MMAP_ARCHIVE_SUPPORTED)
+            if (mapped_buffer) munmap( mapped_buffer, mapped_length );
+#endif
             if (file_handle) fclose( file_handle );
             if (file_name)   delete[] file_name;
             if (fi_list)     delete[] fi_list;
+            if (index_table) delete[] index_table;
         }
     };
 
@@ -116,6 +133,14 @@ struct BaseReader
     virtual FileInfo getFileByIndex( unsigned int index ) = 0;
     virtual size_t getFileLength( const char *file_name ) = 0;
     virtual size_t getFile( const char *file_name, unsigned char *buffer, int *location=NULL ) = 0;
+    // Returns the stored data of a file inside a memory mapped archive without copying it,
+    // NULL when the file has to be read with getFile (loose, compressed or not mapped)
+    virtual const unsigned char *getFileView( const char *file_name, size_t *length, int *location=NULL ) = 0;
+    // Called when file_name is created or overwritten so the reader forgets what it knows about it,
+    // NULL when it is not known which files were written
+    virtual void invalidateFileCache( const char *file_name ) = 0;
+    // Opens the same archives again, the new reader can be used from another thread
+    virtual BaseReader *clone() = 0;
 };
 
 #endif // __BASE_READER_H__
@@ -0,0 +1,154 @@
+/* -*- C++ -*-
+ *
+ *  CommandHash.cpp - Perfect hash of the command names
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include "CommandHash.h"
+
+#define NAMES_PER_BUCKET 4
+#define MAX_SEED 0x10000
+
+CommandHash::CommandHash()
+{
+    names = NULL;
+    num_of_names = 0;
+    num_of_buckets = num_of_slots = 0;
+    seeds = NULL;
+    slots = NULL;
+}
+
+CommandHash::~CommandHash()
+{
+    clear();
+}
+
+void CommandHash::clear()
+{
+    if ( names ) delete[] names;
+    if ( seeds ) delete[] seeds;
+    if ( slots ) delete[] slots;
+    names = NULL;
+    seeds = NULL;
+    slots = NULL;
+    num_of_names = num_of_buckets = num_of_slots = 0;
+}
+
+void CommandHash::build( const char **names, int num )
+{
+    clear();
+    if ( num <= 0 ) return;
+
+    this->names = new const char*[num];
+    memcpy( this->names, names, sizeof(const char*)*num );
+    num_of_names = num;
+
+    num_of_buckets = 1;
+    while ( num_of_buckets * NAMES_PER_BUCKET < num ) num_of_buckets <<= 1;
+    num_of_slots = 1;
+    while ( num_of_slots < num*2 ) num_of_slots <<= 1;
+    seeds = new unsigned int[num_of_buckets];
+    slots = new int[num_of_slots];
+    memset( slots, 0, sizeof(int)*num_of_slots );
+
+    // Chain the names of each bucket, leaving out the second of the same name
+    unsigned int *hashes = new unsigned int[num];
+    int *bucket_head = new int[num_of_buckets];
+    int *bucket_size = new int[num_of_buckets];
+    int *next = new int[num];
+    int *placed = new int[num];
+    int i, j;
+    for ( i=0 ; i<num_of_buckets ; i++ ){
+        bucket_head[i] = -1;
+        bucket_size[i] = 0;
+        seeds[i] = 0;
+    }
+    for ( i=num-1 ; i>=0 ; i-- ){
+        hashes[i] = hashString( names[i] );
+        int b = hashes[i] & (num_of_buckets-1);
+        for ( j=bucket_head[b] ; j>=0 ; j=next[j] )
+            if ( !strcmp( names[j], names[i] ) ) break;
+        if ( j >= 0 ) this->names[j] = NULL; // names[i] comes first
+        next[i] = bucket_head[b];
+        bucket_head[b] = i;
+        bucket_size[b]++;
+    }
+
+    if ( !place( hashes, bucket_head, bucket_size, next, placed ) ){
+        delete[] seeds;
+        delete[] slots;
+        seeds = NULL;
+        slots = NULL;
+        num_of_buckets = num_of_slots = 0;
+    }
+
+    delete[] hashes;
+    delete[] bucket_head;
+    delete[] bucket_size;
+    delete[] next;
+    delete[] placed;
+}
+
+bool CommandHash::place( unsigned int *hashes, int *bucket_head, int *bucket_size, int *next, int *placed )
+{
+    int j, k, num_placed;
+
+    // The largest buckets first, while most slots are still free
+    for ( int size=num_of_names ; size>0 ; size-- ){
+        for ( int b=0 ; b<num_of_buckets ; b++ ){
+            if ( bucket_size[b] != size ) continue;
+
+            unsigned int seed;
+            for ( seed=0 ; seed<MAX_SEED ; seed++ ){
+                num_placed = 0;
+                for ( j=bucket_head[b] ; j>=0 ; j=next[j] ){
+                    if ( names[j] == NULL ) continue;
+                    int s = getSlot( hashes[j], seed );
+                    if ( slots[s] ) break;
+                    for ( k=0 ; k<num_placed ; k++ )
+                        if ( placed[k] == s ) break;
+                    if ( k < num_placed ) break;
+                    placed[num_placed++] = s;
+                }
+                if ( j < 0 ) break;
+            }
+            if ( seed == MAX_SEED ) return false;
+
+            seeds[b] = seed;
+            num_placed = 0;
+            for ( j=bucket_head[b] ; j>=0 ; j=next[j] )
+                if ( names[j] ) slots[ placed[num_placed++] ] = j+1;
+        }
+    }
+
+    return true;
+}
+
+int CommandHash::find( const char *name, unsigned int hash )
+{
+    if ( num_of_slots == 0 ){
+        for ( int i=0 ; i<num_of_names ; i++ )
+            if ( names[i] && !strcmp( names[i], name ) ) return i;
+        return -1;
+    }
+
+    int i = slots[ getSlot( hash, seeds[ hash & (num_of_buckets-1) ] ) ] - 1;
+    if ( i >= 0 && !strcmp( names[i], name ) ) return i;
+
+    return -1;
+}
@@ -0,0 +1,62 @@
+/* -*- C++ -*-
+ *
+ *  CommandHash.h - Perfect hash of the command names
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __COMMAND_HASH_H__
+#define __COMMAND_HASH_H__
+
+#include "HashTable.h"
+
+// Built once from a fixed list of names. A name is hashed into a bucket, and the
+// seed found for that bucket moves each of its names to a slot of its own, so a
+// lookup costs one hash and one strcmp. When a name is listed twice, the first
+// one is found, as with a linear search, which is also what is left when no
+// seed can be found (two names of the same hash).
+class CommandHash
+{
+public:
+    CommandHash();
+    ~CommandHash();
+
+    void build( const char **names, int num );
+    int find( const char *name ){ return find( name, hashString( name ) ); };
+    int find( const char *name, unsigned int hash );
+
+private:
+    const char **names;
+    int num_of_names;
+    int num_of_buckets; // power of 2
+    int num_of_slots;   // power of 2
+    unsigned int *seeds;
+    int *slots;         // index of the name + 1, or 0
+
+    void clear();
+    bool place( unsigned int *hashes, int *bucket_head, int *bucket_size, int *next, int *placed );
+    inline int getSlot( unsigned int hash, unsigned int seed ){
+        // The names of a bucket share the low bits, so every bit has to be mixed in
+        hash ^= seed * 0x9e3779b9u;
+        hash ^= hash >> 16;
+        hash *= 0x85ebca6bu;
+        hash ^= hash >> 13;
+        hash *= 0xc2b2ae35u;
+        hash ^= hash >> 16;
+        return hash & (num_of_slots-1);
+    };
+};
+
+#endif // __COMMAND_HASH_H__
@@ -22,10 +22,14 @@
  */
 
 #include "DirectReader.h"
+#include "HashTable.h"
 #include <bzlib.h>
 #if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
 #include <dirent.h>
 #endif
+#if defined(MMAP_ARCHIVE_SUPPORTED)
+#include <sys/stat.h>
+#endif
 
 #define IS_TWO_BYTE(x) \
         ( ((x) & 0xe0) == 0xe0 || ((x) & 0xe0) == 0x80 )
@@ -48,15 +52,22 @@ extern unsigned short convUTF8ToUTF16( const char **src );
 #define N (1 << EI)  /* buffer size */
 #define F ((1 << EJ) + P)  /* lookahead buffer size */
 
-DirectReader::DirectReader( const char *path, const unsigned char *key_table, bool try_parent )
+DirectReader::DirectReader( const char *path, const unsigned char *key_table, bool try_parent, bool use_mmap )
 {
     file_full_path = NULL;
     file_sub_path = NULL;
     file_path_len = 0;
     try_parent_flag = try_parent;
+    mmap_flag = use_mmap;
 
     capital_name = new char[MAX_FILE_NAME_LENGTH*2+1];
     capital_name_tmp = new char[MAX_FILE_NAME_LENGTH*3+1];
+    missing_name = new char[MAX_FILE_NAME_LENGTH*3+1];
+
+    missing_file_table = NULL;
+    missing_file_table_size = 0;
+    num_of_missing_files = 0;
+    directory_cache = NULL;
 
     if ( path ){
         archive_path = new char[ strlen(path) + 1 ];
@@ -95,6 +106,7 @@ DirectReader::~DirectReader()
 
     delete[] capital_name;
     delete[] capital_name_tmp;
+    delete[] missing_name;
     delete[] read_buf;
     delete[] decomp_buffer;
     
@@ -104,11 +116,15 @@ DirectReader::~DirectReader()
         last_registered_compression_type = last_registered_compression_type->next;
         delete cur;
     }
+
+    clearMissingFiles();
+    if (missing_file_table) delete[] missing_file_table;
+    clearDirectoryCache();
 }
 
 FILE *DirectReader::fopen(const char *path, const char *mode)
 {
-    size_t len = strlen(archive_path) + strlen(path) + 1;
+    size_t len = strlen(archive_path) + strlen(path) + 2;
     if (file_path_len < len){
         file_path_len = len;
         if (file_full_path) delete[] file_full_path;
@@ -118,20 +134,20 @@ FILE *DirectReader::fopen(const char *path, const char *mode)
     }
     sprintf( file_full_path, "%s%s", archive_path, path );
 
+    // Creating a file changes what the cached folders contain
+    if ( strchr( mode, 'w' ) || strchr( mode, 'a' ) ) clearDirectoryCache();
+
     FILE *fp = ::fopen( file_full_path, mode );
     if (fp) return fp;
 
 #if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
     char *cur_p = NULL;
-    DIR *dp = NULL;
     len = strlen(archive_path);
-    if (len > 0) dp = opendir(archive_path);
-    else         dp = opendir(".");
+    if (len > 0) strcpy(file_sub_path, archive_path);
+    else         strcpy(file_sub_path, ".");
     cur_p = file_full_path+len;
 
     while(1){
-        if (dp == NULL) return NULL;
-
         char *delim_p = NULL;
         while(1){
             delim_p = strchr( cur_p, (char)DELIMITER );
@@ -141,24 +157,15 @@ FILE *DirectReader::fopen(const char *path, const char *mode)
         
         if (delim_p) len = delim_p - cur_p;
         else         len = strlen(cur_p);
-        memcpy(file_sub_path, cur_p, len);
-        file_sub_path[len] = '\0';
-        
-        struct dirent *entp;
-        while ( (entp = readdir(dp)) != NULL ){
-            if ( !strcasecmp( file_sub_path, entp->d_name ) ){
-                memcpy(cur_p, entp->d_name, len);
-                break;
-            }
-        }
-        closedir( dp );
 
-        if (entp == NULL) return NULL;
+        const char *name = findDirectoryEntry( file_sub_path, cur_p, len );
+        if (name == NULL) return NULL;
+        memcpy(cur_p, name, len);
+
         if (delim_p == NULL) break;
 
         memcpy(file_sub_path, file_full_path, delim_p-file_full_path);
         file_sub_path[delim_p-file_full_path]='\0';
-        dp = opendir(file_sub_path);
 
         cur_p = delim_p+1;
     }
@@ -315,6 +322,16 @@ FILE *DirectReader::getFileHandle( const char *file_name, int &compression_type,
 #endif
 
     *length = 0;
+
+    // Names are matched without case like fopen() does when the exact name is not found
+    for ( i=0 ; capital_name[i] ; i++ ){
+        missing_name[i] = capital_name[i];
+        if ( 'a' <= missing_name[i] && missing_name[i] <= 'z' ) missing_name[i] += 'A' - 'a';
+    }
+    missing_name[i] = '\0';
+    unsigned int hash = hashString( missing_name );
+    if ( isMissingFile( missing_name, hash ) ) return NULL;
+
     if ( (fp = fopen( capital_name, "rb" )) == NULL && try_parent_flag ) {
         // Read the parent folder for file if does not exist
         strncpy(capital_name_tmp, "../", 3);
@@ -322,6 +339,7 @@ FILE *DirectReader::getFileHandle( const char *file_name, int &compression_type,
         capital_name_tmp[ len + 3 ] = '\0';
         fp = fopen( capital_name_tmp, "rb" );
     }
+    if ( fp == NULL ) addMissingFile( missing_name, hash );
     if ( fp != NULL && len >= 3 ){
         compression_type = getRegisteredCompressionType( capital_name );
         if ( compression_type == NBZ_COMPRESSION || compression_type == SPB_COMPRESSION ){
@@ -373,6 +391,218 @@ size_t DirectReader::getFile( const char *file_name, unsigned char *buffer, int
     return total;
 }
 
+const unsigned char *DirectReader::getFileView( const char *file_name, size_t *length, int *location )
+{
+    // Independent files are not mapped, they are read by getFile
+    return NULL;
+}
+
+bool DirectReader::hasIndependentFile( const char *file_name )
+{
+    // The same lookup as getFile(), through fopen() and its folder cache, so the archive
+    // readers never map an entry that an independent file overrides
+    int compression_type;
+    size_t len;
+    FILE *fp = getFileHandle( file_name, compression_type, &len );
+    if ( fp ) fclose( fp );
+
+    return len > 0;
+}
+
+BaseReader *DirectReader::clone()
+{
+    DirectReader *reader = new DirectReader( archive_path, key_table_flag?key_table:NULL, try_parent_flag, mmap_flag );
+    copyRegisteredCompressionType( reader );
+
+    return reader;
+}
+
+void DirectReader::copyRegisteredCompressionType( DirectReader *reader )
+{
+    RegisteredCompressionType *reg = reader->root_registered_compression_type.next;
+    while ( reg ){
+        RegisteredCompressionType *cur = reg;
+        reg = reg->next;
+        delete cur;
+    }
+    reader->root_registered_compression_type.next = NULL;
+    reader->last_registered_compression_type = &reader->root_registered_compression_type;
+
+    reg = root_registered_compression_type.next;
+    while ( reg ){
+        reader->registerCompressionType( reg->ext, reg->type );
+        reg = reg->next;
+    }
+}
+
+void DirectReader::invalidateFileCache( const char *file_name )
+{
+    // Writes are rare (saves and screenshots), simply forget every missing file and folder
+    clearMissingFiles();
+    clearDirectoryCache();
+}
+
+static unsigned int getFoldedNameHash( const char *name, size_t len )
+{
+    // Hash of the upper-cased name
+    unsigned int hash = HASH_INITIAL;
+    for ( size_t i=0 ; i<len ; i++ ){
+        unsigned char ch = name[i];
+        if ( 'a' <= ch && ch <= 'z' ) ch += 'A' - 'a';
+        hash = hashByte( hash, ch );
+    }
+    return hash;
+}
+
+static unsigned int getDirectoryEntryHash( void *data, unsigned int index )
+{
+    const char *name = ((char**)data)[index];
+    return getFoldedNameHash( name, strlen(name) );
+}
+
+static bool isSameDirectoryEntry( void *data, unsigned int index1, unsigned int index2 )
+{
+    char **names = (char**)data;
+    return !strcasecmp( names[index1], names[index2] );
+}
+
+DirectReader::DirectoryCache *DirectReader::getDirectoryCache( const char *path )
+{
+    // Only a handful of folders are ever scanned, a list is enough to find them
+    DirectoryCache *dc = directory_cache;
+    while ( dc ){
+        if ( !strcmp( dc->path, path ) ) return dc;
+        dc = dc->next;
+    }
+
+    dc = new DirectoryCache( path );
+    dc->next = directory_cache;
+    directory_cache = dc;
+
+#if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
+    DIR *dp = opendir( path );
+    if ( dp == NULL ) return dc;
+
+    unsigned int i, max_names = 0;
+    struct dirent *entp;
+    while ( (entp = readdir(dp)) != NULL ){
+        if ( dc->num_of_names == max_names ){
+            max_names = max_names ? max_names*2 : 64;
+            char **names = new char*[max_names];
+            for ( i=0 ; i<dc->num_of_names ; i++ ) names[i] = dc->names[i];
+            if ( dc->names ) delete[] dc->names;
+            dc->names = names;
+        }
+        dc->names[ dc->num_of_names ] = new char[ strlen(entp->d_name)+1 ];
+        strcpy( dc->names[ dc->num_of_names++ ], entp->d_name );
+    }
+    closedir( dp );
+
+    // The first matching entry wins, same as scanning the folder
+    dc->index_table = buildHashTable( dc->num_of_names, getDirectoryEntryHash, isSameDirectoryEntry,
+                                      dc->names, &dc->index_table_size );
+#endif
+
+    return dc;
+}
+
+const char *DirectReader::findDirectoryEntry( const char *path, const char *name, size_t len )
+{
+    DirectoryCache *dc = getDirectoryCache( path );
+    if ( dc->index_table == NULL ) return NULL;
+
+    unsigned int mask = dc->index_table_size - 1;
+    unsigned int j = getFoldedNameHash( name, len ) & mask;
+    while ( dc->index_table[j] ){
+        const char *entry = dc->names[ dc->index_table[j]-1 ];
+        if ( strlen( entry ) == len && !strncasecmp( entry, name, len ) ) return entry;
+        j = (j+1) & mask;
+    }
+    return NULL;
+}
+
+void DirectReader::clearDirectoryCache()
+{
+    while ( directory_cache ){
+        DirectoryCache *dc = directory_cache;
+        directory_cache = dc->next;
+        delete dc;
+    }
+}
+
+bool DirectReader::isMissingFile( const char *name, unsigned int hash )
+{
+    if ( missing_file_table == NULL ) return false;
+
+    MissingFile *mf = missing_file_table[ hash & (missing_file_table_size-1) ];
+    while ( mf ){
+        if ( mf->hash == hash && !strcmp( mf->name, name ) ) return true;
+        mf = mf->next;
+    }
+    return false;
+}
+
+void DirectReader::addMissingFile( const char *name, unsigned int hash )
+{
+    unsigned int i;
+
+    if ( num_of_missing_files >= missing_file_table_size ){
+        // Double the table to keep the chains short
+        unsigned int size = missing_file_table_size ? missing_file_table_size*2 : 64;
+        MissingFile **table = new MissingFile*[size];
+        for ( i=0 ; i<size ; i++ ) table[i] = NULL;
+        for ( i=0 ; i<missing_file_table_size ; i++ ){
+            MissingFile *mf = missing_file_table[i];
+            while ( mf ){
+                MissingFile *next = mf->next;
+                mf->next = table[ mf->hash & (size-1) ];
+                table[ mf->hash & (size-1) ] = mf;
+                mf = next;
+            }
+        }
+        if ( missing_file_table ) delete[] missing_file_table;
+        missing_file_table = table;
+        missing_file_table_size = size;
+    }
+
+    MissingFile *mf = new MissingFile( name, hash );
+    mf->next = missing_file_table[ hash & (missing_file_table_size-1) ];
+    missing_file_table[ hash & (missing_file_table_size-1) ] = mf;
+    num_of_missing_files++;
+}
+
+void DirectReader::clearMissingFiles()
+{
+    for ( unsigned int i=0 ; i<missing_file_table_size ; i++ ){
+        while ( missing_file_table[i] ){
+            MissingFile *mf = missing_file_table[i];
+            missing_file_table[i] = mf->next;
+            delete mf;
+        }
+    }
+    num_of_missing_files = 0;
+}
+
+void DirectReader::mapArchive( ArchiveInfo *ai )
+{
+#if defined(MMAP_ARCHIVE_SUPPORTED)
+    if ( !mmap_flag || !ai->file_handle ) return;
+
+    // The descriptor may come from Java (--use-java-io), mapping it works the same way
+    int fd = fileno( ai->file_handle );
+    struct stat buf;
+    if ( fstat( fd, &buf ) != 0 || buf.st_size <= 0 ) return;
+
+    void *addr = mmap( NULL, buf.st_size, PROT_READ, MAP_SHARED, fd, 0 );
+    if ( addr == MAP_FAILED ){
+        logw( stderr, "can't map archive %s, reading it from the file instead.\n", ai->file_name );
+        return;
+    }
+    ai->mapped_buffer = (unsigned char*)addr;
+    ai->mapped_length = buf.st_size;
+#endif
+}
+
 void DirectReader::convertFromSJISToEUC( char *buf )
 {
     int i = 0;
@@ -32,7 +32,7 @@
 class DirectReader : public BaseReader
 {
 public:
-    DirectReader( const char *path=NULL, const unsigned char *key_table=NULL, bool try_parent=false );
+    DirectReader( const char *path=NULL, const unsigned char *key_table=NULL, bool try_parent=false, bool use_mmap=false );
     ~DirectReader();
 
     int open( const char *name=NULL );
@@ -45,6 +45,9 @@ public:
     struct FileInfo getFileByIndex( unsigned int index );
     size_t getFileLength( const char *file_name );
     size_t getFile( const char *file_name, unsigned char *buffer, int *location=NULL );
+    const unsigned char *getFileView( const char *file_name, size_t *length, int *location=NULL );
+    void invalidateFileCache( const char *file_name );
+    BaseReader *clone();
 
     static void convertFromSJISToEUC( char *buf );
     static void convertFromSJISToUTF8( char *dst_buf, const char *src_buf );
@@ -56,6 +59,7 @@ protected:
     size_t file_path_len;
     char *capital_name;
     char *capital_name_tmp;
+    char *missing_name;
 
     char *archive_path;
     unsigned char key_table[256];
@@ -66,6 +70,7 @@ protected:
     unsigned char *decomp_buffer;
     size_t decomp_buffer_len;
     bool try_parent_flag;
+    bool mmap_flag;
     
     struct RegisteredCompressionType{
         RegisteredCompressionType *next;
@@ -90,6 +95,50 @@ protected:
         };
     } root_registered_compression_type, *last_registered_compression_type;
 
+    // Independent files that were looked up and do not exist, most lookups are for files
+    // inside the archives so this saves opening the file system for each of them
+    struct MissingFile{
+        MissingFile *next;
+        unsigned int hash;
+        char *name;
+        MissingFile( const char *name, unsigned int hash ){
+            this->name = new char[ strlen(name)+1 ];
+            strcpy( this->name, name );
+            this->hash = hash;
+            this->next = NULL;
+        };
+        ~MissingFile(){
+            if (name) delete[] name;
+        };
+    } **missing_file_table;
+    unsigned int missing_file_table_size;
+    unsigned int num_of_missing_files;
+
+    // Entries of the folders already scanned by fopen(), looked up without case
+    struct DirectoryCache{
+        DirectoryCache *next;
+        char *path;
+        char **names;
+        unsigned int num_of_names;
+        unsigned int *index_table; // hash of the upper-cased names to names index + 1, 0 is empty
+        unsigned int index_table_size;
+        DirectoryCache( const char *path ){
+            this->path = new char[ strlen(path)+1 ];
+            strcpy( this->path, path );
+            names = NULL;
+            num_of_names = 0;
+            index_table = NULL;
+            index_table_size = 0;
+            next = NULL;
+        };
+        ~DirectoryCache(){
+            for ( unsigned int i=0 ; i<num_of_names ; i++ ) delete[] names[i];
+            if (names) delete[] names;
+            if (index_table) delete[] index_table;
+            delete[] path;
+        };
+    } *directory_cache;
+
     FILE *fopen(const char *path, const char *mode);
     unsigned char readChar( FILE *fp );
     unsigned short readShort( FILE *fp );
@@ -106,6 +155,16 @@ protected:
     size_t decodeLZSS( struct ArchiveInfo *ai, int no, unsigned char *buf );
     int getRegisteredCompressionType( const char *file_name );
     size_t getDecompressedFileLength( int type, FILE *fp, size_t offset );
+    void mapArchive( ArchiveInfo *ai );
+    void copyRegisteredCompressionType( DirectReader *reader );
+    bool isMissingFile( const char *name, unsigned int hash );
+    void addMissingFile( const char *name, unsigned int hash );
+    void clearMissingFiles();
+    DirectoryCache *getDirectoryCache( const char *path );
+    const char *findDirectoryEntry( const char *path, const char *name, size_t len );
+    void clearDirectoryCache();
+    // True when getFile() reads file_name as an independent file instead of from an archive
+    bool hasIndependentFile( const char *file_name );
     
 private:
     FILE *getFileHandle( const char *file_name, int &compression_type, size_t *length );
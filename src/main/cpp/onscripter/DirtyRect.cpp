@@ -27,6 +27,7 @@ DirtyRect::DirtyRect()
 {
     screen_width = screen_height = 0;
     bounding_box.w = bounding_box.h = 0;
+    num_of_rects = 0;
 }
 
 DirtyRect::DirtyRect( const DirtyRect &d )
@@ -34,6 +35,8 @@ DirtyRect::DirtyRect( const DirtyRect &d )
     screen_width  = d.screen_width;
     screen_height = d.screen_height;
     bounding_box = d.bounding_box;
+    num_of_rects = d.num_of_rects;
+    for ( int i=0 ; i<num_of_rects ; i++ ) rects[i] = d.rects[i];
 }
 
 DirtyRect& DirtyRect::operator =( const DirtyRect &d )
@@ -41,6 +44,8 @@ DirtyRect& DirtyRect::operator =( const DirtyRect &d )
     screen_width  = d.screen_width;
     screen_height = d.screen_height;
     bounding_box = d.bounding_box;
+    num_of_rects = d.num_of_rects;
+    for ( int i=0 ; i<num_of_rects ; i++ ) rects[i] = d.rects[i];
 
     return *this;
 }
@@ -80,6 +85,44 @@ void DirtyRect::add( SDL_Rect src )
         src.h = screen_height-src.y;
 
     bounding_box = calcBoundingBox( bounding_box, src );
+    addRect( src );
+}
+
+void DirtyRect::addRect( SDL_Rect src )
+{
+    // Merge with a rect when their union wastes less than a quarter of its area,
+    // which also absorbs overlapping and adjacent rects such as text glyphs.
+    int i = 0;
+    while ( i < num_of_rects ){
+        SDL_Rect r = calcBoundingBox( rects[i], src );
+        if ( r.w * r.h * 4 <= (rects[i].w * rects[i].h + src.w * src.h) * 5 ){
+            src = r;
+            rects[i] = rects[--num_of_rects];
+            i = 0;
+        }
+        else{
+            i++;
+        }
+    }
+
+    if ( num_of_rects < MAX_DIRTY_RECTS ){
+        rects[num_of_rects++] = src;
+        return;
+    }
+
+    // No room left, grow the rect that needs the least additional area
+    int min_i = 0, min_area = 0;
+    for ( i=0 ; i<num_of_rects ; i++ ){
+        SDL_Rect r = calcBoundingBox( rects[i], src );
+        int area = r.w * r.h - rects[i].w * rects[i].h;
+        if ( i == 0 || area < min_area ){
+            min_i = i;
+            min_area = area;
+        }
+    }
+    src = calcBoundingBox( rects[min_i], src );
+    rects[min_i] = rects[--num_of_rects];
+    addRect( src );
 }
 
 SDL_Rect DirtyRect::calcBoundingBox( SDL_Rect src1, SDL_Rect &src2 )
@@ -112,6 +155,7 @@ SDL_Rect DirtyRect::calcBoundingBox( SDL_Rect src1, SDL_Rect &src2 )
 void DirtyRect::clear()
 {
     bounding_box.w = bounding_box.h = 0;
+    num_of_rects = 0;
 }
 
 void DirtyRect::fill( int w, int h )
@@ -119,4 +163,6 @@ void DirtyRect::fill( int w, int h )
     bounding_box.x = bounding_box.y = 0;
     bounding_box.w = w;
     bounding_box.h = h;
+    rects[0] = bounding_box;
+    num_of_rects = (w > 0 && h > 0) ? 1 : 0;
 }
@@ -26,6 +26,9 @@
 
 #include <SDL.h>
 
+// Separate damaged areas are kept apart up to this number, then the closest ones are merged
+#define MAX_DIRTY_RECTS 8
+
 struct DirtyRect
 {
     DirtyRect();
@@ -41,7 +44,12 @@ struct DirtyRect
     SDL_Rect calcBoundingBox( SDL_Rect src1, SDL_Rect &src2 );
 
     int screen_width, screen_height;
-    SDL_Rect bounding_box;
+    SDL_Rect bounding_box; // union of rects
+    SDL_Rect rects[MAX_DIRTY_RECTS];
+    int num_of_rects;
+
+private:
+    void addRect( SDL_Rect src );
 };
 
 #endif // __DIRTY_RECT__
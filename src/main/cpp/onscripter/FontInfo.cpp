@@ -22,6 +22,7 @@
  */
 
 #include "FontInfo.h"
+#include "GlyphPrewarmer.h"
 #include <cstdio>
 
 #if defined(PSP)
@@ -46,6 +47,7 @@ TTF_Font* TTF_OpenFont2(const char* name, int ptsize) {
 FontInfo::FontInfo()
 {
     ttf_font[0] = ttf_font[1] = NULL;
+    font_container = NULL;
 
     color[0]        = color[1]        = color[2]        = 0xff;
     on_color[0]     = on_color[1]     = on_color[2]     = 0xff;
@@ -88,6 +90,8 @@ void *FontInfo::openFont( FontContainer* fc, char *font_file, int ratio1, int ra
     if ( !fc->next ){
         fc->next = new FontContainer();
         fc->next->size = font_size;
+        fc->next->glyph_cache = fc->glyph_cache;
+        fc->next->glyph_prewarmer = fc->glyph_prewarmer;
         FILE *fp = fopen( font_file, "r" );
         if ( fp == NULL ) return NULL;
         fclose( fp );
@@ -107,6 +111,9 @@ void *FontInfo::openFont( FontContainer* fc, char *font_file, int ratio1, int ra
         TTF_SetFontOutline(fc->next->font[1], 1);
 #endif
 #endif
+        // Render the frequent glyphs of the new size before the text needs them
+        if ( fc->glyph_prewarmer )
+            fc->glyph_prewarmer->request( font_file, font_size * ratio1 / ratio2, font_size, fc->next->font );
     }
 #if defined(PSP)
     else if (fc->next->power_resume_number != psp_power_resume_number){
@@ -118,10 +125,29 @@ void *FontInfo::openFont( FontContainer* fc, char *font_file, int ratio1, int ra
 
     ttf_font[0] = (void*)fc->next->font[0];
     ttf_font[1] = (void*)fc->next->font[1];
+    font_container = fc->next;
     
     return fc->next->font;
 }
 
+GlyphCache::Glyph *FontInfo::getGlyph( int no, Uint16 unicode, bool render_flag )
+{
+    if ( font_container == NULL || font_container->glyph_cache == NULL ) return NULL;
+
+    return font_container->glyph_cache->getGlyph( (TTF_Font*)ttf_font[no], font_container->size, unicode, render_flag );
+}
+
+int FontInfo::getGlyphAdvance( Uint16 unicode )
+{
+    GlyphCache::Glyph *glyph = getGlyph( 0, unicode, false );
+    if ( glyph == NULL ) return 0;
+
+    int advanced = glyph->advanced;
+    font_container->glyph_cache->trim();
+
+    return advanced;
+}
+
 void FontInfo::setTateyokoMode( int tateyoko_mode )
 {
     this->tateyoko_mode = tateyoko_mode;
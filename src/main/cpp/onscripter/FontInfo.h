@@ -27,15 +27,22 @@
 #include <SDL.h>
 #include <SDL_ttf.h>
 #include "BaseReader.h"
+#include "GlyphCache.h"
 
 typedef unsigned char uchar3[3];
 
+class GlyphPrewarmer;
+
+TTF_Font* TTF_OpenFont2(const char* name, int ptsize);
+
 class FontInfo{
 public:
     struct FontContainer{
         FontContainer *next;
         int size;
         TTF_Font *font[2];
+        GlyphCache *glyph_cache; // shared by all sizes, set on the first container
+        GlyphPrewarmer *glyph_prewarmer; // same as glyph_cache
 #if defined(PSP)
         SDL_RWops *rw_ops;
         int power_resume_number;
@@ -45,6 +52,8 @@ public:
             size = 0;
             next = NULL;
             font[0] = font[1] = NULL;
+            glyph_cache = NULL;
+            glyph_prewarmer = NULL;
 #if defined(PSP)
             rw_ops = NULL;
             power_resume_number = 0;
@@ -69,6 +78,7 @@ public:
            TATE_MODE = 1
     };
     void *ttf_font[2]; // 0...normal rendering, 1...outline rendering
+    FontContainer *font_container; // the container of ttf_font
     uchar3 color;
     uchar3 on_color, off_color, nofile_color;
     int font_size_xy[2];
@@ -101,6 +111,8 @@ public:
     FontInfo();
     void reset();
     void *openFont( FontContainer* cache, char *font_file, int ratio1, int ratio2 );
+    GlyphCache::Glyph *getGlyph( int no, Uint16 unicode, bool render_flag );
+    int getGlyphAdvance( Uint16 unicode );
     void setTateyokoMode( int tateyoko_mode );
     int getTateyokoMode();
     int getRemainingLine();
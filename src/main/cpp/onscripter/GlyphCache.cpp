@@ -0,0 +1,340 @@
+/* -*- C++ -*-
+ *
+ *  GlyphCache.cpp - LRU cache of rasterized glyphs
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "GlyphCache.h"
+#include "HashTable.h"
+#include <string.h>
+
+GlyphCache::GlyphCache()
+{
+    for ( int i=0 ; i<HASH_TABLE_SIZE ; i++ ) hash_table[i] = NULL;
+    lru_head = lru_tail = NULL;
+    budget = DEFAULT_BUDGET;
+    used_size = 0;
+    num_of_hits = num_of_misses = 0;
+    num_of_pages = 0;
+    atlas_size = 0;
+    use_count = 0;
+    mutex = SDL_CreateMutex();
+}
+
+GlyphCache::~GlyphCache()
+{
+    clear();
+    if (mutex) SDL_DestroyMutex( mutex );
+}
+
+void GlyphCache::setBudget( size_t budget )
+{
+    SDL_mutexP( mutex );
+    this->budget = budget;
+    SDL_mutexV( mutex );
+    trim();
+}
+
+GlyphCache::Glyph *GlyphCache::getGlyph( TTF_Font *font, int size, Uint16 unicode, bool render_flag )
+{
+    if ( font == NULL ) return NULL;
+
+    SDL_mutexP( mutex );
+    int style = TTF_GetFontStyle( font );
+    unsigned int hash = getHash( font, size, style, unicode );
+    Entry *entry = find( font, size, style, unicode, hash );
+    if ( entry ){
+        unlink( entry );
+        num_of_hits++;
+
+        // Keep the page until the next trim()
+        for ( int i=0 ; i<num_of_pages && entry->glyph.surface ; i++ )
+            if ( pages[i].surface == entry->glyph.surface ) pages[i].last_use = use_count;
+    }
+    else{
+        entry = insert( font, size, style, unicode, hash, font );
+        unlink( entry );
+        num_of_misses++;
+    }
+    // Move to the front of the LRU list
+    entry->next = lru_head;
+    if ( lru_head ) lru_head->prev = entry;
+    lru_head = entry;
+    if ( lru_tail == NULL ) lru_tail = entry;
+
+    if ( render_flag && !entry->glyph.rendered_flag )
+        setSurface( entry, renderGlyph( font, unicode ), true );
+    SDL_mutexV( mutex );
+
+    return &entry->glyph;
+}
+
+void GlyphCache::trim()
+{
+    // Drop the least recently used glyphs until the rest fits in the budget, a quarter
+    // of it is for the entries and the rest for the atlas pages
+    SDL_mutexP( mutex );
+    while ( lru_tail && used_size > budget/4 ) remove( lru_tail );
+    use_count++;
+    SDL_mutexV( mutex );
+}
+
+bool GlyphCache::prewarm( TTF_Font *font, int size, Uint16 unicode, TTF_Font *render_font )
+{
+    int style = TTF_GetFontStyle( render_font );
+    unsigned int hash = getHash( font, size, style, unicode );
+
+    SDL_mutexP( mutex );
+    bool full_flag = used_size + atlas_size > budget/2;
+    Entry *entry = find( font, size, style, unicode, hash );
+    bool rendered_flag = entry && entry->glyph.rendered_flag;
+    SDL_mutexV( mutex );
+    if ( full_flag ) return false;
+    if ( rendered_flag ) return true;
+
+    // FreeType renders outside the lock, getGlyph() may render the same glyph meanwhile
+    SDL_Surface *surface = renderGlyph( render_font, unicode );
+
+    SDL_mutexP( mutex );
+    entry = find( font, size, style, unicode, hash );
+    if ( entry == NULL ) entry = insert( font, size, style, unicode, hash, render_font );
+    bool ret = true;
+    if ( !entry->glyph.rendered_flag )
+        ret = setSurface( entry, surface, false );
+    else if ( surface )
+        SDL_FreeSurface( surface );
+    SDL_mutexV( mutex );
+
+    return ret;
+}
+
+void GlyphCache::clear()
+{
+    SDL_mutexP( mutex );
+    while ( lru_head ) remove( lru_head );
+    while ( num_of_pages > 0 ) removePage( num_of_pages-1 );
+    SDL_mutexV( mutex );
+}
+
+SDL_Surface *GlyphCache::renderGlyph( TTF_Font *font, Uint16 unicode )
+{
+    static SDL_Color fcol={0xff, 0xff, 0xff}, bcol={0, 0, 0};
+    return TTF_RenderGlyph_Shaded( font, unicode, fcol, bcol );
+}
+
+unsigned int GlyphCache::getHash( TTF_Font *font, int size, int style, Uint16 unicode )
+{
+    unsigned int key[4] = { (unsigned int)(size_t)font, (unsigned int)size, (unsigned int)style, unicode };
+    return hashBytes( key, sizeof(key) );
+}
+
+GlyphCache::Entry *GlyphCache::find( TTF_Font *font, int size, int style, Uint16 unicode, unsigned int hash )
+{
+    Entry *entry = hash_table[ hash % HASH_TABLE_SIZE ];
+    while ( entry ){
+        if ( entry->hash == hash && entry->font == font && entry->size == size &&
+             entry->style == style && entry->unicode == unicode ) return entry;
+        entry = entry->hash_next;
+    }
+    return NULL;
+}
+
+GlyphCache::Entry *GlyphCache::insert( TTF_Font *font, int size, int style, Uint16 unicode, unsigned int hash, TTF_Font *render_font )
+{
+    Entry *entry = new Entry();
+    entry->font = font;
+    entry->size = size;
+    entry->style = style;
+    entry->unicode = unicode;
+    entry->hash = hash;
+    entry->glyph.minx = entry->glyph.maxx = entry->glyph.miny = entry->glyph.maxy = 0;
+    entry->glyph.advanced = 0;
+    TTF_GlyphMetrics( render_font, unicode, &entry->glyph.minx, &entry->glyph.maxx,
+                      &entry->glyph.miny, &entry->glyph.maxy, &entry->glyph.advanced );
+    entry->glyph.surface = NULL;
+    entry->glyph.rendered_flag = false;
+    entry->glyph.aligned_flag = false;
+
+    entry->hash_next = hash_table[ hash % HASH_TABLE_SIZE ];
+    hash_table[ hash % HASH_TABLE_SIZE ] = entry;
+    used_size += sizeof(Entry);
+
+    // New glyphs go to the end of the LRU list, getGlyph() moves them to the front
+    entry->next = NULL;
+    entry->prev = lru_tail;
+    if ( lru_tail ) lru_tail->next = entry;
+    lru_tail = entry;
+    if ( lru_head == NULL ) lru_head = entry;
+
+    return entry;
+}
+
+bool GlyphCache::setSurface( Entry *entry, SDL_Surface *surface, bool recycle_flag )
+{
+    // Copies the rendered glyph into the atlas and frees it
+    if ( surface == NULL || surface->w == 0 || surface->h == 0 ){
+        if ( surface ) SDL_FreeSurface( surface );
+        entry->glyph.surface = NULL;
+        entry->glyph.rect.x = entry->glyph.rect.y = entry->glyph.rect.w = entry->glyph.rect.h = 0;
+        entry->glyph.rendered_flag = true;
+        return true;
+    }
+
+    Page *page;
+    SDL_Rect rect;
+    if ( !allocRect( surface->w, surface->h, recycle_flag, &page, &rect ) ){
+        SDL_FreeSurface( surface );
+        return false;
+    }
+
+    SDL_LockSurface( surface );
+    SDL_LockSurface( page->surface );
+    for ( int i=0 ; i<rect.h ; i++ )
+        memcpy( (Uint8*)page->surface->pixels + page->surface->pitch*(rect.y+i) + rect.x,
+                (Uint8*)surface->pixels + surface->pitch*i, rect.w );
+    SDL_UnlockSurface( page->surface );
+    SDL_UnlockSurface( surface );
+    SDL_FreeSurface( surface );
+
+    entry->glyph.surface = page->surface;
+    entry->glyph.rect = rect;
+    entry->glyph.rendered_flag = true;
+
+    return true;
+}
+
+bool GlyphCache::allocRect( int w, int h, bool recycle_flag, Page **page, SDL_Rect *rect )
+{
+    // The latest pages are for the current font size
+    for ( int i=num_of_pages-1 ; i>=0 ; i-- ){
+        if ( allocRectInPage( &pages[i], w, h, rect ) ){
+            *page = &pages[i];
+            (*page)->last_use = use_count;
+            return true;
+        }
+    }
+
+    if ( !addPage( w, h, recycle_flag ) ) return false;
+    *page = &pages[num_of_pages-1];
+
+    return allocRectInPage( *page, w, h, rect );
+}
+
+bool GlyphCache::allocRectInPage( Page *page, int w, int h, SDL_Rect *rect )
+{
+    int page_w = page->surface->w, page_h = page->surface->h;
+
+    for ( int i=0 ; i<page->num_of_shelves ; i++ ){
+        if ( page->shelf_h[i] < h || page->shelf_h[i] > h*2 ||
+             page->shelf_x[i] + w > page_w ) continue;
+        rect->x = page->shelf_x[i];
+        rect->y = page->shelf_y[i];
+        rect->w = w;
+        rect->h = h;
+        page->shelf_x[i] += w;
+        return true;
+    }
+
+    if ( page->num_of_shelves == MAX_SHELVES || page->next_y + h > page_h || w > page_w )
+        return false;
+
+    int i = page->num_of_shelves++;
+    page->shelf_y[i] = page->next_y;
+    page->shelf_h[i] = h;
+    page->shelf_x[i] = w;
+    page->next_y += h;
+    rect->x = 0;
+    rect->y = page->shelf_y[i];
+    rect->w = w;
+    rect->h = h;
+
+    return true;
+}
+
+bool GlyphCache::addPage( int w, int h, bool recycle_flag )
+{
+    // About 16 rows of the current font size, so the pages follow the font scale
+    int page_size = MIN_PAGE_SIZE;
+    while ( page_size < h*16 && page_size < MAX_PAGE_SIZE ) page_size *= 2;
+    while ( page_size < w || page_size < h ) page_size *= 2;
+    size_t size = page_size * page_size;
+
+    // Two pages at least, whatever the budget is
+    while ( num_of_pages == MAX_PAGES ||
+            ( num_of_pages >= 2 && atlas_size + size > budget - budget/4 ) ){
+        if ( !recycle_flag ) return false;
+
+        // Drop the least recently used page, except those used since the last trim()
+        int no = -1;
+        for ( int i=0 ; i<num_of_pages ; i++ ){
+            if ( pages[i].last_use == use_count ) continue;
+            if ( no < 0 || pages[i].last_use < pages[no].last_use ) no = i;
+        }
+        if ( no < 0 ) break;
+        removePage( no );
+    }
+    if ( num_of_pages == MAX_PAGES ) return false;
+
+    SDL_Surface *surface = SDL_CreateRGBSurface( SDL_SWSURFACE, page_size, page_size, 8, 0, 0, 0, 0 );
+    if ( surface == NULL ) return false;
+
+    Page *page = &pages[num_of_pages++];
+    page->surface = surface;
+    page->num_of_shelves = 0;
+    page->next_y = 0;
+    page->last_use = use_count;
+    atlas_size += surface->pitch * surface->h;
+
+    return true;
+}
+
+void GlyphCache::removePage( int no )
+{
+    // The glyphs in the page are rendered again when they are drawn next
+    SDL_Surface *surface = pages[no].surface;
+    for ( Entry *entry = lru_head ; entry ; entry = entry->next ){
+        if ( entry->glyph.surface != surface ) continue;
+        entry->glyph.surface = NULL;
+        entry->glyph.rendered_flag = false;
+        entry->glyph.aligned_flag = false;
+    }
+
+    atlas_size -= surface->pitch * surface->h;
+    SDL_FreeSurface( surface );
+    for ( int i=no ; i<num_of_pages-1 ; i++ ) pages[i] = pages[i+1];
+    num_of_pages--;
+}
+
+void GlyphCache::unlink( Entry *entry )
+{
+    if ( entry->prev ) entry->prev->next = entry->next;
+    else               lru_head = entry->next;
+    if ( entry->next ) entry->next->prev = entry->prev;
+    else               lru_tail = entry->prev;
+    entry->prev = entry->next = NULL;
+}
+
+void GlyphCache::remove( Entry *entry )
+{
+    unlink( entry );
+
+    Entry **p = &hash_table[ entry->hash % HASH_TABLE_SIZE ];
+    while ( *p != entry ) p = &(*p)->hash_next;
+    *p = entry->hash_next;
+
+    used_size -= sizeof(Entry);
+    delete entry;
+}
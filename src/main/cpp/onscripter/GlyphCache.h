@@ -0,0 +1,114 @@
+/* -*- C++ -*-
+ *
+ *  GlyphCache.h - LRU cache of rasterized glyphs
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __GLYPH_CACHE_H__
+#define __GLYPH_CACHE_H__
+
+#include <SDL.h>
+#include <SDL_ttf.h>
+#include <SDL_thread.h>
+
+// Keeps the metrics and the coverage bitmap (TTF_RenderGlyph_Shaded(), white on black)
+// of the glyphs drawn so far, keyed by font, size, style and code point. The bitmaps are
+// packed into a few 8bit atlas pages, so drawing cached text allocates nothing. The
+// glyphs returned by getGlyph() stay valid until the next call of trim(); prewarm()
+// adds glyphs from another thread but never drops any.
+class GlyphCache
+{
+public:
+    enum { DEFAULT_BUDGET = 4*1024*1024 };
+
+    struct Glyph{
+        int minx, maxx, miny, maxy, advanced;
+        SDL_Surface *surface; // atlas page, NULL until rendered or when the glyph has no pixels
+        SDL_Rect rect; // bitmap in surface
+        bool rendered_flag;
+        bool aligned_flag; // shifted by half a pixel to center the outline
+    };
+
+    GlyphCache();
+    ~GlyphCache();
+
+    void setBudget( size_t budget );
+    size_t getBudget(){ return budget; };
+
+    Glyph *getGlyph( TTF_Font *font, int size, Uint16 unicode, bool render_flag );
+    void trim();
+    // Renders with render_font, a copy of font owned by the calling thread, and
+    // returns false when the cache is half full
+    bool prewarm( TTF_Font *font, int size, Uint16 unicode, TTF_Font *render_font );
+    void clear();
+
+    unsigned int getHitCount(){ return num_of_hits; };
+    unsigned int getMissCount(){ return num_of_misses; };
+    size_t getUsedSize(){ return used_size + atlas_size; };
+
+private:
+    enum { HASH_TABLE_SIZE = 1024,
+           MAX_PAGES = 32,
+           MAX_SHELVES = 128,
+           MIN_PAGE_SIZE = 256,
+           MAX_PAGE_SIZE = 2048
+    };
+
+    // Rows of glyphs of about the same height, filled from the left
+    struct Page{
+        SDL_Surface *surface;
+        int shelf_y[MAX_SHELVES], shelf_h[MAX_SHELVES], shelf_x[MAX_SHELVES];
+        int num_of_shelves;
+        int next_y;
+        unsigned int last_use;
+    };
+
+    struct Entry{
+        Entry *prev, *next; // LRU list, most recent first
+        Entry *hash_next;
+        TTF_Font *font;
+        int size;
+        int style;
+        Uint16 unicode;
+        unsigned int hash;
+        Glyph glyph;
+    };
+
+    Entry *hash_table[HASH_TABLE_SIZE];
+    Entry *lru_head, *lru_tail;
+    size_t budget;
+    size_t used_size; // entries, atlas pages are counted in atlas_size
+    Page pages[MAX_PAGES];
+    int num_of_pages;
+    size_t atlas_size;
+    unsigned int use_count; // advanced by trim(), pages used since then are kept
+    unsigned int num_of_hits, num_of_misses;
+    SDL_mutex *mutex;
+
+    static SDL_Surface *renderGlyph( TTF_Font *font, Uint16 unicode );
+    bool allocRect( int w, int h, bool recycle_flag, Page **page, SDL_Rect *rect );
+    bool allocRectInPage( Page *page, int w, int h, SDL_Rect *rect );
+    bool addPage( int w, int h, bool recycle_flag );
+    void removePage( int no );
+    static unsigned int getHash( TTF_Font *font, int size, int style, Uint16 unicode );
+    Entry *find( TTF_Font *font, int size, int style, Uint16 unicode, unsigned int hash );
+    Entry *insert( TTF_Font *font, int size, int style, Uint16 unicode, unsigned int hash, TTF_Font *render_font );
+    bool setSurface( Entry *entry, SDL_Surface *surface, bool recycle_flag );
+    void unlink( Entry *entry );
+    void remove( Entry *entry );
+};
+
+#endif // __GLYPH_CACHE_H__
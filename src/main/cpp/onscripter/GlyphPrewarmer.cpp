@@ -0,0 +1,256 @@
+/* -*- C++ -*-
+ *
+ *  GlyphPrewarmer.cpp - Renders the most frequent glyphs of the script in the background
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "GlyphPrewarmer.h"
+#include "FontInfo.h"
+#include <string.h>
+#include <stdlib.h>
+
+GlyphPrewarmer::GlyphPrewarmer()
+{
+    for ( int i=0 ; i<MAX_REQUESTS ; i++ ){
+        requests[i].font[0] = requests[i].font[1] = NULL;
+        requests[i].state = REQUEST_FREE;
+    }
+    num_of_glyphs = 0;
+
+    cache = NULL;
+    decoder = NULL;
+    script_begin = script_end = NULL;
+    outline_flag = false;
+
+    glyphs = NULL;
+    num_of_ranked_glyphs = -1;
+
+    thread = NULL;
+    quit_flag = false;
+    mutex = SDL_CreateMutex();
+    cond = SDL_CreateCond();
+}
+
+GlyphPrewarmer::~GlyphPrewarmer()
+{
+    stop();
+    if ( glyphs ) delete[] glyphs;
+    if (cond) SDL_DestroyCond( cond );
+    if (mutex) SDL_DestroyMutex( mutex );
+}
+
+void GlyphPrewarmer::start( GlyphCache *cache, ScriptDecoder *decoder, const char *begin, const char *end, bool outline_flag )
+{
+    stop();
+    if ( !isEnabled() || decoder == NULL || mutex == NULL || cond == NULL ) return;
+
+    this->cache = cache;
+    this->decoder = decoder;
+    script_begin = begin;
+    script_end = end;
+    this->outline_flag = outline_flag;
+    thread = SDL_CreateThread( workerMain, this );
+}
+
+void GlyphPrewarmer::stop()
+{
+    if ( thread == NULL ) return;
+
+    SDL_mutexP( mutex );
+    quit_flag = true;
+    SDL_CondSignal( cond );
+    SDL_mutexV( mutex );
+
+    SDL_WaitThread( thread, NULL );
+    thread = NULL;
+
+    for ( int i=0 ; i<MAX_REQUESTS ; i++ ){
+        closeFonts( &requests[i] );
+        requests[i].state = REQUEST_FREE;
+    }
+    quit_flag = false;
+}
+
+void GlyphPrewarmer::request( const char *font_file, int ptsize, int size, TTF_Font *font[2] )
+{
+    if ( thread == NULL || font[0] == NULL ) return;
+
+    closeDoneRequests();
+    // Only the script thread frees and takes slots, the slot found stays free
+    Request *slot = NULL;
+    SDL_mutexP( mutex );
+    for ( int i=0 ; i<MAX_REQUESTS && slot == NULL ; i++ )
+        if ( requests[i].state == REQUEST_FREE ) slot = &requests[i];
+    SDL_mutexV( mutex );
+    if ( slot == NULL ) return;
+
+    Request r;
+    r.key_font[0] = font[0];
+    r.key_font[1] = outline_flag ? font[1] : NULL;
+    r.font[0] = TTF_OpenFont2( font_file, ptsize );
+    r.font[1] = NULL;
+#if (SDL_TTF_MAJOR_VERSION>=2) && (SDL_TTF_MINOR_VERSION>=0) && (SDL_TTF_PATCHLEVEL>=10)
+    if ( r.key_font[1] ){
+        r.font[1] = TTF_OpenFont2( font_file, ptsize );
+        if ( r.font[1] ) TTF_SetFontOutline( r.font[1], 1 );
+    }
+#endif
+    r.size = size;
+    r.state = REQUEST_WAITING;
+    if ( r.font[0] == NULL ){
+        closeFonts( &r );
+        return;
+    }
+
+    SDL_mutexP( mutex );
+    *slot = r;
+    SDL_CondSignal( cond );
+    SDL_mutexV( mutex );
+}
+
+void GlyphPrewarmer::closeDoneRequests()
+{
+    // Fonts are only closed on the script thread, FreeType does not lock its faces
+    SDL_mutexP( mutex );
+    for ( int i=0 ; i<MAX_REQUESTS ; i++ ){
+        if ( requests[i].state != REQUEST_DONE ) continue;
+        closeFonts( &requests[i] );
+        requests[i].state = REQUEST_FREE;
+    }
+    SDL_mutexV( mutex );
+}
+
+void GlyphPrewarmer::closeFonts( Request *request )
+{
+    for ( int i=0 ; i<2 ; i++ ){
+        if ( request->font[i] ) TTF_CloseFont( request->font[i] );
+        request->font[i] = NULL;
+    }
+}
+
+int GlyphPrewarmer::workerMain( void *data )
+{
+    GlyphPrewarmer *prewarmer = (GlyphPrewarmer*)data;
+    prewarmer->run();
+
+    return 0;
+}
+
+void GlyphPrewarmer::run()
+{
+    SDL_mutexP( mutex );
+    while (1){
+        Request *request = NULL;
+        while ( !quit_flag ){
+            for ( int i=0 ; i<MAX_REQUESTS && request == NULL ; i++ )
+                if ( requests[i].state == REQUEST_WAITING ) request = &requests[i];
+            if ( request ) break;
+            SDL_CondWait( cond, mutex );
+        }
+        if ( quit_flag ) break;
+        request->state = REQUEST_RUNNING;
+        Request r = *request;
+        SDL_mutexV( mutex );
+
+        if ( num_of_ranked_glyphs < 0 ) rankGlyphs();
+        prewarm( &r );
+
+        // The slot stays taken until closeDoneRequests() sees it done
+        SDL_mutexP( mutex );
+        request->state = REQUEST_DONE;
+    }
+    SDL_mutexV( mutex );
+}
+
+int GlyphPrewarmer::compareCounts( const void *a, const void *b )
+{
+    unsigned int count_a = *(const unsigned int*)a, count_b = *(const unsigned int*)b;
+    if ( count_a != count_b ) return count_a > count_b ? -1 : 1;
+    return (int)((const unsigned int*)a)[1] - (int)((const unsigned int*)b)[1];
+}
+
+void GlyphPrewarmer::rankGlyphs()
+{
+    unsigned int *counts = new unsigned int[0x10000];
+    memset( counts, 0, sizeof(unsigned int) * 0x10000 );
+
+    char *buf = (char*)script_begin;
+    while ( buf < script_end ){
+        if ( *buf == ';' ){
+            // Comment until the end of the line
+            while ( buf < script_end && *buf != 0x0a ) buf++;
+            continue;
+        }
+
+        int n = decoder->getNumBytes( *buf );
+        if ( n < 1 ) n = 1;
+        if ( buf + n > script_end ) break;
+
+        unsigned char c = (unsigned char)buf[0];
+        if ( n == 1 ){
+            // Printable ASCII and half width katakana
+            if ( (c > 0x20 && c < 0x7f) || (c >= 0xa1 && c <= 0xdf) )
+                counts[ decoder->convertNextChar( buf ) ]++;
+        }
+        else{
+            int num_bytes;
+            int index = c << 8 | (unsigned char)buf[1];
+            if ( decoder->canConvertNextChar( buf, &num_bytes ) &&
+                 ( n > 2 || (index >= 0x8140 && index <= 0xfcfc) ) )
+                counts[ decoder->convertNextChar( buf ) ]++;
+        }
+        buf += n;
+    }
+
+    // Keep the num_of_glyphs most frequent characters, most frequent first
+    int num = 0;
+    for ( int i=0 ; i<0x10000 ; i++ ) if ( counts[i] ) num++;
+    unsigned int *sorted = new unsigned int[ num > 0 ? num*2 : 1 ];
+    num = 0;
+    for ( int i=0 ; i<0x10000 ; i++ ){
+        if ( counts[i] == 0 ) continue;
+        sorted[num*2]   = counts[i];
+        sorted[num*2+1] = i;
+        num++;
+    }
+    delete[] counts;
+    qsort( sorted, num, sizeof(unsigned int)*2, compareCounts );
+
+    if ( num > num_of_glyphs ) num = num_of_glyphs;
+    Uint16 *ranked = new Uint16[ num > 0 ? num : 1 ];
+    for ( int i=0 ; i<num ; i++ ) ranked[i] = sorted[i*2+1];
+    delete[] sorted;
+
+    glyphs = ranked;
+    num_of_ranked_glyphs = num;
+}
+
+void GlyphPrewarmer::prewarm( Request *request )
+{
+    Uint32 start = SDL_GetTicks();
+    int i;
+    for ( i=0 ; i<num_of_ranked_glyphs ; i++ ){
+        SDL_mutexP( mutex );
+        bool quit = quit_flag;
+        SDL_mutexV( mutex );
+        if ( quit ) break;
+
+        if ( !cache->prewarm( request->key_font[0], request->size, glyphs[i], request->font[0] ) ) break;
+        if ( request->font[1] &&
+             !cache->prewarm( request->key_font[1], request->size, glyphs[i], request->font[1] ) ) break;
+    }
+    logv( "prewarmed %d glyphs of size %d in %d ms\n", i, request->size, SDL_GetTicks() - start );
+}
@@ -0,0 +1,87 @@
+/* -*- C++ -*-
+ *
+ *  GlyphPrewarmer.h - Renders the most frequent glyphs of the script in the background
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __GLYPH_PREWARMER_H__
+#define __GLYPH_PREWARMER_H__
+
+#include <SDL.h>
+#include <SDL_ttf.h>
+#include <SDL_thread.h>
+#include "GlyphCache.h"
+#include "ScriptDecoder.h"
+
+// Renders the characters used most often in the script into the GlyphCache on a worker
+// thread whenever a font size is opened, so the first page in that size does not wait
+// for FreeType. FreeType faces can't be shared between threads, so every request opens
+// its own copies of the fonts; they are opened and closed on the script thread.
+class GlyphPrewarmer
+{
+public:
+    enum { MAX_REQUESTS = 4 };
+
+    GlyphPrewarmer();
+    ~GlyphPrewarmer();
+
+    void setNumGlyphs( int num_of_glyphs ){ this->num_of_glyphs = num_of_glyphs; };
+    bool isEnabled(){ return num_of_glyphs > 0; };
+
+    // Called from the script thread
+    void start( GlyphCache *cache, ScriptDecoder *decoder, const char *begin, const char *end, bool outline_flag );
+    void stop();
+    // font is the pair of a new FontContainer, ptsize the size it was opened with
+    void request( const char *font_file, int ptsize, int size, TTF_Font *font[2] );
+
+private:
+    enum { REQUEST_FREE    = 0,
+           REQUEST_WAITING = 1,
+           REQUEST_RUNNING = 2,
+           REQUEST_DONE    = 3
+    };
+
+    struct Request{
+        TTF_Font *key_font[2]; // the fonts the glyphs are cached for
+        TTF_Font *font[2];     // the copies rendered on the worker thread
+        int size;
+        int state;
+    } requests[MAX_REQUESTS]; // the worker keeps a pointer to its slot, never moved
+    int num_of_glyphs;
+
+    GlyphCache *cache;
+    ScriptDecoder *decoder;
+    const char *script_begin, *script_end;
+    bool outline_flag;
+
+    Uint16 *glyphs; // most frequent first
+    int num_of_ranked_glyphs;
+
+    SDL_Thread *thread;
+    bool quit_flag;
+    SDL_mutex *mutex;
+    SDL_cond *cond;
+
+    static int workerMain( void *data );
+    void run();
+    static int compareCounts( const void *a, const void *b );
+    void rankGlyphs();
+    void prewarm( Request *request );
+    void closeDoneRequests();
+    static void closeFonts( Request *request );
+};
+
+#endif // __GLYPH_PREWARMER_H__
@@ -0,0 +1,78 @@
+/* -*- C++ -*-
+ *
+ *  HashTable.h - FNV-1a hash and open addressing tables shared by the lookups
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+#ifndef __HASH_TABLE_H__
+#define __HASH_TABLE_H__
+
+#include <stddef.h>
+#include <string.h>
+
+// FNV-1a. The functions continue from hash, so several fields can be hashed in a row.
+#define HASH_INITIAL 2166136261u
+
+inline unsigned int hashByte( unsigned int hash, unsigned char c )
+{
+    return ( hash ^ c ) * 16777619u;
+}
+
+inline unsigned int hashBytes( const void *data, size_t len, unsigned int hash=HASH_INITIAL )
+{
+    const unsigned char *p = (const unsigned char*)data;
+    for ( size_t i=0 ; i<len ; i++ ) hash = hashByte( hash, p[i] );
+    return hash;
+}
+
+inline unsigned int hashString( const char *str, unsigned int hash=HASH_INITIAL )
+{
+    while ( *str ) hash = hashByte( hash, (unsigned char)*str++ );
+    return hash;
+}
+
+// Builds an open addressing table of the entries 0 to num-1, kept at most half full.
+// A slot holds the index+1 of an entry, 0 when empty; of the entries same_func finds
+// equal only the first is kept, the one a linear search finds. *table_size is set to
+// the number of slots, a power of 2, so a lookup starts at hash & (*table_size-1) and
+// probes the next slots until an empty one.
+typedef unsigned int (*HashTableHashFunc)( void *data, unsigned int index );
+typedef bool (*HashTableSameFunc)( void *data, unsigned int index1, unsigned int index2 );
+
+inline unsigned int *buildHashTable( unsigned int num, HashTableHashFunc hash_func, HashTableSameFunc same_func,
+                                     void *data, unsigned int *table_size )
+{
+    unsigned int size = 16;
+    while ( size < num*2 ) size <<= 1;
+    unsigned int *table = new unsigned int[ size ];
+    memset( table, 0, sizeof(unsigned int)*size );
+
+    unsigned int mask = size - 1;
+    for ( unsigned int i=0 ; i<num ; i++ ){
+        unsigned int j = hash_func( data, i ) & mask;
+        while ( table[j] ){
+            if ( same_func( data, table[j]-1, i ) ) break;
+            j = (j+1) & mask;
+        }
+        if ( !table[j] ) table[j] = i+1;
+    }
+    *table_size = size;
+
+    return table;
+}
+
+#endif // __HASH_TABLE_H__
@@ -0,0 +1,224 @@
+/* -*- C++ -*-
+ *
+ *  ImageCache.cpp - LRU cache of decoded images
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "ImageCache.h"
+#include "HashTable.h"
+#include <string.h>
+
+ImageCache::ImageCache()
+{
+    for ( int i=0 ; i<HASH_TABLE_SIZE ; i++ ) hash_table[i] = NULL;
+    lru_head = lru_tail = NULL;
+    budget = 0;
+    used_size = 0;
+    num_of_hits = num_of_misses = 0;
+    generation = 0;
+    mutex = SDL_CreateMutex();
+}
+
+ImageCache::~ImageCache()
+{
+    clear();
+    if (mutex) SDL_DestroyMutex( mutex );
+}
+
+void ImageCache::setBudget( size_t budget )
+{
+    SDL_mutexP( mutex );
+    this->budget = budget;
+    evict( 0 );
+    SDL_mutexV( mutex );
+}
+
+SDL_Surface *ImageCache::get( const char *file_name, bool *has_alpha, int *location )
+{
+    if ( budget == 0 ) return NULL;
+
+    SDL_mutexP( mutex );
+    SDL_Surface *surface = NULL;
+    Entry *entry = find( file_name, hashString( file_name ) );
+    if ( entry ){
+        // Move to the front of the LRU list
+        unlink( entry );
+        entry->next = lru_head;
+        if ( lru_head ) lru_head->prev = entry;
+        lru_head = entry;
+        if ( lru_tail == NULL ) lru_tail = entry;
+
+        surface = copySurface( entry->surface );
+        if ( has_alpha ) *has_alpha = entry->has_alpha;
+        if ( location )  *location  = entry->location;
+        num_of_hits++;
+    }
+    else{
+        num_of_misses++;
+    }
+    SDL_mutexV( mutex );
+
+    return surface;
+}
+
+void ImageCache::put( const char *file_name, SDL_Surface *surface, bool has_alpha, int location,
+                      const unsigned int *generation )
+{
+    if ( budget == 0 || surface == NULL ) return;
+
+    size_t size = surface->pitch * surface->h;
+    if ( size > budget ) return;
+
+    SDL_Surface *copy = copySurface( surface );
+    if ( copy == NULL ) return;
+
+    SDL_mutexP( mutex );
+    if ( generation && *generation != this->generation ){
+        SDL_mutexV( mutex );
+        SDL_FreeSurface( copy );
+        return;
+    }
+    unsigned int hash = hashString( file_name );
+    Entry *entry = find( file_name, hash );
+    if ( entry ) remove( entry );
+    evict( size );
+
+    entry = new Entry();
+    entry->file_name = new char[ strlen(file_name)+1 ];
+    strcpy( entry->file_name, file_name );
+    entry->hash = hash;
+    entry->surface = copy;
+    entry->has_alpha = has_alpha;
+    entry->location = location;
+    entry->size = size;
+
+    entry->hash_next = hash_table[ hash % HASH_TABLE_SIZE ];
+    hash_table[ hash % HASH_TABLE_SIZE ] = entry;
+    entry->prev = NULL;
+    entry->next = lru_head;
+    if ( lru_head ) lru_head->prev = entry;
+    lru_head = entry;
+    if ( lru_tail == NULL ) lru_tail = entry;
+    used_size += size;
+    SDL_mutexV( mutex );
+}
+
+unsigned int ImageCache::getGeneration()
+{
+    SDL_mutexP( mutex );
+    unsigned int ret = generation;
+    SDL_mutexV( mutex );
+
+    return ret;
+}
+
+bool ImageCache::contains( const char *file_name )
+{
+    if ( budget == 0 ) return false;
+
+    SDL_mutexP( mutex );
+    bool ret = find( file_name, hashString( file_name ) ) != NULL;
+    SDL_mutexV( mutex );
+
+    return ret;
+}
+
+static char foldChar( char c )
+{
+    if ( c == '/' ) return '\\';
+    if ( c >= 'A' && c <= 'Z' ) return c + 'a' - 'A';
+    return c;
+}
+
+void ImageCache::remove( const char *file_name )
+{
+    SDL_mutexP( mutex );
+    generation++;
+    Entry *entry = lru_head;
+    while ( entry ){
+        Entry *next = entry->next;
+        const char *p = entry->file_name, *q = file_name;
+        while ( *p && foldChar( *p ) == foldChar( *q ) ){ p++; q++; }
+        if ( foldChar( *p ) == foldChar( *q ) ) remove( entry );
+        entry = next;
+    }
+    SDL_mutexV( mutex );
+}
+
+void ImageCache::clear()
+{
+    SDL_mutexP( mutex );
+    generation++;
+    while ( lru_head ) remove( lru_head );
+    SDL_mutexV( mutex );
+}
+
+SDL_Surface *ImageCache::copySurface( SDL_Surface *surface )
+{
+    SDL_PixelFormat *fmt = surface->format;
+    SDL_Surface *copy = SDL_CreateRGBSurface( SDL_SWSURFACE, surface->w, surface->h,
+                                              fmt->BitsPerPixel, fmt->Rmask, fmt->Gmask, fmt->Bmask, fmt->Amask );
+    if ( copy == NULL ) return NULL;
+
+    SDL_LockSurface( surface );
+    SDL_LockSurface( copy );
+    size_t len = surface->w * fmt->BytesPerPixel;
+    for ( int i=0 ; i<surface->h ; i++ )
+        memcpy( (Uint8*)copy->pixels + copy->pitch*i, (Uint8*)surface->pixels + surface->pitch*i, len );
+    SDL_UnlockSurface( copy );
+    SDL_UnlockSurface( surface );
+
+    return copy;
+}
+
+ImageCache::Entry *ImageCache::find( const char *file_name, unsigned int hash )
+{
+    Entry *entry = hash_table[ hash % HASH_TABLE_SIZE ];
+    while ( entry ){
+        if ( entry->hash == hash && !strcmp( entry->file_name, file_name ) ) return entry;
+        entry = entry->hash_next;
+    }
+    return NULL;
+}
+
+void ImageCache::unlink( Entry *entry )
+{
+    if ( entry->prev ) entry->prev->next = entry->next;
+    else               lru_head = entry->next;
+    if ( entry->next ) entry->next->prev = entry->prev;
+    else               lru_tail = entry->prev;
+    entry->prev = entry->next = NULL;
+}
+
+void ImageCache::remove( Entry *entry )
+{
+    unlink( entry );
+
+    Entry **p = &hash_table[ entry->hash % HASH_TABLE_SIZE ];
+    while ( *p != entry ) p = &(*p)->hash_next;
+    *p = entry->hash_next;
+
+    used_size -= entry->size;
+    SDL_FreeSurface( entry->surface );
+    delete[] entry->file_name;
+    delete entry;
+}
+
+void ImageCache::evict( size_t size )
+{
+    // Drop the least recently used images until size more bytes fit in the budget
+    while ( lru_tail && used_size + size > budget ) remove( lru_tail );
+}
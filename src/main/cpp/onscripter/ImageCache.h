@@ -0,0 +1,83 @@
+/* -*- C++ -*-
+ *
+ *  ImageCache.h - LRU cache of decoded images
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __IMAGE_CACHE_H__
+#define __IMAGE_CACHE_H__
+
+#include <SDL.h>
+#include <SDL_thread.h>
+
+// Keeps copies of decoded images so showing the same file again skips reading and
+// decoding it. The cache owns its surfaces, get() and put() always copy.
+class ImageCache
+{
+public:
+    ImageCache();
+    ~ImageCache();
+
+    void setBudget( size_t budget );
+    size_t getBudget(){ return budget; };
+    bool isEnabled(){ return budget > 0; };
+
+    // Returns a new surface the caller owns, or NULL when the file is not cached
+    SDL_Surface *get( const char *file_name, bool *has_alpha, int *location );
+    // With generation, the surface is dropped if the cache was cleared or a file was
+    // removed since getGeneration() returned it, as it may be decoded from the old file
+    void put( const char *file_name, SDL_Surface *surface, bool has_alpha, int location,
+              const unsigned int *generation=NULL );
+    unsigned int getGeneration();
+    bool contains( const char *file_name );
+    // Drops file_name however its case and delimiters are written, as the file changed
+    void remove( const char *file_name );
+    void clear();
+
+    unsigned int getHitCount(){ return num_of_hits; };
+    unsigned int getMissCount(){ return num_of_misses; };
+    size_t getUsedSize(){ return used_size; };
+
+private:
+    enum { HASH_TABLE_SIZE = 256 };
+
+    struct Entry{
+        Entry *prev, *next; // LRU list, most recent first
+        Entry *hash_next;
+        char *file_name;
+        unsigned int hash;
+        SDL_Surface *surface;
+        bool has_alpha;
+        int location;
+        size_t size;
+    };
+
+    Entry *hash_table[HASH_TABLE_SIZE];
+    Entry *lru_head, *lru_tail;
+    size_t budget;
+    size_t used_size;
+    unsigned int num_of_hits, num_of_misses;
+    unsigned int generation; // changes in clear() and remove()
+    SDL_mutex *mutex;
+
+    static SDL_Surface *copySurface( SDL_Surface *surface );
+    Entry *find( const char *file_name, unsigned int hash );
+    void unlink( Entry *entry );
+    void remove( Entry *entry );
+    void evict( size_t size );
+};
+
+#endif // __IMAGE_CACHE_H__
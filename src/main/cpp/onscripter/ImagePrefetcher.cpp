@@ -0,0 +1,335 @@
+/* -*- C++ -*-
+ *
+ *  ImagePrefetcher.cpp - Decodes images used by the upcoming script lines in the background
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "ImagePrefetcher.h"
+#include <SDL_image.h>
+#include <string.h>
+#include <strings.h>
+#include <new>
+
+#define MAX_PREFETCH_NAME_LENGTH 255
+
+ImagePrefetcher::ImagePrefetcher()
+{
+    for ( int i=0 ; i<MAX_THREADS ; i++ ){
+        workers[i].owner = this;
+        workers[i].thread = NULL;
+        workers[i].reader = NULL;
+        workers[i].reload_flag = false;
+        workers[i].invalidate_flag = false;
+    }
+    num_of_threads = 0;
+    num_of_lines = 0;
+
+    cache = NULL;
+    format = NULL;
+    source_reader = NULL;
+    num_of_clones = 0;
+    scan_start = scan_next = scan_end = NULL;
+
+    request_head = num_of_requests = 0;
+    quit_flag = false;
+    mutex = SDL_CreateMutex();
+    cond = SDL_CreateCond();
+}
+
+ImagePrefetcher::~ImagePrefetcher()
+{
+    stop();
+    if (cond) SDL_DestroyCond( cond );
+    if (mutex) SDL_DestroyMutex( mutex );
+}
+
+void ImagePrefetcher::start( ImageCache *cache, SDL_PixelFormat *format, int num_of_threads )
+{
+    stop();
+    if ( num_of_threads > MAX_THREADS ) num_of_threads = MAX_THREADS;
+
+    this->cache = cache;
+    this->format = format;
+    for ( int i=0 ; i<num_of_threads ; i++ ){
+        workers[i].thread = SDL_CreateThread( workerMain, &workers[i] );
+        if ( workers[i].thread == NULL ) break;
+        this->num_of_threads++;
+    }
+}
+
+void ImagePrefetcher::stop()
+{
+    SDL_mutexP( mutex );
+    quit_flag = true;
+    SDL_CondBroadcast( cond );
+    SDL_mutexV( mutex );
+
+    for ( int i=0 ; i<num_of_threads ; i++ ){
+        SDL_WaitThread( workers[i].thread, NULL );
+        workers[i].thread = NULL;
+        if ( workers[i].reader ) delete workers[i].reader;
+        workers[i].reader = NULL;
+        workers[i].reload_flag = false;
+        workers[i].invalidate_flag = false;
+    }
+    num_of_threads = 0;
+    source_reader = NULL;
+
+    clear();
+    quit_flag = false;
+}
+
+void ImagePrefetcher::setReader( BaseReader *reader )
+{
+    if ( reader == source_reader || num_of_threads == 0 ) return;
+
+    // Requests were for the files of the previous archives
+    clear();
+
+    SDL_mutexP( mutex );
+    source_reader = reader;
+    for ( int i=0 ; i<num_of_threads ; i++ )
+        workers[i].reload_flag = true;
+    SDL_mutexV( mutex );
+}
+
+void ImagePrefetcher::releaseReader()
+{
+    if ( num_of_threads == 0 ) return;
+
+    SDL_mutexP( mutex );
+    while ( num_of_clones > 0 )
+        SDL_CondWait( cond, mutex );
+    // setReader() makes the workers clone the reader again, even at the same address
+    source_reader = NULL;
+    SDL_mutexV( mutex );
+}
+
+void ImagePrefetcher::invalidateFileCache( const char *file_name )
+{
+    SDL_mutexP( mutex );
+    for ( int i=0 ; i<num_of_threads ; i++ )
+        workers[i].invalidate_flag = true;
+    SDL_mutexV( mutex );
+}
+
+void ImagePrefetcher::scan( const char *current, const char *begin, const char *end )
+{
+    if ( num_of_threads == 0 || current < begin || current >= end ) return;
+
+    // Nothing to do until half of the previously scanned lines are executed
+    if ( scan_start <= current && current < scan_next ) return;
+
+    const char *buf = current, *half = NULL;
+    for ( int i=0 ; i<num_of_lines && buf < end ; i++ ){
+        if ( i == num_of_lines/2 ) half = buf;
+
+        while ( buf < end && *buf != 0x0a ){
+            if ( *buf == ';' ){
+                // Comment until the end of the line
+                while ( buf < end && *buf != 0x0a ) buf++;
+                break;
+            }
+            if ( *buf != '"' ){
+                buf++;
+                continue;
+            }
+
+            const char *str = ++buf;
+            while ( buf < end && *buf != '"' && *buf != 0x0a ) buf++;
+            if ( buf >= end || *buf != '"' ) break;
+            const char *str_end = buf++;
+
+            // Same tag syntax as ONScripter::parseTaggedString()
+            if ( *str == ':' ){
+                str++;
+                while ( str < str_end && *str == ' ' ) str++;
+                if ( str < str_end && *str == 's' ) continue;
+
+                const char *semicolon = str;
+                while ( semicolon < str_end && *semicolon != ';' ) semicolon++;
+                if ( semicolon == str_end ) continue;
+                if ( *str == 'm' ) request( str+1, semicolon-str-1 );
+                str = semicolon+1;
+            }
+            request( str, str_end-str );
+        }
+        if ( buf < end ) buf++;
+    }
+
+    scan_start = current;
+    scan_next = half ? half : buf;
+    scan_end = buf;
+}
+
+void ImagePrefetcher::clear()
+{
+    SDL_mutexP( mutex );
+    while ( num_of_requests > 0 ){
+        delete[] requests[request_head];
+        request_head = (request_head+1) % MAX_REQUESTS;
+        num_of_requests--;
+    }
+    SDL_mutexV( mutex );
+
+    scan_start = scan_next = scan_end = NULL;
+}
+
+int ImagePrefetcher::workerMain( void *data )
+{
+    Worker *worker = (Worker*)data;
+    worker->owner->run( worker );
+
+    return 0;
+}
+
+void ImagePrefetcher::run( Worker *worker )
+{
+    while (1){
+        SDL_mutexP( mutex );
+        while ( num_of_requests == 0 && !quit_flag )
+            SDL_CondWait( cond, mutex );
+        if ( quit_flag ){
+            SDL_mutexV( mutex );
+            break;
+        }
+
+        if ( worker->reload_flag ){
+            worker->reload_flag = false;
+            worker->invalidate_flag = false;
+            if ( worker->reader ) delete worker->reader;
+            worker->reader = NULL;
+
+            // releaseReader() waits for this before the script thread changes the reader
+            BaseReader *reader = source_reader;
+            if ( reader ){
+                num_of_clones++;
+                SDL_mutexV( mutex );
+                reader = reader->clone();
+                SDL_mutexP( mutex );
+                num_of_clones--;
+                SDL_CondBroadcast( cond );
+            }
+            worker->reader = reader;
+
+            // The requests may have been cleared or a new reader set meanwhile
+            SDL_mutexV( mutex );
+            continue;
+        }
+
+        bool invalidate_flag = worker->invalidate_flag;
+        worker->invalidate_flag = false;
+
+        char *file_name = requests[request_head];
+        request_head = (request_head+1) % MAX_REQUESTS;
+        num_of_requests--;
+        SDL_mutexV( mutex );
+
+        // Only the reader of this worker knows which files it found missing, forget them all
+        if ( invalidate_flag && worker->reader ) worker->reader->invalidateFileCache( NULL );
+
+        // Read before decoding, so a reset or a rewrite meanwhile drops the result
+        unsigned int generation = cache->getGeneration();
+        if ( worker->reader && !cache->contains( file_name ) ){
+            bool has_alpha = false;
+            int location = BaseReader::ARCHIVE_TYPE_NONE;
+            SDL_Surface *surface = decode( worker->reader, file_name, &has_alpha, &location );
+            if ( surface ){
+                cache->put( file_name, surface, has_alpha, location, &generation );
+                SDL_FreeSurface( surface );
+            }
+        }
+        delete[] file_name;
+    }
+}
+
+void ImagePrefetcher::request( const char *file_name, size_t len )
+{
+    if ( len == 0 || len > MAX_PREFETCH_NAME_LENGTH ) return;
+
+    const char *ext = file_name + len;
+    while ( ext > file_name && *(ext-1) != '.' ) ext--;
+    if ( ext == file_name ) return;
+    size_t ext_len = file_name + len - ext;
+    if ( !( ext_len == 3 && ( !strncasecmp( ext, "bmp", 3 ) ||
+                              !strncasecmp( ext, "png", 3 ) ||
+                              !strncasecmp( ext, "jpg", 3 ) ||
+                              !strncasecmp( ext, "gif", 3 ) ) ) &&
+         !( ext_len == 4 && !strncasecmp( ext, "jpeg", 4 ) ) )
+        return;
+
+    char *name = new char[len+1];
+    memcpy( name, file_name, len );
+    name[len] = '\0';
+
+    SDL_mutexP( mutex );
+    bool skip_flag = num_of_requests == MAX_REQUESTS || cache->contains( name );
+    for ( int i=0 ; i<num_of_requests && !skip_flag ; i++ )
+        if ( !strcmp( requests[(request_head+i) % MAX_REQUESTS], name ) ) skip_flag = true;
+
+    if ( skip_flag ){
+        delete[] name;
+    }
+    else{
+        requests[(request_head+num_of_requests) % MAX_REQUESTS] = name;
+        num_of_requests++;
+        SDL_CondSignal( cond );
+    }
+    SDL_mutexV( mutex );
+}
+
+SDL_Surface *ImagePrefetcher::decode( BaseReader *reader, const char *file_name, bool *has_alpha, int *location )
+{
+    // Same steps as ONScripter::createSurfaceFromFile() and loadImage()
+    size_t length = reader->getFileLength( file_name );
+    if ( length == 0 ) return NULL;
+
+    size_t view_length = 0;
+    const unsigned char *view = reader->getFileView( file_name, &view_length, location );
+    unsigned char *buffer = NULL;
+    if ( !view ){
+        buffer = new(std::nothrow) unsigned char[length];
+        if ( buffer == NULL ) return NULL;
+        reader->getFile( file_name, buffer, location );
+    }
+
+    SDL_RWops *src = view ? SDL_RWFromConstMem( view, view_length ) : SDL_RWFromMem( buffer, length );
+    int is_png = IMG_isPNG( src );
+
+    SDL_Surface *tmp = IMG_Load_RW( src, 0 );
+    const char *ext = strrchr( file_name, '.' );
+    if ( !tmp && ext && ( !strcmp( ext+1, "JPG" ) || !strcmp( ext+1, "jpg" ) ) )
+        tmp = IMG_LoadJPG_RW( src );
+
+    SDL_RWclose( src );
+    if ( buffer ) delete[] buffer;
+    if ( tmp == NULL ) return NULL;
+
+    *has_alpha = ( tmp->format->Amask || is_png );
+
+    if ( tmp->w * tmp->format->BytesPerPixel == tmp->pitch &&
+         tmp->format->BitsPerPixel == format->BitsPerPixel &&
+         tmp->format->Rmask == format->Rmask &&
+         tmp->format->Gmask == format->Gmask &&
+         tmp->format->Bmask == format->Bmask &&
+         tmp->format->Amask == format->Amask )
+        return tmp;
+
+    SDL_Surface *ret = SDL_ConvertSurface( tmp, format, SDL_SWSURFACE );
+    SDL_FreeSurface( tmp );
+
+    return ret;
+}
@@ -0,0 +1,87 @@
+/* -*- C++ -*-
+ *
+ *  ImagePrefetcher.h - Decodes images used by the upcoming script lines in the background
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __IMAGE_PREFETCHER_H__
+#define __IMAGE_PREFETCHER_H__
+
+#include <SDL.h>
+#include <SDL_thread.h>
+#include "BaseReader.h"
+#include "ImageCache.h"
+
+// Worker threads read and decode the images named in the next lines of the script into
+// the ImageCache so loadImage() finds them already decoded. Every worker has its own
+// clone of the reader because readers are not thread safe, made on the worker thread so
+// the script thread does not open and parse the archives again.
+class ImagePrefetcher
+{
+public:
+    enum { MAX_THREADS = 4,
+           MAX_REQUESTS = 64
+    };
+
+    ImagePrefetcher();
+    ~ImagePrefetcher();
+
+    void setNumLines( int num_of_lines ){ this->num_of_lines = num_of_lines; };
+    bool isEnabled(){ return num_of_lines > 0; };
+
+    // Called from the script thread
+    void start( ImageCache *cache, SDL_PixelFormat *format, int num_of_threads );
+    void stop();
+    void setReader( BaseReader *reader );
+    // Called before the reader given to setReader() is deleted or changed, waits until no
+    // worker is cloning it
+    void releaseReader();
+    // Called when file_name is written, the clones forget what they know about it
+    void invalidateFileCache( const char *file_name );
+    // Only the main script between begin and end is scanned, not the internal menu scripts
+    void scan( const char *current, const char *begin, const char *end );
+    void clear();
+
+private:
+    struct Worker{
+        ImagePrefetcher *owner;
+        SDL_Thread *thread;
+        BaseReader *reader;
+        bool reload_flag; // reader is cloned again from source_reader before the next request
+        bool invalidate_flag; // a file was written since reader was cloned
+    } workers[MAX_THREADS];
+    int num_of_threads;
+    int num_of_lines;
+
+    ImageCache *cache;
+    SDL_PixelFormat *format;
+    BaseReader *source_reader;
+    int num_of_clones; // workers cloning source_reader
+    const char *scan_start, *scan_next, *scan_end;
+
+    char *requests[MAX_REQUESTS];
+    int request_head, num_of_requests;
+    bool quit_flag;
+    SDL_mutex *mutex;
+    SDL_cond *cond;
+
+    static int workerMain( void *data );
+    void run( Worker *worker );
+    void request( const char *file_name, size_t len );
+    SDL_Surface *decode( BaseReader *reader, const char *file_name, bool *has_alpha, int *location );
+};
+
+#endif // __IMAGE_PREFETCHER_H__
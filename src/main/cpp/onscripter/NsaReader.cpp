@@ -26,8 +26,8 @@
 #define NSA_ARCHIVE_NAME "arc"
 #define NSA_ARCHIVE_NAME2 "arc%d"
 
-NsaReader::NsaReader( unsigned int nsa_offset, char *path, int archive_type, const unsigned char *key_table, bool try_parent )
-        :SarReader( path, key_table, try_parent )
+NsaReader::NsaReader( unsigned int nsa_offset, char *path, int archive_type, const unsigned char *key_table, bool try_parent, bool use_mmap )
+        :SarReader( path, key_table, try_parent, use_mmap )
 {
     sar_flag = true;
     this->nsa_offset = nsa_offset;
@@ -41,14 +41,23 @@ NsaReader::NsaReader( unsigned int nsa_offset, char *path, int archive_type, con
         nsa_archive_ext = "nsa";
 
     ns2_archive_ext = "ns2";
+    opened_nsa_path = NULL;
 }
 
 NsaReader::~NsaReader()
 {
+    if (opened_nsa_path) delete[] opened_nsa_path;
 }
 
 int NsaReader::open( const char *nsa_path )
 {
+    if (opened_nsa_path) delete[] opened_nsa_path;
+    opened_nsa_path = NULL;
+    if (nsa_path) {
+        opened_nsa_path = new char[strlen(nsa_path) + 1];
+        strcpy(opened_nsa_path, nsa_path);
+    }
+
     int ret = internalOpen(nsa_path);
     if (try_parent_flag) {
         if (ret < 0) {
@@ -88,6 +97,7 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
             archive_info_ns2[i].file_name = new char[strlen(archive_name)+1];
             memcpy(archive_info_ns2[i].file_name, archive_name, strlen(archive_name)+1);
             readArchive( &archive_info_ns2[i], ARCHIVE_TYPE_NS2, nsa_offset );
+            mapArchive( &archive_info_ns2[i] );
             num_of_ns2_archives = i+1;
         }
     }
@@ -115,6 +125,7 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
             ai->file_name = new char[strlen(archive_name)+1];
             memcpy(ai->file_name, archive_name, strlen(archive_name)+1);
             readArchive( ai, ARCHIVE_TYPE_NSA, nsa_offset );
+            mapArchive( ai );
             num_of_nsa_archives = i+1;
         }
     }
@@ -124,6 +135,15 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
     return 0;
 }
 
+BaseReader *NsaReader::clone()
+{
+    NsaReader *reader = new NsaReader( nsa_offset, archive_path, archive_type, key_table_flag?key_table:NULL, try_parent_flag, mmap_flag );
+    copyRegisteredCompressionType( reader );
+    reader->open( opened_nsa_path );
+
+    return reader;
+}
+
 int NsaReader::openForConvert( char *nsa_name, int archive_type, unsigned int nsa_offset )
 {
     sar_flag = false;
@@ -237,6 +257,37 @@ size_t NsaReader::getFile( const char *file_name, unsigned char *buffer, int *lo
     return 0;
 }
 
+const unsigned char *NsaReader::getFileView( const char *file_name, size_t *length, int *location )
+{
+    const unsigned char *view;
+
+    // Same search order as getFile, stop at the first archive that has the file
+    if ( hasIndependentFile( file_name ) ) return NULL;
+
+    for ( int i=0 ; i<num_of_ns2_archives ; i++ ){
+        if ( getFileViewSub( &archive_info_ns2[i], file_name, &view, length ) ){
+            if ( view && location ) *location = ARCHIVE_TYPE_NS2;
+            return view;
+        }
+    }
+
+    if ( getFileViewSub( &archive_info, file_name, &view, length ) ){
+        if ( view && location ) *location = ARCHIVE_TYPE_NSA;
+        return view;
+    }
+
+    for ( int i=0 ; i<num_of_nsa_archives ; i++ ){
+        if ( getFileViewSub( &archive_info2[i], file_name, &view, length ) ){
+            if ( view && location ) *location = ARCHIVE_TYPE_NSA;
+            return view;
+        }
+    }
+
+    if ( sar_flag ) return getSarFileView( file_name, length, location );
+
+    return NULL;
+}
+
 NsaReader::FileInfo NsaReader::getFileByIndex( unsigned int index )
 {
     int i;
@@ -31,15 +31,17 @@
 class NsaReader : public SarReader
 {
 public:
-    NsaReader( unsigned int nsa_offset=0, char *path=NULL, int archive_type=ARCHIVE_TYPE_NSA, const unsigned char *key_table=NULL, bool try_parent=false );
+    NsaReader( unsigned int nsa_offset=0, char *path=NULL, int archive_type=ARCHIVE_TYPE_NSA, const unsigned char *key_table=NULL, bool try_parent=false, bool use_mmap=false );
     ~NsaReader();
 
     int open( const char *nsa_path=NULL );
+    BaseReader *clone();
     const char *getArchiveName() const;
     int getNumFiles();
     
     size_t getFileLength( const char *file_name );
     size_t getFile( const char *file_name, unsigned char *buf, int *location=NULL );
+    const unsigned char *getFileView( const char *file_name, size_t *length, int *location=NULL );
     FileInfo getFileByIndex( unsigned int index );
 
     int openForConvert( char *nsa_name, int archive_type=ARCHIVE_TYPE_NSA, unsigned int nsa_offset=0 );
@@ -57,6 +59,7 @@ private:
     ArchiveInfo archive_info2[MAX_EXTRA_ARCHIVE];
     ArchiveInfo archive_info_ns2[MAX_NS2_ARCHIVE];
     char path_tmp[MAX_FILE_NAME_LENGTH*2+1];
+    char *opened_nsa_path; // nsa_path given to open(), used by clone()
 
     size_t getFileLengthSub( ArchiveInfo *ai, const char *file_name );
     int internalOpen( const char *nsa_path=NULL, int ns2_count_offset=0, int nsa_count_offset=-1  );
@@ -223,20 +223,37 @@ void ONScripter::initSDL()
     SDL_WM_SetCaption( wm_title_string, wm_icon_string );
 }
 
+void ONScripter::invalidateCachedFile( void *data, const char *path )
+{
+    // savescreenshot and the like may overwrite an image the script shows again
+    ONScripter *ons = (ONScripter*)data;
+    ons->image_cache.remove( path );
+    ons->image_prefetcher.invalidateFileCache( path );
+}
+
+void ONScripter::releasePrefetchReader( void *data )
+{
+    ((ImagePrefetcher*)data)->releaseReader();
+}
+
 void ONScripter::openAudio(int freq)
 {
     Mix_CloseAudio();
 
+    int audioBuf = DEFAULT_AUDIOBUF;
     int audioFreq =
 #if defined(ANDROID)
     // Default is 22050 because 44100 may crash in some games
     audio_high_quality ? 44100 : 22050;
+    // The rate and burst of the device in low latency mode
+    if ( audio_freq > 0 ) audioFreq = audio_freq;
+    if ( audio_buffer_size > 0 ) audioBuf = audio_buffer_size;
 #elif (defined(PDA_WIDTH) || defined(PDA_AUTOSIZE)) && !defined(PSP) && !defined(IPHONE) && !defined(IOS) && !defined(PANDORA)
     22050;
 #else
     44100;
 #endif
-    if ( Mix_OpenAudio( (freq<0)?audioFreq:freq, MIX_DEFAULT_FORMAT, MIX_DEFAULT_CHANNELS, DEFAULT_AUDIOBUF ) < 0 ){
+    if ( Mix_OpenAudio( (freq<0)?audioFreq:freq, MIX_DEFAULT_FORMAT, MIX_DEFAULT_CHANNELS, audioBuf ) < 0 ){
         logw(stderr, "Couldn't open audio device!\n"
                 "  reason: [%s].\n", SDL_GetError());
         audio_open_flag = false;
@@ -277,6 +294,13 @@ ONScripter::ONScripter()
     enable_wheeldown_advance_flag = false;
     disable_rescale_flag = false;
     edit_flag = false;
+    fast_forward_flag = false;
+    fast_forward_pending_flag = false;
+    num_of_fast_forward_lines = 0;
+    fast_forward_start_time = fast_forward_last_time = 0;
+    fast_forward_lines_per_second = 0;
+    skip_to_choice_flag = false;
+    skip_to_choice_unread_flag = false;
     key_exe_file = NULL;
     fullscreen_mode = false;
     window_mode = false;
@@ -284,10 +308,28 @@ ONScripter::ONScripter()
     sprite2_info = new AnimationInfo[MAX_SPRITE2_NUM];
     texture_info = new AnimationInfo[MAX_TEXTURE_NUM];
     smpeg_info = NULL;
+    font_cache.glyph_cache = &glyph_cache;
+    script_h.setFileWriteFunc( invalidateCachedFile, this );
+    script_h.setReaderChangeFunc( releasePrefetchReader, &image_prefetcher );
+    font_cache.glyph_prewarmer = &glyph_prewarmer;
     current_button_state.down_flag = false;
+    num_of_refreshed_frames = 0;
+    last_refreshed_pixels = 0;
+    total_refreshed_pixels = 0;
+
+    back_layer_surface = NULL;
+    back_layers = new AnimationInfo*[MAX_BACK_LAYER_NUM];
+    back_layer_states = new BackLayerState[MAX_BACK_LAYER_NUM];
+    memset( back_layer_states, 0, sizeof(BackLayerState)*MAX_BACK_LAYER_NUM );
+    back_layer_changed_time = new unsigned int[MAX_BACK_LAYER_NUM];
+    memset( back_layer_changed_time, 0, sizeof(unsigned int)*MAX_BACK_LAYER_NUM );
+    num_of_back_layers = num_of_cached_back_layers = 0;
+    num_of_back_layer_frames = 0;
 
 #ifdef ANDROID
     audio_high_quality = false;
+    audio_freq = 0;
+    audio_buffer_size = 0;
     setMenuLanguage("en");
 #endif
 
@@ -307,10 +349,16 @@ ONScripter::ONScripter()
 
 ONScripter::~ONScripter()
 {
+    image_prefetcher.stop();
+    glyph_prewarmer.stop();
+    band_threads.stop();
     reset();
 
     delete[] sprite_info;
     delete[] sprite2_info;
+    delete[] back_layers;
+    delete[] back_layer_states;
+    delete[] back_layer_changed_time;
 
 #if defined(USE_SDL_RENDERER)
     if (window) SDL_DestroyWindow(window);
@@ -402,11 +450,51 @@ void ONScripter::useParentResources()
     use_parent_resources = true;
 }
 
+void ONScripter::useMappedArchives()
+{
+    use_mmap_archives = true;
+}
+
+void ONScripter::setArchiveIndexDir(const char *path)
+{
+    SarReader::setArchiveIndexDir(path);
+}
+
+void ONScripter::setScriptCacheDir(const char *path)
+{
+    script_h.setScriptCacheDir(path);
+}
+
+void ONScripter::setImageCacheSize(size_t size)
+{
+    image_cache.setBudget(size);
+}
+
+void ONScripter::setGlyphCacheSize(size_t size)
+{
+    glyph_cache.setBudget(size);
+}
+
+void ONScripter::setGlyphPrewarmCount(int num)
+{
+    glyph_prewarmer.setNumGlyphs(num);
+}
+
+void ONScripter::setImagePrefetchLines(int num)
+{
+    image_prefetcher.setNumLines(num);
+}
+
 void ONScripter::enableEdit()
 {
     edit_flag = true;
 }
 
+void ONScripter::enableFastForward()
+{
+    fast_forward_flag = true;
+}
+
 void ONScripter::setKeyEXE(const char *filename)
 {
     setStr(&key_exe_file, filename);
@@ -418,6 +506,16 @@ void ONScripter::enableHQAudio()
     audio_high_quality = true;
 }
 
+void ONScripter::setAudioFreq(int freq)
+{
+    audio_freq = freq;
+}
+
+void ONScripter::setAudioBufferSize(int samples)
+{
+    audio_buffer_size = samples;
+}
+
 void ONScripter::setMenuLanguage(const char* languageStr)
 {
     ScriptParser::setMenuLanguage(languageStr);
@@ -465,6 +563,7 @@ int ONScripter::init()
     backup_surface       = AnimationInfo::allocSurface( screen_width, screen_height, texture_format );
     effect_src_surface   = AnimationInfo::allocSurface( screen_width, screen_height, texture_format );
     effect_dst_surface   = AnimationInfo::allocSurface( screen_width, screen_height, texture_format );
+    back_layer_surface   = AnimationInfo::allocSurface( screen_width, screen_height, texture_format );
 
 #if defined(USE_SDL_RENDERER)
     screenshot_surface = AnimationInfo::alloc32bitSurface( screen_device_width, screen_device_height, texture_format );
@@ -480,6 +579,11 @@ int ONScripter::init()
 
     tmp_image_buf = NULL;
     tmp_image_buf_length = 0;
+
+    // Decoded images are handed over through the image cache
+    if (image_prefetcher.isEnabled() && image_cache.isEnabled())
+        image_prefetcher.start(&image_cache, image_surface->format, SDL_GetCPUCount() > 2 ? 2 : 1);
+    band_threads.start(SDL_GetCPUCount());
     mean_size_of_loaded_images = 0;
     num_loaded_images = 10; // to suppress temporal increase at the start-up
 
@@ -586,6 +690,8 @@ int ONScripter::init()
 
     readToken();
 
+    // Requested by openFont() for every new font size
+    glyph_prewarmer.start(&glyph_cache, script_h.decoder, script_h.getScriptBuffer(), script_h.getScriptBufferEnd(), render_font_outline);
     if ( !sentence_font.openFont( &font_cache, font_file, screen_ratio1, screen_ratio2) ){
         loge( stderr, "can't open font file: %s\n", font_file );
         return -1;
@@ -624,6 +730,8 @@ void ONScripter::reset()
         resize_buffer = new unsigned char[16];
         resize_buffer_size = 16;
     }
+    image_prefetcher.clear();
+    image_cache.clear();
 
     current_over_button = -1;
     shift_over_button = -1;
@@ -756,8 +864,15 @@ void ONScripter::flush( int refresh_mode, SDL_Rect *rect, bool clear_dirty_flag,
     else{
         if ( rect ) dirty_rect.add( *rect );
 
-        if (dirty_rect.bounding_box.w * dirty_rect.bounding_box.h > 0)
-            flushDirect( dirty_rect.bounding_box, refresh_mode );
+        // REFRESH_NONE_MODE shows what effects and text have drawn
+        // over the whole bounding box of accumulation_surface
+        if ( refresh_mode == REFRESH_NONE_MODE ){
+            if (dirty_rect.bounding_box.w * dirty_rect.bounding_box.h > 0)
+                flushDirect( dirty_rect.bounding_box, refresh_mode );
+        }
+        else if ( dirty_rect.num_of_rects > 0 ){
+            flushDirect( dirty_rect.rects, dirty_rect.num_of_rects, refresh_mode );
+        }
     }
     
     if ( clear_dirty_flag ) dirty_rect.clear();
@@ -765,29 +880,134 @@ void ONScripter::flush( int refresh_mode, SDL_Rect *rect, bool clear_dirty_flag,
 
 void ONScripter::flushDirect( SDL_Rect &rect, int refresh_mode )
 {
-    //printf("flush %d: %d %d %d %d\n", refresh_mode, rect.x, rect.y, rect.w, rect.h );
-    
-    refreshSurface( accumulation_surface, &rect, refresh_mode );
+    flushDirect( &rect, 1, refresh_mode );
+}
+
+void ONScripter::flushDirect( SDL_Rect *rects, int num_of_rects, int refresh_mode )
+{
+    num_of_back_layer_frames++;
+    for ( int i=0 ; i<num_of_rects ; i++ ){
+        //printf("flush %d: %d %d %d %d\n", refresh_mode, rects[i].x, rects[i].y, rects[i].w, rects[i].h );
+        refreshSurface( accumulation_surface, &rects[i], refresh_mode );
+    }
+
+    // accumulation_surface is kept up to date, as the draw commands, bgcopy and
+    // effects read it, only showing it is deferred; the commands reading the
+    // screen call finishFastForward() first
+    if ( isFastForwarding() ){
+        fast_forward_pending_flag = true;
+        return;
+    }
+    if ( fast_forward_pending_flag ){
+        finishFastForward();
+        return;
+    }
+
+    updateScreen( rects, num_of_rects );
+}
+
+void ONScripter::updateScreen( SDL_Rect *rects, int num_of_rects )
+{
+    int i;
+    unsigned int pixels = 0;
+    for ( i=0 ; i<num_of_rects ; i++ )
+        pixels += rects[i].w * rects[i].h;
+    num_of_refreshed_frames++;
+    last_refreshed_pixels = pixels;
+    total_refreshed_pixels += pixels;
+
 #ifdef USE_SDL_RENDERER
+    // Only the damaged rects are uploaded, the whole texture is drawn once
     SDL_Rect src_rect = {0, 0, screen_width, screen_height};
     SDL_Rect dst_rect = {(device_width -screen_device_width )/2, 
                          (device_height-screen_device_height)/2,
                          screen_device_width, screen_device_height};
     SDL_LockSurface(accumulation_surface);
-    SDL_UpdateTexture(texture, &rect, (unsigned char*)accumulation_surface->pixels+accumulation_surface->pitch*rect.y+rect.x*sizeof(ONSBuf), accumulation_surface->pitch);
+    for ( i=0 ; i<num_of_rects ; i++ ){
+        SDL_Rect &rect = rects[i];
+        SDL_UpdateTexture(texture, &rect, (unsigned char*)accumulation_surface->pixels+accumulation_surface->pitch*rect.y+rect.x*sizeof(ONSBuf), accumulation_surface->pitch);
+    }
     SDL_UnlockSurface(accumulation_surface);
     SDL_RenderCopy(renderer, texture, &src_rect, &dst_rect);
     SDL_RenderPresent(renderer);
 #else
-    SDL_Rect dst_rect = rect;
-    if (AnimationInfo::doClipping(&dst_rect, &screen_rect) || (dst_rect.w==0 && dst_rect.h==0)) return;
-    SDL_BlitSurface( accumulation_surface, &dst_rect, screen_surface, &dst_rect );
-    if (dst_rect.w > 0 && dst_rect.h > 0) {
-        SDL_UpdateRect( screen_surface, dst_rect.x, dst_rect.y, dst_rect.w, dst_rect.h );
+    SDL_Rect dst_rects[MAX_DIRTY_RECTS];
+    int num_of_dst_rects = 0;
+    for ( i=0 ; i<num_of_rects && num_of_dst_rects<MAX_DIRTY_RECTS ; i++ ){
+        SDL_Rect dst_rect = rects[i];
+        if (AnimationInfo::doClipping(&dst_rect, &screen_rect) || (dst_rect.w==0 && dst_rect.h==0)) continue;
+        SDL_BlitSurface( accumulation_surface, &dst_rect, screen_surface, &dst_rect );
+        if (dst_rect.w > 0 && dst_rect.h > 0)
+            dst_rects[num_of_dst_rects++] = dst_rect;
     }
+    if (num_of_dst_rects > 0)
+        SDL_UpdateRects( screen_surface, num_of_dst_rects, dst_rects );
 #endif
 }
 
+bool ONScripter::skipToChoice(bool stop_at_unread)
+{
+    // already waiting for a choice
+    if ( event_mode & WAIT_BUTTON_MODE && !(event_mode & WAIT_INPUT_MODE) ) return false;
+
+    skip_to_choice_flag = true;
+    skip_to_choice_unread_flag = stop_at_unread;
+    script_h.checkNewLabel();
+    setInternalAutoMode(false);
+    setInternalSkipMode(true);
+
+    // leave the click wait as the 's' key does
+    if ( !(event_mode & WAIT_INPUT_MODE) ) return false;
+    stopAnimation( clickstr_state );
+
+    return true;
+}
+
+bool ONScripter::isUnreadLine()
+{
+    // The read lines when the script keeps them, else the labels in the saved label log
+    if ( kidokuskip_flag ) return !script_h.isKidoku();
+    if ( labellog_flag ) return script_h.checkNewLabel();
+
+    return false;
+}
+
+void ONScripter::countFastForwardLine()
+{
+    Uint32 current_time = SDL_GetTicks();
+    if ( num_of_fast_forward_lines++ == 0 )
+        fast_forward_start_time = current_time;
+    fast_forward_last_time = current_time;
+}
+
+void ONScripter::finishFastForward()
+{
+    if ( !fast_forward_pending_flag ) return;
+    fast_forward_pending_flag = false;
+
+    fast_forward_lines_per_second = getFastForwardLinesPerSecond();
+    num_of_fast_forward_lines = 0;
+
+    // Nothing has been shown while fast-forwarding
+    SDL_Rect rect = screen_rect;
+    updateScreen( &rect, 1 );
+}
+
+int ONScripter::getFastForwardLinesPerSecond()
+{
+    if ( num_of_fast_forward_lines > 0 && fast_forward_last_time != fast_forward_start_time )
+        return (int)( (double)num_of_fast_forward_lines * 1000 / (fast_forward_last_time - fast_forward_start_time) );
+
+    return fast_forward_lines_per_second;
+}
+
+void ONScripter::getRefreshStats(unsigned int *num_frames, unsigned int *last_pixels, unsigned int *average_pixels)
+{
+    *num_frames = num_of_refreshed_frames;
+    *last_pixels = last_refreshed_pixels;
+    *average_pixels = num_of_refreshed_frames ? (unsigned int)(total_refreshed_pixels / num_of_refreshed_frames) : 0;
+}
+
 void ONScripter::flushDirectYUV(SDL_Overlay *overlay)
 {
 #ifdef USE_SDL_RENDERER
@@ -948,10 +1168,17 @@ void ONScripter::executeLabel()
         }
 
         if ( kidokuskip_flag && skip_mode & SKIP_NORMAL && kidokumode_flag && !script_h.isKidoku() ) setInternalSkipMode(false);
+        else if ( skip_to_choice_flag && skip_to_choice_unread_flag && isUnreadLine() ) setInternalSkipMode(false);
+
+        if ( image_prefetcher.isEnabled() ){
+            image_prefetcher.setReader( script_h.cBR );
+            image_prefetcher.scan( script_h.getCurrent(), script_h.getScriptBuffer(), script_h.getScriptBufferEnd() );
+        }
 
         int ret = parseLine();
         if ( ret & (RET_SKIP_LINE | RET_EOL) ){
             if (ret & RET_SKIP_LINE) script_h.skipLine();
+            if ( isFastForwarding() ) countFastForwardLine();
             if (++current_line >= current_label_info.num_of_lines) break;
         }
 
@@ -991,39 +1218,34 @@ int ONScripter::parseLine( )
         return textCommand();
     }
 
-    if (cmd[0] != '_'){
-        if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-            UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
-            UserFuncLUT *uf = ufh.root.next;
-            while(uf){
-                if (!strcmp( uf->command, cmd )){
-                    if (uf->lua_flag){
+    // A leading '_' skips the defsub of the same name
+    bool user_func_flag = true;
+    if (cmd[0] == '_'){
+        cmd++;
+        user_func_flag = false;
+    }
+    unsigned int hash = hashString( cmd );
+
+    if (user_func_flag){
+        UserFuncLUT *uf = findUserFunc( cmd, hash );
+        if (uf){
+            if (uf->lua_flag){
 #ifdef USE_LUA
-                        if (lua_handler.callFunction(false, cmd))
-                            errorAndExit( lua_handler.error_str );
+                if (lua_handler.callFunction(false, cmd))
+                    errorAndExit( lua_handler.error_str );
 #endif
-                    }
-                    else{
-                        gosubReal( cmd, script_h.getNext() );
-                    }
-                    return RET_CONTINUE;
-                }
-                uf = uf->next;
             }
+            else{
+                gosubReal( cmd, script_h.getNext() );
+            }
+            return RET_CONTINUE;
         }
     }
-    else{
-        cmd++;
-    }
 
-    if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        FuncHash &fh = func_hash[cmd[0]-'a'];
-        for (int i=0 ; i<fh.num ; i++){
-            if ( !strcmp( fh.func[i].command, cmd ) ){
-                //if (saveon_flag) saveSaveFile(false);
-                return (this->*fh.func[i].method)();
-            }
-        }
+    FuncList method = findFunc( cmd, hash );
+    if (method){
+        //if (saveon_flag) saveSaveFile(false);
+        return (this->*method)();
     }
 
     if ( cmd[0] == 0x0a )
@@ -1434,6 +1656,8 @@ void ONScripter::setInternalSkipMode(bool enabled) {
         skip_mode |= SKIP_NORMAL;
     } else {
         skip_mode &= ~SKIP_NORMAL;
+        skip_to_choice_flag = false;
+        finishFastForward();
     }
 #ifdef ANDROID
     JNIWrapper wrapper(JNI_VM);
@@ -28,6 +28,11 @@
 #include "DirtyRect.h"
 #include "ButtonLink.h"
 #include "FontInfo.h"
+#include "ImageCache.h"
+#include "GlyphPrewarmer.h"
+#include "ImagePrefetcher.h"
+#include "BandThreads.h"
+#include "CommandHash.h"
 #include <SDL_image.h>
 #include <SDL_mixer.h>
 #if defined(USE_SMPEG)
@@ -58,6 +63,9 @@
 #define MIX_LOOPBGM_CHANNEL0 (ONS_MIX_CHANNELS+2)
 #define MIX_LOOPBGM_CHANNEL1 (ONS_MIX_CHANNELS+3)
 
+// smaller blends are done on the script thread alone
+#define BLEND_THREADS_MIN_PIXELS (64*64)
+
 #define DEFAULT_WM_TITLE "ONScripter"
 #define DEFAULT_WM_ICON  "ONScripter"
 
@@ -161,6 +169,8 @@ public:
     void setSaveDir(const char *path);
 #ifdef ANDROID
     void enableHQAudio();
+    void setAudioFreq(int freq);
+    void setAudioBufferSize(int samples);
 #endif
     void setFullscreenMode();
     void setWindowMode();
@@ -168,9 +178,22 @@ public:
     void enableWheelDownAdvance();
     void disableRescale();
     void useParentResources();
+    void useMappedArchives();
+    void setArchiveIndexDir(const char *path);
+    void setScriptCacheDir(const char *path);
+    void setImageCacheSize(size_t size);
+    void setImagePrefetchLines(int num);
+    void setGlyphCacheSize(size_t size);
+    void setGlyphPrewarmCount(int num);
     void renderFontOutline();
     void enableEdit();
+    void enableFastForward();
     void setKeyEXE(const char *path);
+    unsigned int getImageCacheHitCount(){ return image_cache.getHitCount(); };
+    unsigned int getImageCacheMissCount(){ return image_cache.getMissCount(); };
+    void getLogStats(int *num_logs, unsigned int *num_lookups, unsigned int *num_compares){ script_h.getLogStats(num_logs, num_lookups, num_compares); };
+    void getRefreshStats(unsigned int *num_frames, unsigned int *last_pixels, unsigned int *average_pixels);
+    int  getFastForwardLinesPerSecond();
     int  getWidth(){ return screen_width;};
     int  getHeight(){return screen_height;};
     ButtonState &getCurrentButtonState(){return current_button_state;};
@@ -190,12 +213,10 @@ public:
         char command[30];
         FuncList method;
     };
-    struct FuncHash{
-        FuncLUT *func;
-        int num;
-    } func_hash['z'-'a'+1];
+    CommandHash func_hash;
 
     void makeFuncLUT();
+    FuncList findFunc( const char *cmd, unsigned int hash );
 
     int yesnoboxCommand();
     int wavestopCommand();
@@ -395,6 +416,7 @@ public:
     void stopSMPEG();
 
     void startAndloadSaveFile(int no);
+    void startSkipToChoice(bool stop_at_unread);
     
 private:
     // ----------------------------------------
@@ -430,6 +452,8 @@ private:
     char *key_exe_file;
 #ifdef ANDROID
     bool audio_high_quality;
+    int audio_freq; // 0 for the default rate
+    int audio_buffer_size; // in samples, 0 for DEFAULT_AUDIOBUF
 #endif
 
     // variables relevant to button
@@ -488,12 +512,16 @@ private:
     int  shortcut_mouse_line;
 
     void initSDL();
+    static void invalidateCachedFile( void *data, const char *path );
+    static void releasePrefetchReader( void *data );
     void openAudio(int freq=-1);
     void reset(); // called on definereset
     void resetSub(); // called on reset
     void resetSentenceFont();
     void flush( int refresh_mode, SDL_Rect *rect=NULL, bool clear_dirty_flag=true, bool direct_flag=false );
     void flushDirect( SDL_Rect &rect, int refresh_mode );
+    void flushDirect( SDL_Rect *rects, int num_of_rects, int refresh_mode );
+    void updateScreen( SDL_Rect *rects, int num_of_rects );
     void flushDirectYUV(SDL_Overlay *overlay);
     void mouseOverCheck( int x, int y );
 public:
@@ -586,6 +614,9 @@ private:
     // ----------------------------------------
     // variables and methods relevant to effect
     DirtyRect dirty_rect; // only this region is updated
+    unsigned int num_of_refreshed_frames;
+    unsigned int last_refreshed_pixels; // sent to the screen by the last updateScreen()
+    unsigned long long total_refreshed_pixels;
     int  effect_counter, effect_duration; // counter in each effect
     int  effect_timer_resolution;
     int  effect_start_time;
@@ -701,9 +732,12 @@ private:
     unsigned long tmp_image_buf_length;
     unsigned long mean_size_of_loaded_images;
     unsigned long num_loaded_images;
+    ImageCache image_cache;
+    ImagePrefetcher image_prefetcher;
 
     unsigned char *resize_buffer;
     size_t resize_buffer_size;
+    BandThreads band_threads; // alphaBlend() and resizeSurface()
 
     SDL_Surface *loadImage(char *filename, bool *has_alpha=NULL, int *location=NULL, unsigned char *alpha=NULL);
     SDL_Surface *createRectangleSurface(char *filename, bool *has_alpha, unsigned char *alpha=NULL);
@@ -713,10 +747,36 @@ private:
     void alphaBlend( SDL_Surface *mask_surface,
                      int trans_mode, Uint32 mask_value = 255, SDL_Rect *clip=NULL );
     void alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
-                         SDL_Surface *src_surface, SDL_Color &color, SDL_Rect *clip, bool rotate_flag );
+                         SDL_Surface *src_surface, SDL_Color &color, SDL_Rect *clip, bool rotate_flag, SDL_Rect *src_rect=NULL );
     void makeNegaSurface( SDL_Surface *surface, SDL_Rect &clip );
     void makeMonochromeSurface( SDL_Surface *surface, SDL_Rect &clip );
     void refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int refresh_mode = REFRESH_NORMAL_MODE );
+
+    // Background, sprites behind the text window and tachi, in the order of drawing.
+    // Layers not changed for a while are kept composited in back_layer_surface.
+    enum { MAX_BACK_LAYER_NUM = MAX_SPRITE_NUM + 4,
+           BACK_LAYER_STABLE_FRAMES = 8
+    };
+    struct BackLayerState{
+        SDL_Surface *surface;
+        unsigned int generation;
+        int pos[4];
+        int cell, trans, blending_mode;
+        int affine_flag;
+        int affine_pos[4];
+        int bounding_rect[4];
+        int mat[4];
+    };
+    SDL_Surface *back_layer_surface;
+    AnimationInfo **back_layers; // NULL if not drawn
+    BackLayerState *back_layer_states;
+    unsigned int *back_layer_changed_time; // num_of_back_layer_frames at the last change
+    int num_of_back_layers;
+    int num_of_cached_back_layers;
+    unsigned int num_of_back_layer_frames; // counted once per flushDirect(), however many rects it refreshes
+    void getBackLayerState( AnimationInfo *anim, BackLayerState &state );
+    int  updateBackLayerCache( int top );
+    void drawBackLayers( SDL_Surface *surface, int start, int end, SDL_Rect &clip );
     void refreshSprite( int sprite_no, bool active_flag, int cell_no, SDL_Rect *check_src_rect, SDL_Rect *check_dst_rect );
     void createBackground();
 
@@ -835,6 +895,24 @@ private:
     };
     int  skip_mode;
 
+    // While skipping with fast_forward_flag, the script runs without showing
+    // any frame until skipping stops or the script waits for input.
+    bool fast_forward_flag;
+    bool fast_forward_pending_flag; // the screen has not been shown since the last flush
+    unsigned int num_of_fast_forward_lines;
+    Uint32 fast_forward_start_time, fast_forward_last_time;
+    int  fast_forward_lines_per_second; // of the last fast-forward
+    bool isFastForwarding(){ return (fast_forward_flag || skip_to_choice_flag) && (skip_mode & SKIP_NORMAL); };
+    void countFastForwardLine();
+    void finishFastForward();
+
+    // Skip mode started by startSkipToChoice(), always fast-forwarding. It ends with
+    // skip mode, which select, btnwait and the click commands turn off.
+    bool skip_to_choice_flag;
+    bool skip_to_choice_unread_flag; // stop at the first line not read before
+    bool skipToChoice(bool stop_at_unread);
+    bool isUnreadLine();
+
     enum { TRAP_NONE        = 0,
            TRAP_LEFT_CLICK  = 1,
            TRAP_RIGHT_CLICK = 2,
@@ -864,11 +942,13 @@ private:
     bool draw_cursor_flag;
     int  indent_offset;
     FontInfo::FontContainer font_cache;
+    GlyphCache glyph_cache;
+    GlyphPrewarmer glyph_prewarmer;
 
     void setwindowCore();
     
-    void shiftHalfPixelX(SDL_Surface *surface);
-    void shiftHalfPixelY(SDL_Surface *surface);
+    void shiftHalfPixelX(SDL_Surface *surface, SDL_Rect &rect);
+    void shiftHalfPixelY(SDL_Surface *surface, SDL_Rect &rect);
     void drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color &color, char *text, int xy[2], AnimationInfo *cache_info, SDL_Rect *clip, SDL_Rect &dst_rect, ScriptDecoder* decoder  );
     void drawChar( char* text, FontInfo *info, bool flush_flag, bool lookback_flag, SDL_Surface *surface, AnimationInfo *cache_info, SDL_Rect *clip=NULL, ScriptDecoder* decoder=NULL );
     void drawString( const char *str, uchar3 color, FontInfo *info, bool flush_flag, SDL_Surface *surface, SDL_Rect *rect = NULL, AnimationInfo *cache_info=NULL, bool pack_hankaku=true, bool single_line=false, ScriptDecoder* decoder=NULL );
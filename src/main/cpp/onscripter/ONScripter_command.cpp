@@ -108,7 +108,7 @@ int ONScripter::waveCommand()
 int ONScripter::waittimerCommand()
 {
     int count = script_h.readInt() + internal_timer - SDL_GetTicks();
-    if (count < 0) count = 0;
+    if (count < 0 || isFastForwarding()) count = 0;
 
     event_mode = WAIT_TIMER_MODE;
     waitEvent( count );
@@ -118,8 +118,11 @@ int ONScripter::waittimerCommand()
 
 int ONScripter::waitCommand()
 {
+    int count = script_h.readInt();
+    if (isFastForwarding()) count = 0;
+
     event_mode = WAIT_TIMER_MODE;
-    waitEvent( script_h.readInt() );
+    waitEvent( count );
 
     return RET_CONTINUE;
 }
@@ -514,6 +517,7 @@ int ONScripter::sp_rgb_gradationCommand()
 #endif                
         }
     }
+    ai->generation++;
     
     SDL_UnlockSurface(surface);
     
@@ -1285,6 +1289,7 @@ int ONScripter::playCommand()
 
 int ONScripter::ofscopyCommand()
 {
+    finishFastForward(); // the screen is not updated while fast-forwarding
 #ifdef USE_SDL_RENDERER
     SDL_Surface *tmp_surface = AnimationInfo::alloc32bitSurface( screen_device_width, screen_device_height, texture_format );
     SDL_Rect rect = {(device_width -screen_device_width)/2,
@@ -2422,6 +2427,7 @@ int ONScripter::getscreenshotCommand()
 
     screenshot_w = w;
     screenshot_h = h;
+    finishFastForward(); // the screen is not updated while fast-forwarding
 #ifdef USE_SDL_RENDERER
     SDL_Rect rect = {(device_width -screen_device_width)/2, 
                      (device_height-screen_device_height)/2,
@@ -3260,6 +3266,7 @@ int ONScripter::cselbtnCommand()
 
     sentence_font.ttf_font[0] = csel_info.ttf_font[0];
     sentence_font.ttf_font[1] = csel_info.ttf_font[1];
+    sentence_font.font_container = csel_info.font_container;
 
     return RET_CONTINUE;
 }
@@ -35,7 +35,7 @@ bool ONScripter::setEffect( EffectLink *effect, bool generate_effect_dst, bool u
         refreshSurface(backup_surface, &dirty_rect.bounding_box, REFRESH_NORMAL_MODE);
     
     int effect_no = effect->effect;
-    if (effect_cut_flag && (skip_mode & SKIP_NORMAL || ctrl_pressed_status)) 
+    if ((effect_cut_flag && (skip_mode & SKIP_NORMAL || ctrl_pressed_status)) || isFastForwarding())
         effect_no = 1;
 
     SDL_BlitSurface( accumulation_surface, NULL, effect_src_surface, NULL );
@@ -78,7 +78,7 @@ bool ONScripter::setEffect( EffectLink *effect, bool generate_effect_dst, bool u
     effect_duration = effect->duration;
     if (skip_mode & SKIP_NORMAL || ctrl_pressed_status){
         // shorten the duration of effects while skipping
-        if ( effect_cut_flag ) effect_duration = 0;
+        if ( effect_cut_flag || isFastForwarding() ) effect_duration = 0;
         else if (effect_duration > 100){
             effect_duration = effect_duration / 10;
         } else if (effect_duration > 10){
@@ -100,7 +100,7 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
     effect_start_time_old = effect_start_time;
     
     int effect_no = effect->effect;
-    if (effect_cut_flag && (skip_mode & SKIP_NORMAL || ctrl_pressed_status)) 
+    if ((effect_cut_flag && (skip_mode & SKIP_NORMAL || ctrl_pressed_status)) || isFastForwarding())
         effect_no = 1;
 
     int i, amp;
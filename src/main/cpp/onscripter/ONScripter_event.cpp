@@ -35,6 +35,7 @@
 #define ONS_BREAK_EVENT   (SDL_USEREVENT+5)
 #define ONS_BGMFADE_EVENT (SDL_USEREVENT+6)
 #define ONS_LOAD_EVENT    (SDL_USEREVENT+7)
+#define ONS_SKIP_TO_CHOICE_EVENT (SDL_USEREVENT+8)
 
 // This sets up the fade event flag for use in bgm fadeout and fadein.
 #define BGM_FADEOUT 0
@@ -370,6 +371,7 @@ void ONScripter::waitEventSub(int count)
 bool ONScripter::waitEvent( int count )
 {
     if (count > 0) count += SDL_GetTicks();
+    if (count != 0) finishFastForward(); // show the screen before waiting
     
     while(1){
         waitEventSub( count );
@@ -429,6 +431,14 @@ void ONScripter::startAndloadSaveFile(int no)
     SDL_PushEvent(&event);
 }
 
+void ONScripter::startSkipToChoice(bool stop_at_unread)
+{
+    SDL_Event event;
+    event.type = ONS_SKIP_TO_CHOICE_EVENT;
+    event.user.code = stop_at_unread ? 1 : 0;
+    SDL_PushEvent(&event);
+}
+
 /* **************************************** *
  * Event handlers
  * **************************************** */
@@ -484,6 +494,7 @@ bool ONScripter::mousePressEvent( SDL_MouseButtonEvent *event )
 
         // When menu might be triggered, copy screen to screenshot
         if ( screenshot_folder && (event_mode & MENU_MODE) == MENU_MODE ){
+            finishFastForward();
 #ifdef USE_SDL_RENDERER
             SDL_Rect rect = {(device_width -screen_device_width)/2,
                      (device_height-screen_device_height)/2,
@@ -924,6 +935,7 @@ bool ONScripter::keyPressEvent( SDL_KeyboardEvent *event )
 
             // When menu might be triggered, copy screen to screenshot
             if ( screenshot_folder && (event_mode & MENU_MODE) == MENU_MODE ){
+                finishFastForward();
 #ifdef USE_SDL_RENDERER
                 SDL_Rect rect = {(device_width -screen_device_width)/2,
                      (device_height-screen_device_height)/2,
@@ -1411,6 +1423,9 @@ void ONScripter::runEventLoop()
                 break_flag = false;
             }
             break;
+          case ONS_SKIP_TO_CHOICE_EVENT:
+            if ( skipToChoice( event.user.code != 0 ) ) return;
+            break;
           case SDL_QUIT:
             endCommand();
             break;
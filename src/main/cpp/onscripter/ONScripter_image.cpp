@@ -32,10 +32,26 @@ SDL_Surface *ONScripter::loadImage(char *filename, bool *has_alpha, int *locatio
     SDL_Surface *tmp = NULL;
     if (location) *location = BaseReader::ARCHIVE_TYPE_NONE;
 
+    bool file_has_alpha = false, cache_flag = false;
+    int file_location = BaseReader::ARCHIVE_TYPE_NONE;
     if (filename[0] == '>')
         tmp = createRectangleSurface(filename, has_alpha, alpha);
-    else
-        tmp = createSurfaceFromFile(filename, has_alpha, location);
+    else{
+        // Reuse the decoded image when the same file was shown before
+        tmp = image_cache.get(filename, &file_has_alpha, &file_location);
+        if (tmp){
+            if (filelog_flag)
+                script_h.findAndAddLog(script_h.log_info[ScriptHandler::FILE_LOG], filename, true);
+        }
+        else{
+            tmp = createSurfaceFromFile(filename, &file_has_alpha, &file_location);
+            cache_flag = true;
+        }
+        if (tmp){
+            if (has_alpha) *has_alpha = file_has_alpha;
+            if (location) *location = file_location;
+        }
+    }
     if (tmp == NULL) return NULL;
 
     SDL_Surface *ret;
@@ -51,6 +67,9 @@ SDL_Surface *ONScripter::loadImage(char *filename, bool *has_alpha, int *locatio
         ret = SDL_ConvertSurface(tmp, image_surface->format, SDL_SWSURFACE);
         SDL_FreeSurface(tmp);
     }
+
+    if (cache_flag && ret)
+        image_cache.put(filename, ret, file_has_alpha, file_location);
     
     return ret;
 }
@@ -144,31 +163,37 @@ SDL_Surface *ONScripter::createSurfaceFromFile(char *filename, bool *has_alpha,
         script_h.findAndAddLog(script_h.log_info[ScriptHandler::FILE_LOG], filename, true);
     //printf(" ... loading %s length %ld\n", filename, length );
 
-    mean_size_of_loaded_images += length*6/5; // reserve 20% larger size
-    num_loaded_images++;
-    if (tmp_image_buf_length < mean_size_of_loaded_images/num_loaded_images){
-        tmp_image_buf_length = mean_size_of_loaded_images/num_loaded_images;
-        if (tmp_image_buf) delete[] tmp_image_buf;
-        tmp_image_buf = NULL;
-    }
+    // Decode straight from the mapped archive when the image is stored without compression
+    size_t view_length = 0;
+    const unsigned char *view = script_h.cBR->getFileView(filename, &view_length, location);
 
     unsigned char *buffer = NULL;
-    if (length > tmp_image_buf_length){
-        buffer = new(std::nothrow) unsigned char[length];
-        if (buffer == NULL){
-            loge( stderr, "failed to load [%s] because file size [%lu] is too large.\n", filename, length);
-            return NULL;
+    if (!view){
+        mean_size_of_loaded_images += length*6/5; // reserve 20% larger size
+        num_loaded_images++;
+        if (tmp_image_buf_length < mean_size_of_loaded_images/num_loaded_images){
+            tmp_image_buf_length = mean_size_of_loaded_images/num_loaded_images;
+            if (tmp_image_buf) delete[] tmp_image_buf;
+            tmp_image_buf = NULL;
         }
+
+        if (length > tmp_image_buf_length){
+            buffer = new(std::nothrow) unsigned char[length];
+            if (buffer == NULL){
+                loge( stderr, "failed to load [%s] because file size [%lu] is too large.\n", filename, length);
+                return NULL;
+            }
+        }
+        else{
+            if (!tmp_image_buf) tmp_image_buf = new unsigned char[tmp_image_buf_length];
+            buffer = tmp_image_buf;
+        }
+
+        script_h.cBR->getFile(filename, buffer, location);
     }
-    else{
-        if (!tmp_image_buf) tmp_image_buf = new unsigned char[tmp_image_buf_length];
-        buffer = tmp_image_buf;
-    }
-        
-    script_h.cBR->getFile(filename, buffer, location);
     char *ext = strrchr(filename, '.');
 
-    SDL_RWops *src = SDL_RWFromMem(buffer, length);
+    SDL_RWops *src = view ? SDL_RWFromConstMem(view, view_length) : SDL_RWFromMem(buffer, length);
     int is_png = IMG_isPNG(src);
 
     SDL_Surface *tmp = IMG_Load_RW(src, 0);
@@ -186,7 +211,7 @@ SDL_Surface *ONScripter::createSurfaceFromFile(char *filename, bool *has_alpha,
 
     SDL_RWclose(src);
 
-    if (buffer != tmp_image_buf) delete[] buffer;
+    if (buffer && buffer != tmp_image_buf) delete[] buffer;
 
     if (!tmp)
         logw( stderr, " *** can't load file [%s] ***\n", filename );
@@ -209,9 +234,9 @@ int ONScripter::resizeSurface( SDL_Surface *src, SDL_Surface *dst )
         resize_buffer = new unsigned char[len];
         resize_buffer_size = len;
     }
-    resizeImage( (unsigned char*)dst_buffer, dst->w, dst->h, dst->w * 4,
-                 (unsigned char*)src_buffer, src->w, src->h, src->w * 4,
-                 4, resize_buffer, src->w * 4, false );
+    resizeImageMT( (unsigned char*)dst_buffer, dst->w, dst->h, dst->w * 4,
+                   (unsigned char*)src_buffer, src->w, src->h, src->w * 4,
+                   4, resize_buffer, src->w * 4, false, &band_threads );
 
     SDL_UnlockSurface( src );
     SDL_UnlockSurface( dst );
@@ -242,6 +267,119 @@ int ONScripter::resizeSurface( SDL_Surface *src, SDL_Surface *dst )
 //                       (*src2_buffer & 0x00ff00) * mask2) >> 8) & 0x00ff00;
 #endif
 
+#if !defined(BPP16) && ( defined(__ARM_NEON__) || defined(__ARM_NEON) )
+#include <arm_neon.h>
+// BLEND_PIXEL_MASK() on 4 pixels with the same 32 bit arithmetic
+#define BLEND_PIXEL_MASK_NEON(){\
+    uint32x4_t s1 = vld1q_u32( src1_buffer );\
+    uint32x4_t s2 = vld1q_u32( src2_buffer );\
+    uint32x4_t temp = vandq_u32( s1, rb_mask );\
+    uint32x4_t mask_rb = vandq_u32( vaddq_u32( vshrq_n_u32( vmulq_u32( vsubq_u32( vandq_u32( s2, rb_mask ), temp ), mask2_4 ), 8 ), temp ), rb_mask );\
+    temp = vandq_u32( s1, g_mask );\
+    uint32x4_t mask_g  = vandq_u32( vaddq_u32( vshrq_n_u32( vmulq_u32( vsubq_u32( vandq_u32( s2, g_mask ), temp ), mask2_4 ), 8 ), temp ), g_mask );\
+    vst1q_u32( dst_buffer, vorrq_u32( mask_rb, mask_g ) );\
+}
+#define USE_BLEND_PIXEL_MASK_NEON
+#endif
+
+struct AlphaBlendJob{
+    SDL_Surface *src1_surface, *src2_surface, *dst_surface, *mask_surface;
+    SDL_Rect rect;
+    int screen_width;
+    bool mask_flag;
+    Uint32 lowest_mask, overflow_mask, mask_value;
+};
+
+// rows [row_start, row_end) of the clipped rectangle
+static void alphaBlendRows( void *data, int row_start, int row_end )
+{
+    AlphaBlendJob *job = (AlphaBlendJob*)data;
+    SDL_Rect &rect = job->rect;
+    SDL_Surface *mask_surface = job->mask_surface;
+    int screen_width = job->screen_width;
+    typedef AnimationInfo::ONSBuf ONSBuf;
+    Uint32 lowest_mask = job->lowest_mask;
+    Uint32 overflow_mask = job->overflow_mask;
+    Uint32 mask_value = job->mask_value;
+    int i, j;
+
+    ONSBuf *src1_buffer = (ONSBuf *)job->src1_surface->pixels + job->src1_surface->w * rect.y + rect.x + screen_width * row_start;
+    ONSBuf *src2_buffer = (ONSBuf *)job->src2_surface->pixels + job->src2_surface->w * rect.y + rect.x + screen_width * row_start;
+    ONSBuf *dst_buffer  = (ONSBuf *)job->dst_surface->pixels  + job->dst_surface->w  * rect.y + rect.x + screen_width * row_start;
+
+#if defined(USE_BLEND_PIXEL_MASK_NEON)
+    uint32x4_t rb_mask = vdupq_n_u32( 0xff00ff );
+    uint32x4_t g_mask  = vdupq_n_u32( 0x00ff00 );
+#endif
+
+    if ( job->mask_flag ){
+#if defined(USE_BLEND_PIXEL_MASK_NEON)
+        uint32x4_t lowest_mask_4   = vdupq_n_u32( lowest_mask );
+        uint32x4_t overflow_mask_4 = vdupq_n_u32( overflow_mask );
+        uint32x4_t mask_value_4    = vdupq_n_u32( mask_value );
+#endif
+        for ( i=row_start; i<row_end ; i++ ) {
+            ONSBuf *mask_buffer = (ONSBuf *)mask_surface->pixels + mask_surface->w * ((rect.y+i)%mask_surface->h);
+
+            int j2 = rect.x;
+            j = 0;
+#if defined(USE_BLEND_PIXEL_MASK_NEON)
+            // 4 pixels at once while the mask is read without wrapping around
+            while ( j+4 <= rect.w && j2+3 <= mask_surface->w ){
+                uint32x4_t mask = vandq_u32( vld1q_u32( mask_buffer + j2 ), lowest_mask_4 );
+                uint32x4_t mask2_4 = vsubq_u32( mask_value_4, mask );
+                mask2_4 = vbslq_u32( vtstq_u32( mask2_4, overflow_mask_4 ), lowest_mask_4, mask2_4 );
+                mask2_4 = vandq_u32( mask2_4, vcgtq_u32( mask_value_4, mask ) );
+                BLEND_PIXEL_MASK_NEON();
+                src1_buffer+=4; src2_buffer+=4; dst_buffer+=4;
+                j += 4;
+
+                j2 += 4;
+                if (j2 > mask_surface->w) j2 = 0;
+            }
+#endif
+            for ( ; j<rect.w ; j++ ){
+                Uint32 mask2 = 0;
+                Uint32 mask = *(mask_buffer + j2) & lowest_mask;
+                if ( mask_value > mask ){
+                    mask2 = mask_value - mask;
+                    if ( mask2 & overflow_mask ) mask2 = lowest_mask;
+                }
+                BLEND_PIXEL_MASK();
+                src1_buffer++; src2_buffer++; dst_buffer++;
+
+                if (j2 >= mask_surface->w) j2 = 0;
+                else                       j2++;
+            }
+            src1_buffer += screen_width - rect.w;
+            src2_buffer += screen_width - rect.w;
+            dst_buffer  += screen_width - rect.w;
+        }
+    }else{ // ALPHA_BLEND_CONST
+        Uint32 mask2 = mask_value & lowest_mask;
+#if defined(USE_BLEND_PIXEL_MASK_NEON)
+        uint32x4_t mask2_4 = vdupq_n_u32( mask2 );
+#endif
+
+        for ( i=row_start; i<row_end ; i++ ) {
+            j = rect.w;
+#if defined(USE_BLEND_PIXEL_MASK_NEON)
+            for ( ; j>=4 ; j-=4 ){
+                BLEND_PIXEL_MASK_NEON();
+                src1_buffer+=4; src2_buffer+=4; dst_buffer+=4;
+            }
+#endif
+            for ( ; j!=0 ; j-- ){
+                BLEND_PIXEL_MASK();
+                src1_buffer++; src2_buffer++; dst_buffer++;
+            }
+            src1_buffer += screen_width - rect.w;
+            src2_buffer += screen_width - rect.w;
+            dst_buffer  += screen_width - rect.w;
+        }
+    }
+}
+
 // alphaBlend
 // dst: accumulation_surface
 // src1: effect_src_surface
@@ -250,7 +388,6 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
                                   int trans_mode, Uint32 mask_value, SDL_Rect *clip )
 {
     SDL_Rect rect = screen_rect;
-    int i, j;
 
     /* ---------------------------------------- */
     /* clipping */
@@ -265,10 +402,6 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
     SDL_LockSurface( accumulation_surface );
     if ( mask_surface ) SDL_LockSurface( mask_surface );
     
-    ONSBuf *src1_buffer = (ONSBuf *)effect_src_surface->pixels   + effect_src_surface->w * rect.y + rect.x;
-    ONSBuf *src2_buffer = (ONSBuf *)effect_dst_surface->pixels   + effect_dst_surface->w * rect.y + rect.x;
-    ONSBuf *dst_buffer  = (ONSBuf *)accumulation_surface->pixels + accumulation_surface->w * rect.y + rect.x;
-
     SDL_PixelFormat *fmt = accumulation_surface->format;
     Uint32 lowest_mask;
     Uint8  lowest_loss;
@@ -289,42 +422,24 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
 
     mask_value >>= lowest_loss;
 
-    if ( (trans_mode == ALPHA_BLEND_FADE_MASK ||
-          trans_mode == ALPHA_BLEND_CROSSFADE_MASK) && mask_surface ){
-        for ( i=0; i<rect.h ; i++ ) {
-            ONSBuf *mask_buffer = (ONSBuf *)mask_surface->pixels + mask_surface->w * ((rect.y+i)%mask_surface->h);
-
-            int j2 = rect.x;
-            for ( j=0 ; j<rect.w ; j++ ){
-                Uint32 mask2 = 0;
-                Uint32 mask = *(mask_buffer + j2) & lowest_mask;
-                if ( mask_value > mask ){
-                    mask2 = mask_value - mask;
-                    if ( mask2 & overflow_mask ) mask2 = lowest_mask;
-                }
-                BLEND_PIXEL_MASK();
-                src1_buffer++; src2_buffer++; dst_buffer++;
-
-                if (j2 >= mask_surface->w) j2 = 0;
-                else                       j2++;
-            }
-            src1_buffer += screen_width - rect.w;
-            src2_buffer += screen_width - rect.w;
-            dst_buffer  += screen_width - rect.w;
-        }
-    }else{ // ALPHA_BLEND_CONST
-        Uint32 mask2 = mask_value & lowest_mask;
-
-        for ( i=0; i<rect.h ; i++ ) {
-            for ( j=rect.w ; j!=0 ; j-- ){
-                BLEND_PIXEL_MASK();
-                src1_buffer++; src2_buffer++; dst_buffer++;
-            }
-            src1_buffer += screen_width - rect.w;
-            src2_buffer += screen_width - rect.w;
-            dst_buffer  += screen_width - rect.w;
-        }
-    }
+    AlphaBlendJob job;
+    job.src1_surface = effect_src_surface;
+    job.src2_surface = effect_dst_surface;
+    job.dst_surface  = accumulation_surface;
+    job.mask_surface = mask_surface;
+    job.rect = rect;
+    job.screen_width = screen_width;
+    job.mask_flag = (trans_mode == ALPHA_BLEND_FADE_MASK ||
+                     trans_mode == ALPHA_BLEND_CROSSFADE_MASK) && mask_surface;
+    job.lowest_mask = lowest_mask;
+    job.overflow_mask = overflow_mask;
+    job.mask_value = mask_value;
+
+    // the rows are independent, small areas are not worth waking the threads up
+    if ( rect.w * rect.h >= BLEND_THREADS_MIN_PIXELS )
+        band_threads.run( alphaBlendRows, &job, rect.h );
+    else
+        alphaBlendRows( &job, 0, rect.h );
     
     if ( mask_surface ) SDL_UnlockSurface( mask_surface );
     SDL_UnlockSurface( accumulation_surface );
@@ -360,9 +475,9 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
 
 // alphaBlendText
 // dst: ONSBuf surface (accumulation_surface)
-// src: 8bit surface (TTF_RenderGlyph_Shaded())
+// src: 8bit surface (TTF_RenderGlyph_Shaded() or a GlyphCache atlas page with src_rect)
 void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
-                                 SDL_Surface *src_surface, SDL_Color &color, SDL_Rect *clip, bool rotate_flag )
+                                 SDL_Surface *src_surface, SDL_Color &color, SDL_Rect *clip, bool rotate_flag, SDL_Rect *src_rect )
 {
     int x2=0, y2=0;
     SDL_Rect clipped_rect;
@@ -392,6 +507,14 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
     SDL_LockSurface( dst_surface );
     SDL_LockSurface( src_surface );
 
+    // src_rect is the glyph in an atlas page
+    unsigned char *src_pixels = (unsigned char*)src_surface->pixels;
+    int src_h = src_surface->h;
+    if ( src_rect ){
+        src_pixels += src_surface->pitch * src_rect->y + src_rect->x;
+        src_h = src_rect->h;
+    }
+
     SDL_PixelFormat *fmt = dst_surface->format;
 
     if (fmt->BitsPerPixel == 16){
@@ -403,7 +526,7 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
         Uint16 *dst_buffer = (Uint16*)dst_surface->pixels + dst_surface->w * dst_rect.y + dst_rect.x;
 
         if (!rotate_flag){
-            unsigned char *src_buffer = (unsigned char*)src_surface->pixels + src_surface->pitch * y2 + x2;
+            unsigned char *src_buffer = src_pixels + src_surface->pitch * y2 + x2;
             for ( int i=0 ; i<dst_rect.h ; i++ ){
                 for ( int j=dst_rect.w ; j!=0 ; j-- ){
                     BLEND_PIXEL_TEXT_BPP16();
@@ -416,7 +539,7 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
         }
         else{
             for ( int i=0 ; i<dst_rect.h ; i++ ){
-                unsigned char *src_buffer = (unsigned char*)src_surface->pixels + src_surface->pitch*(src_surface->h - x2 - 1) + y2 + i;
+                unsigned char *src_buffer = src_pixels + src_surface->pitch*(src_h - x2 - 1) + y2 + i;
                 for ( int j=dst_rect.w ; j!=0 ; j-- ){
                     BLEND_PIXEL_TEXT_BPP16();
                     src_buffer -= src_surface->pitch;
@@ -434,7 +557,7 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
         Uint32 *dst_buffer = (Uint32*)dst_surface->pixels + dst_surface->w * dst_rect.y + dst_rect.x;
 
         if (!rotate_flag){
-            unsigned char *src_buffer = (unsigned char*)src_surface->pixels + src_surface->pitch * y2 + x2;
+            unsigned char *src_buffer = src_pixels + src_surface->pitch * y2 + x2;
             for ( int i=0 ; i<dst_rect.h ; i++ ){
                 for ( int j=dst_rect.w ; j!=0 ; j-- ){
                     BLEND_PIXEL_TEXT();
@@ -447,7 +570,7 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
         }
         else{
             for ( int i=0 ; i<dst_rect.h ; i++ ){
-                unsigned char *src_buffer = (unsigned char*)src_surface->pixels + src_surface->pitch*(src_surface->h - x2 - 1) + y2 + i;
+                unsigned char *src_buffer = src_pixels + src_surface->pitch*(src_h - x2 - 1) + y2 + i;
                 for ( int j=dst_rect.w ; j!=0 ; j-- ){
                     BLEND_PIXEL_TEXT();
                     src_buffer -= src_surface->pitch;
@@ -498,6 +621,96 @@ void ONScripter::makeMonochromeSurface( SDL_Surface *surface, SDL_Rect &clip )
     SDL_UnlockSurface( surface );
 }
 
+void ONScripter::getBackLayerState( AnimationInfo *anim, BackLayerState &state )
+{
+    memset( &state, 0, sizeof(BackLayerState) );
+    if ( anim == NULL ) return;
+
+    state.surface = anim->image_surface;
+    state.generation = anim->generation;
+    state.pos[0] = anim->pos.x;
+    state.pos[1] = anim->pos.y;
+    state.pos[2] = anim->pos.w;
+    state.pos[3] = anim->pos.h;
+    if ( !anim->abs_flag ){ // as drawTaggedSurface() moves it
+        state.pos[0] += sentence_font.x() * screen_ratio1 / screen_ratio2;
+        state.pos[1] += sentence_font.y() * screen_ratio1 / screen_ratio2;
+    }
+    state.cell = anim->current_cell;
+    state.trans = anim->trans;
+    state.blending_mode = anim->blending_mode;
+    if ( anim->affine_flag ){
+        state.affine_flag = 1;
+        state.affine_pos[0] = anim->affine_pos.x;
+        state.affine_pos[1] = anim->affine_pos.y;
+        state.affine_pos[2] = anim->affine_pos.w;
+        state.affine_pos[3] = anim->affine_pos.h;
+        state.bounding_rect[0] = anim->bounding_rect.x;
+        state.bounding_rect[1] = anim->bounding_rect.y;
+        state.bounding_rect[2] = anim->bounding_rect.w;
+        state.bounding_rect[3] = anim->bounding_rect.h;
+        state.mat[0] = anim->mat[0][0];
+        state.mat[1] = anim->mat[0][1];
+        state.mat[2] = anim->mat[1][0];
+        state.mat[3] = anim->mat[1][1];
+    }
+}
+
+int ONScripter::updateBackLayerCache( int top )
+{
+    int i, n = 0;
+    back_layers[n++] = &bg_info;
+    if ( !all_sprite_hide_flag ){
+        for ( i=MAX_SPRITE_NUM-1 ; i>top ; i-- )
+            back_layers[n++] = ( sprite_info[i].image_surface && sprite_info[i].visible ) ? &sprite_info[i] : NULL;
+        for ( i=0 ; i<3 ; i++ )
+            back_layers[n++] = ( human_order[2-i] >= 0 && tachi_info[human_order[2-i]].image_surface ) ? &tachi_info[human_order[2-i]] : NULL;
+    }
+    if ( back_layer_surface == NULL ){
+        num_of_back_layers = n;
+        return 0;
+    }
+
+    // z-order and lsph/lsp2 hiding all sprites move the back_layers
+    if ( n != num_of_back_layers ){
+        num_of_back_layers = n;
+        num_of_cached_back_layers = 0;
+    }
+
+    for ( i=0 ; i<n ; i++ ){
+        BackLayerState state;
+        getBackLayerState( back_layers[i], state );
+        if ( memcmp( &state, &back_layer_states[i], sizeof(BackLayerState) ) ){
+            memcpy( &back_layer_states[i], &state, sizeof(BackLayerState) );
+            back_layer_changed_time[i] = num_of_back_layer_frames;
+            if ( i < num_of_cached_back_layers ) num_of_cached_back_layers = 0;
+        }
+    }
+
+    // Composite the back_layers that have not changed for a while, so that
+    // an animating sprite is blended over the cache alone
+    int num = 0;
+    while ( num < n && num_of_back_layer_frames - back_layer_changed_time[num] >= BACK_LAYER_STABLE_FRAMES )
+        num++;
+    if ( num > num_of_cached_back_layers ){
+        SDL_Rect rect = {0, 0, screen_width, screen_height};
+        drawBackLayers( back_layer_surface, num_of_cached_back_layers, num, rect );
+        num_of_cached_back_layers = num;
+    }
+
+    return num_of_cached_back_layers;
+}
+
+void ONScripter::drawBackLayers( SDL_Surface *surface, int start, int end, SDL_Rect &clip )
+{
+    for ( int i=start ; i<end ; i++ ){
+        if ( i == 0 )
+            SDL_BlitSurface( bg_info.image_surface, &clip, surface, &clip );
+        else if ( back_layers[i] )
+            drawTaggedSurface( surface, back_layers[i], clip );
+    }
+}
+
 void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int refresh_mode )
 {
     if (refresh_mode == REFRESH_NONE_MODE) return;
@@ -509,25 +722,14 @@ void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int r
     if (clip_src) if ( AnimationInfo::doClipping( &clip, clip_src ) ) return;
 
     int i, top;
-    SDL_BlitSurface( bg_info.image_surface, &clip, surface, &clip );
-    
-    if ( !all_sprite_hide_flag ){
-        if ( z_order < 10 && refresh_mode & REFRESH_SAYA_MODE )
-            top = 9;
-        else
-            top = z_order;
-        for ( i=MAX_SPRITE_NUM-1 ; i>top ; i-- ){
-            if ( sprite_info[i].image_surface && sprite_info[i].visible )
-                drawTaggedSurface( surface, &sprite_info[i], clip );
-        }
-    }
-
-    if ( !all_sprite_hide_flag ){
-        for ( i=0 ; i<3 ; i++ ){
-            if (human_order[2-i] >= 0 && tachi_info[human_order[2-i]].image_surface)
-                drawTaggedSurface( surface, &tachi_info[human_order[2-i]], clip );
-        }
-    }
+    if ( z_order < 10 && refresh_mode & REFRESH_SAYA_MODE )
+        top = 9;
+    else
+        top = z_order;
+    int num_of_cached = updateBackLayerCache( top );
+    if ( num_of_cached > 0 )
+        SDL_BlitSurface( back_layer_surface, &clip, surface, &clip );
+    drawBackLayers( surface, num_of_cached, num_of_back_layers, clip );
 
     if ( windowback_flag ){
         if ( nega_mode == 1 ) makeNegaSurface( surface, clip );
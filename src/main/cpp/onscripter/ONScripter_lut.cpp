@@ -399,14 +399,20 @@ static ONScripter::FuncLUT func_lut[] = {
 
 void ONScripter::makeFuncLUT()
 {
-    for (int i='z'-'a' ; i>=0 ; i--)
-        func_hash[i].func = NULL;
-
-    int idx = 0;
-    while (func_lut[idx].method){
-        int j = func_lut[idx].command[0]-'a';
-        if (func_hash[j].func == NULL) func_hash[j].func = func_lut+idx;
-        func_hash[j].num = func_lut+idx - func_hash[j].func + 1;
-        idx++;
-    }
+    int num = 0;
+    while (func_lut[num].method) num++;
+
+    const char **names = new const char*[num];
+    for (int i=0 ; i<num ; i++)
+        names[i] = func_lut[i].command;
+    func_hash.build( names, num );
+    delete[] names;
+}
+
+ONScripter::FuncList ONScripter::findFunc( const char *cmd, unsigned int hash )
+{
+    int i = func_hash.find( cmd, hash );
+    if (i < 0) return NULL;
+
+    return func_lut[i].method;
 }
@@ -184,6 +184,7 @@ void ONScripter::executeSystemMenu()
 {
     // Openning system menu take a screenshot before hand
     if ( screenshot_folder ) {
+        finishFastForward();
 #ifdef USE_SDL_RENDERER
         SDL_Rect rect = {(device_width -screen_device_width)/2,
                  (device_height-screen_device_height)/2,
@@ -67,9 +67,18 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
     long length = script_h.cBR->getFileLength( filename );
     if (length == 0) return SOUND_NONE;
 
-    unsigned char *buffer;
+    unsigned char *buffer = NULL;
 
-    if (format & SOUND_MUSIC && 
+    // Streamed music is read after this returns so only other sounds use the mapped archive
+    size_t view_length = 0;
+    const unsigned char *view = NULL;
+    if (!(format & SOUND_MUSIC))
+        view = script_h.cBR->getFileView( filename, &view_length );
+
+    if (view){
+        length = view_length;
+    }
+    else if (format & SOUND_MUSIC && 
         length == music_buffer_length &&
         music_buffer ){
         buffer = music_buffer;
@@ -82,6 +91,7 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
         }
         script_h.cBR->getFile( filename, buffer );
     }
+    const unsigned char *data = view ? view : buffer;
     
     if (format & SOUND_MUSIC){
         music_info = Mix_LoadMUS_RW( SDL_RWFromMem( buffer, length ) );
@@ -95,7 +105,7 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
     }
     
     if (format & SOUND_CHUNK){
-        Mix_Chunk *chunk = Mix_LoadWAV_RW(SDL_RWFromMem(buffer, length), 1);
+        Mix_Chunk *chunk = Mix_LoadWAV_RW(SDL_RWFromConstMem(data, length), 1);
         if (playWave(chunk, format, loop_flag, channel) == 0){
             delete[] buffer;
             return SOUND_CHUNK;
@@ -103,8 +113,8 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
     }
 
     /* check WMA */
-    if ( buffer[0] == 0x30 && buffer[1] == 0x26 &&
-         buffer[2] == 0xb2 && buffer[3] == 0x75 ){
+    if ( data[0] == 0x30 && data[1] == 0x26 &&
+         data[2] == 0xb2 && data[3] == 0x75 ){
         delete[] buffer;
         return SOUND_OTHER;
     }
@@ -115,7 +125,7 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
             logw(stderr, "can't open temporaly MIDI file %s\n", TMP_MUSIC_FILE);
         }
         else{
-            fwrite(buffer, 1, length, fp);
+            fwrite(data, 1, length, fp);
             fclose( fp );
             ext_music_play_once_flag = !loop_flag;
             if (playMIDI(loop_flag) == 0){
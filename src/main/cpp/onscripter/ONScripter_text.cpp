@@ -36,29 +36,29 @@
 #define IS_TRANSLATION_REQUIRED(x)	\
         ( *(x) == (char)0x81 && *((x)+1) >= 0x41 && *((x)+1) <= 0x44 )
 
-void ONScripter::shiftHalfPixelX(SDL_Surface *surface)
+void ONScripter::shiftHalfPixelX(SDL_Surface *surface, SDL_Rect &rect)
 {
     SDL_LockSurface( surface );
-    unsigned char *buf = (unsigned char*)surface->pixels;
-    for (int i=surface->h ; i!=0 ; i--){
+    unsigned char *buf = (unsigned char*)surface->pixels + surface->pitch*rect.y + rect.x;
+    for (int i=rect.h ; i!=0 ; i--){
         unsigned char c = buf[0];
-        for (int j=1 ; j<surface->w ; j++){
+        for (int j=1 ; j<rect.w ; j++){
             buf[j-1] = (buf[j]+c)>>1;
             c = buf[j];
         }
-        buf[surface->w-1] = c>>1;
+        buf[rect.w-1] = c>>1;
         buf += surface->pitch;
     }
     SDL_UnlockSurface( surface );
 }
 
-void ONScripter::shiftHalfPixelY(SDL_Surface *surface)
+void ONScripter::shiftHalfPixelY(SDL_Surface *surface, SDL_Rect &rect)
 {
     SDL_LockSurface( surface );
-    for (int j=surface->w-1 ; j>=0 ; j--){
-        unsigned char *buf = (unsigned char*)surface->pixels + j;
+    for (int j=rect.w-1 ; j>=0 ; j--){
+        unsigned char *buf = (unsigned char*)surface->pixels + surface->pitch*rect.y + rect.x + j;
         unsigned char c = buf[0];
-        for (int i=1 ; i<surface->h ; i++){
+        for (int i=1 ; i<rect.h ; i++){
             buf += surface->pitch;
             *(buf-surface->pitch) = (*buf+c)>>1;
             c = *buf;
@@ -72,15 +72,19 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
 {
     unsigned short unicode = decoder->convertNextChar(text);
 
-    int minx, maxx, miny, maxy, advanced;
 #if 0
     if (TTF_GetFontStyle( (TTF_Font*)info->ttf_font[0] ) !=
         (info->is_bold?TTF_STYLE_BOLD:TTF_STYLE_NORMAL) )
         TTF_SetFontStyle( (TTF_Font*)info->ttf_font[0], (info->is_bold?TTF_STYLE_BOLD:TTF_STYLE_NORMAL));
 #endif    
-    TTF_GlyphMetrics( (TTF_Font*)info->ttf_font[0], unicode,
-                      &minx, &maxx, &miny, &maxy, &advanced );
-    //printf("min %d %d %d %d %d %d\n", minx, maxx, miny, maxy, advanced,TTF_FontAscent((TTF_Font*)info->ttf_font[0])  );
+    // The metrics and bitmaps come from the glyph cache and stay valid until trim()
+    GlyphCache::Glyph *glyph = info->getGlyph( 0, unicode, true );
+    if ( glyph == NULL ){
+        dst_rect.w = dst_rect.h = 0;
+        return;
+    }
+    int minx = glyph->minx, maxy = glyph->maxy, miny = glyph->miny, advanced = glyph->advanced;
+    //printf("min %d %d %d %d %d %d\n", minx, glyph->maxx, miny, maxy, advanced,TTF_FontAscent((TTF_Font*)info->ttf_font[0])  );
 
     // Use the glyth's advance for non-Japanese characters
     if (decoder->getNumBytes(text[0]) > 1 && decoder->isMonospaced()) {
@@ -89,11 +93,13 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         info->addProportionalCharacterAdvance(advanced);
     }
 
-    static SDL_Color fcol={0xff, 0xff, 0xff}, bcol={0, 0, 0};
-    SDL_Surface *tmp_surface = TTF_RenderGlyph_Shaded((TTF_Font*)info->ttf_font[0], unicode, fcol, bcol);
+    // The bitmaps are rectangles in the atlas pages of the glyph cache
+    SDL_Surface *tmp_surface = glyph->surface;
+    SDL_Rect src_rect = glyph->rect;
     
     SDL_Color scolor = {0, 0, 0};
     SDL_Surface *tmp_surface_s = tmp_surface;
+    SDL_Rect src_rect_s = src_rect;
     if (info->is_shadow && render_font_outline){
         unsigned char max_color = color.r;
         if (max_color < color.g) max_color = color.g;
@@ -102,10 +108,13 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         else                  scolor.r = 0;
         scolor.g = scolor.b = scolor.r;
 
-        tmp_surface_s = TTF_RenderGlyph_Shaded((TTF_Font*)info->ttf_font[1], unicode, fcol, bcol);
-        if (tmp_surface && tmp_surface_s){
-            if ((tmp_surface_s->w-tmp_surface->w) & 1) shiftHalfPixelX(tmp_surface_s);
-            if ((tmp_surface_s->h-tmp_surface->h) & 1) shiftHalfPixelY(tmp_surface_s);
+        GlyphCache::Glyph *glyph_s = info->getGlyph( 1, unicode, true );
+        tmp_surface_s = glyph_s ? glyph_s->surface : NULL;
+        if (tmp_surface_s) src_rect_s = glyph_s->rect;
+        if (tmp_surface && tmp_surface_s && !glyph_s->aligned_flag){
+            if ((src_rect_s.w-src_rect.w) & 1) shiftHalfPixelX(tmp_surface_s, src_rect_s);
+            if ((src_rect_s.h-src_rect.h) & 1) shiftHalfPixelY(tmp_surface_s, src_rect_s);
+            glyph_s->aligned_flag = true;
         }
     }
 
@@ -126,8 +135,8 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
     if (info->is_shadow && tmp_surface_s){
         SDL_Rect dst_rect_s = dst_rect;
         if (render_font_outline){
-            dst_rect_s.x -= (tmp_surface_s->w - tmp_surface->w)/2;
-            dst_rect_s.y -= (tmp_surface_s->h - tmp_surface->h)/2;
+            dst_rect_s.x -= (src_rect_s.w - src_rect.w)/2;
+            dst_rect_s.y -= (src_rect_s.h - src_rect.h)/2;
         }
         else{
             dst_rect_s.x += shade_distance[0];
@@ -135,42 +144,39 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         }
 
         if (rotate_flag){
-            dst_rect_s.w = tmp_surface_s->h;
-            dst_rect_s.h = tmp_surface_s->w;
+            dst_rect_s.w = src_rect_s.h;
+            dst_rect_s.h = src_rect_s.w;
         }
         else{
-            dst_rect_s.w = tmp_surface_s->w;
-            dst_rect_s.h = tmp_surface_s->h;
+            dst_rect_s.w = src_rect_s.w;
+            dst_rect_s.h = src_rect_s.h;
         }
 
         if (cache_info)
-            cache_info->blendText( tmp_surface_s, dst_rect_s.x, dst_rect_s.y, scolor, clip, rotate_flag );
+            cache_info->blendText( tmp_surface_s, dst_rect_s.x, dst_rect_s.y, scolor, clip, rotate_flag, &src_rect_s );
         
         if (dst_surface)
-            alphaBlendText( dst_surface, dst_rect_s, tmp_surface_s, scolor, clip, rotate_flag );
+            alphaBlendText( dst_surface, dst_rect_s, tmp_surface_s, scolor, clip, rotate_flag, &src_rect_s );
     }
 
     if ( tmp_surface ){
         if (rotate_flag){
-            dst_rect.w = tmp_surface->h;
-            dst_rect.h = tmp_surface->w;
+            dst_rect.w = src_rect.h;
+            dst_rect.h = src_rect.w;
         }
         else{
-            dst_rect.w = tmp_surface->w;
-            dst_rect.h = tmp_surface->h;
+            dst_rect.w = src_rect.w;
+            dst_rect.h = src_rect.h;
         }
 
         if (cache_info)
-            cache_info->blendText( tmp_surface, dst_rect.x, dst_rect.y, color, clip, rotate_flag );
+            cache_info->blendText( tmp_surface, dst_rect.x, dst_rect.y, color, clip, rotate_flag, &src_rect );
         
         if (dst_surface)
-            alphaBlendText( dst_surface, dst_rect, tmp_surface, color, clip, rotate_flag );
+            alphaBlendText( dst_surface, dst_rect, tmp_surface, color, clip, rotate_flag, &src_rect );
     }
 
-    if (tmp_surface_s && tmp_surface_s != tmp_surface)
-        SDL_FreeSurface(tmp_surface_s);
-    if (tmp_surface)
-        SDL_FreeSurface(tmp_surface);
+    glyph_cache.trim();
 }
 
 void ONScripter::drawChar( char* text, FontInfo *info, bool flush_flag, bool lookback_flag, SDL_Surface *surface, AnimationInfo *cache_info, SDL_Rect *clip, ScriptDecoder* decoder )
@@ -345,9 +351,7 @@ void ONScripter::drawString( const char *str, uchar3 color, FontInfo *info, bool
                         int advanced, accum_advance = 0;
                         i = 1;
                         while(str[i]) {
-                            advanced = 0;
-                            if (info->ttf_font[0])
-                                TTF_GlyphMetrics( (TTF_Font*)info->ttf_font[0], str[i], NULL, NULL, NULL, NULL, &advanced );
+                            advanced = info->getGlyphAdvance( str[i] );
                             if (str[i] == '\n') break;
                             accum_advance += advanced;
                             if (str[i] == ' ') break;
@@ -475,10 +479,7 @@ void ONScripter::restoreTextBuffer(SDL_Surface *surface)
 
                 // Scan the next characters till the next space and get the accumulated character advance (word width)
                 while(index < current_page->text_count) {
-                    advanced = 0;
-                    if (f_info.ttf_font[0]) {
-                        TTF_GlyphMetrics( (TTF_Font*)f_info.ttf_font[0], script[index], NULL, NULL, NULL, NULL, &advanced );
-                    }
+                    advanced = f_info.getGlyphAdvance( script[index] );
                     accum_advance += advanced;
                     if (script[index] == ' ') break;
                     index++;
@@ -910,10 +911,7 @@ bool ONScripter::processText()
                     // Check for the next space in new line after text and see if it fits in previous line
                     int advanced, accum_advance = 0;
                     while(next[i] != ' ') {
-                        advanced = 0;
-                        if (sentence_font.ttf_font[0]) {
-                            TTF_GlyphMetrics( (TTF_Font*)sentence_font.ttf_font[0], next[i], NULL, NULL, NULL, NULL, &advanced );
-                        }
+                        advanced = sentence_font.getGlyphAdvance( next[i] );
                         accum_advance += advanced;
                         i++;
                     }
@@ -925,10 +923,7 @@ bool ONScripter::processText()
                 // Check for the next space in new line and see if it fits in previous line
                 int i = 0, accum_advance = 0, advanced;
                 while(next[i + 1] != ' ') {
-                    advanced = 0;
-                    if (sentence_font.ttf_font[0]) {
-                        TTF_GlyphMetrics( (TTF_Font*)sentence_font.ttf_font[0], next[i + 1], NULL, NULL, NULL, NULL, &advanced );
-                    }
+                    advanced = sentence_font.getGlyphAdvance( next[i + 1] );
                     accum_advance += advanced;
                     i++;
                 }
@@ -1214,10 +1209,7 @@ bool ONScripter::processText()
                             if (i == 6) index += 6;
                         }
                     }
-                    advanced = 0;
-                    if (sentence_font.ttf_font[0]) {
-                        TTF_GlyphMetrics( (TTF_Font*)sentence_font.ttf_font[0], script[index], NULL, NULL, NULL, NULL, &advanced );
-                    }
+                    advanced = sentence_font.getGlyphAdvance( script[index] );
                     accum_advance += advanced;
                     if (script[index] == ' ') break;
                     index++;
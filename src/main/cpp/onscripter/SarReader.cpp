@@ -22,14 +22,24 @@
  */
 
 #include "SarReader.h"
+#include "HashTable.h"
+#if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#define ARCHIVE_INDEX_SUPPORTED
+#endif
 #define WRITE_LENGTH 4096
+#define ARCHIVE_INDEX_MAGIC "ONSTOC02"
 
 #if defined(PSP)
 extern int psp_power_resume_number;
 #endif
 
-SarReader::SarReader( const char *path, const unsigned char *key_table, bool try_parent )
-        :DirectReader( path, key_table, try_parent )
+char *SarReader::archive_index_dir = NULL;
+
+SarReader::SarReader( const char *path, const unsigned char *key_table, bool try_parent, bool use_mmap )
+        :DirectReader( path, key_table, try_parent, use_mmap )
 {
     root_archive_info = last_archive_info = &archive_info;
     num_of_sar_archives = 0;
@@ -53,6 +63,7 @@ int SarReader::open( const char *name )
     memcpy(info->file_name, name, strlen(name)+1);
     
     readArchive( info );
+    mapArchive( info );
 
     last_archive_info->next = info;
     last_archive_info = last_archive_info->next;
@@ -61,9 +72,27 @@ int SarReader::open( const char *name )
     return 0;
 }
 
+void SarReader::setArchiveIndexDir( const char *path )
+{
+    if ( archive_index_dir ) delete[] archive_index_dir;
+    archive_index_dir = NULL;
+    if ( path ){
+        archive_index_dir = new char[ strlen(path) + 1 ];
+        strcpy( archive_index_dir, path );
+    }
+}
+
 void SarReader::readArchive( ArchiveInfo *ai, int archive_type, unsigned int offset )
 {
     unsigned int i;
+
+    // Use the table of contents saved by a previous launch when the archive is unchanged
+    ArchiveIndexHeader index_header;
+    bool index_flag = getArchiveIndexHeader( ai, archive_type, offset, index_header );
+    if ( index_flag && loadArchiveIndex( ai, index_header ) ){
+        buildFileIndex( ai );
+        return;
+    }
     
     /* Read header */
     for (i=0; i<offset; i++)
@@ -159,6 +188,182 @@ void SarReader::readArchive( ArchiveInfo *ai, int archive_type, unsigned int off
             }
         }
     }
+
+    if ( index_flag ) saveArchiveIndex( ai, index_header );
+    buildFileIndex( ai );
+}
+
+bool SarReader::getArchiveIndexHeader( ArchiveInfo *ai, int archive_type, unsigned int offset, ArchiveIndexHeader &header )
+{
+#if defined(ARCHIVE_INDEX_SUPPORTED)
+    if ( !archive_index_dir || !ai->file_name || !ai->file_handle ) return false;
+
+    memset( &header, 0, sizeof(header) );
+    memcpy( header.magic, ARCHIVE_INDEX_MAGIC, sizeof(header.magic) );
+
+    struct stat buf;
+    memset( &buf, 0, sizeof(buf) );
+    if ( fstat( fileno( ai->file_handle ), &buf ) != 0 ) return false;
+    header.archive_size = buf.st_size;
+
+    // Only the modified time is filled in when the file is accessed through Java
+    memset( &buf, 0, sizeof(buf) );
+    if ( stat_ons( ai->file_name, &buf ) != 0 ) return false;
+    header.archive_mtime = buf.st_mtime;
+
+    header.archive_type = archive_type;
+    header.offset = offset;
+    header.key_table_hash = hashBytes( key_table, 256 );
+    header.compression_hash = HASH_INITIAL;
+    RegisteredCompressionType *reg = root_registered_compression_type.next;
+    while ( reg ){
+        header.compression_hash = hashBytes( reg->ext, strlen(reg->ext)+1, header.compression_hash );
+        header.compression_hash = hashBytes( &reg->type, sizeof(reg->type), header.compression_hash );
+        reg = reg->next;
+    }
+    header.name_length = strlen( ai->file_name );
+
+    return true;
+#else
+    return false;
+#endif
+}
+
+void SarReader::getArchiveIndexPath( ArchiveInfo *ai, ArchiveIndexHeader &header, char *path, size_t path_len )
+{
+    // Hash of where the archive is, so a changed archive replaces its old index;
+    // the header stored in the file tells whether it is still valid
+    unsigned int values[2] = { header.archive_type, header.offset };
+    unsigned int hash = hashBytes( values, sizeof(values) );
+    hash = hashString( archive_path, hash );
+    hash = hashBytes( ai->file_name, header.name_length, hash );
+    snprintf( path, path_len, "%s%c%08x.toc", archive_index_dir, DELIMITER, hash );
+}
+
+bool SarReader::loadArchiveIndex( ArchiveInfo *ai, ArchiveIndexHeader &header )
+{
+#if defined(ARCHIVE_INDEX_SUPPORTED)
+    char path[MAX_FILE_NAME_LENGTH*2+1];
+    getArchiveIndexPath( ai, header, path, sizeof(path) );
+
+    // Read the whole index with a single read, then parse it from memory
+    int fd = ::open( path, O_RDONLY );
+    if ( fd < 0 ) return false;
+
+    struct stat buf;
+    if ( fstat( fd, &buf ) != 0 || (size_t)buf.st_size < sizeof(header) + header.name_length ){
+        ::close( fd );
+        return false;
+    }
+    size_t size = buf.st_size;
+    unsigned char *data = new unsigned char[size];
+    ssize_t read_len = ::read( fd, data, size );
+    ::close( fd );
+
+    unsigned char *p = data, *end = data + size;
+    unsigned int num_of_files;
+    unsigned long long base_offset;
+    FileInfo *fi_list = NULL;
+    bool ret = false;
+
+    if ( read_len != (ssize_t)size ||
+         memcmp( p, &header, sizeof(header) ) != 0 ||
+         memcmp( p + sizeof(header), ai->file_name, header.name_length ) != 0 ) goto end;
+    p += sizeof(header) + header.name_length;
+
+    if ( p + sizeof(num_of_files) + sizeof(base_offset) > end ) goto end;
+    memcpy( &num_of_files, p, sizeof(num_of_files) );
+    p += sizeof(num_of_files);
+    memcpy( &base_offset, p, sizeof(base_offset) );
+    p += sizeof(base_offset);
+
+    fi_list = new FileInfo[ num_of_files ];
+    for ( unsigned int i=0 ; i<num_of_files ; i++ ){
+        FileInfo &fi = fi_list[i];
+        unsigned long long values[3];
+
+        if ( p >= end ) goto end;
+        size_t name_len = *p++;
+        if ( p + name_len + 1 + sizeof(values) > end ) goto end;
+        memcpy( fi.name, p, name_len );
+        fi.name[name_len] = '\0';
+        p += name_len;
+        fi.compression_type = *p++;
+        memcpy( values, p, sizeof(values) );
+        p += sizeof(values);
+        fi.offset = values[0];
+        fi.length = values[1];
+        fi.original_length = values[2];
+    }
+    if ( p != end ) goto end;
+
+    ai->num_of_files = num_of_files;
+    ai->base_offset = base_offset;
+    ai->fi_list = fi_list;
+    fi_list = NULL;
+    ret = true;
+
+end:
+    if ( fi_list ) delete[] fi_list;
+    delete[] data;
+    return ret;
+#else
+    return false;
+#endif
+}
+
+void SarReader::saveArchiveIndex( ArchiveInfo *ai, ArchiveIndexHeader &header )
+{
+#if defined(ARCHIVE_INDEX_SUPPORTED)
+    unsigned int i;
+    unsigned long long base_offset = ai->base_offset;
+    size_t size = sizeof(header) + header.name_length + sizeof(ai->num_of_files) + sizeof(base_offset);
+    for ( i=0 ; i<ai->num_of_files ; i++ )
+        size += 1 + strlen( ai->fi_list[i].name ) + 1 + sizeof(unsigned long long)*3;
+
+    unsigned char *data = new unsigned char[size];
+    unsigned char *p = data;
+    memcpy( p, &header, sizeof(header) );
+    p += sizeof(header);
+    memcpy( p, ai->file_name, header.name_length );
+    p += header.name_length;
+    memcpy( p, &ai->num_of_files, sizeof(ai->num_of_files) );
+    p += sizeof(ai->num_of_files);
+    memcpy( p, &base_offset, sizeof(base_offset) );
+    p += sizeof(base_offset);
+
+    for ( i=0 ; i<ai->num_of_files ; i++ ){
+        FileInfo &fi = ai->fi_list[i];
+        unsigned long long values[3] = { fi.offset, fi.length, fi.original_length };
+        size_t name_len = strlen( fi.name );
+
+        *p++ = name_len;
+        memcpy( p, fi.name, name_len );
+        p += name_len;
+        *p++ = fi.compression_type;
+        memcpy( p, values, sizeof(values) );
+        p += sizeof(values);
+    }
+
+    // Write to a temporary file first so a partially written index is never loaded
+    char path[MAX_FILE_NAME_LENGTH*2+1], tmp_path[MAX_FILE_NAME_LENGTH*2+5];
+    getArchiveIndexPath( ai, header, path, sizeof(path) );
+    snprintf( tmp_path, sizeof(tmp_path), "%s.tmp", path );
+
+    int fd = ::open( tmp_path, O_WRONLY | O_CREAT | O_TRUNC, 0600 );
+    if ( fd < 0 ){
+        logw( stderr, "can't create archive index %s\n", tmp_path );
+    }
+    else{
+        bool written = ::write( fd, data, size ) == (ssize_t)size;
+        ::close( fd );
+        if ( !written || rename( tmp_path, path ) != 0 ){
+            logw( stderr, "can't write archive index %s\n", path );
+            unlink( tmp_path );
+        }
+    }
+    delete[] data;
+#endif
 }
 
 int SarReader::writeHeaderSub( ArchiveInfo *ai, FILE *fp, int archive_type, int nsa_offset )
@@ -243,6 +448,20 @@ size_t SarReader::putFile( FILE *fp, int no, size_t offset, size_t length, size_
     return putFileSub( ai, fp, no, offset, length, original_length, ai->fi_list[no].compression_type, modified_flag, buffer );
 }
 
+BaseReader *SarReader::clone()
+{
+    SarReader *reader = new SarReader( archive_path, key_table_flag?key_table:NULL, try_parent_flag, mmap_flag );
+    copyRegisteredCompressionType( reader );
+
+    ArchiveInfo *info = archive_info.next;
+    for ( int i=0 ; i<num_of_sar_archives ; i++ ){
+        reader->open( info->file_name );
+        info = info->next;
+    }
+
+    return reader;
+}
+
 int SarReader::close()
 {
     ArchiveInfo *info = archive_info.next;
@@ -285,6 +504,18 @@ int SarReader::getIndexFromFile( ArchiveInfo *ai, const char *file_name )
         if ( 'a' <= capital_name[i] && capital_name[i] <= 'z' ) capital_name[i] += 'A' - 'a';
         else if ( capital_name[i] == '/' ) capital_name[i] = '\\';
     }
+
+    if ( ai->index_table ){
+        unsigned int mask = ai->index_table_size - 1;
+        unsigned int j = hashString( capital_name ) & mask;
+        while ( ai->index_table[j] ){
+            i = ai->index_table[j] - 1;
+            if ( !strcmp( capital_name, ai->fi_list[i].name ) ) return i;
+            j = (j+1) & mask;
+        }
+        return ai->num_of_files;
+    }
+
     for ( i=0 ; i<ai->num_of_files ; i++ ){
         if ( !strcmp( capital_name, ai->fi_list[i].name ) ) break;
     }
@@ -292,6 +523,25 @@ int SarReader::getIndexFromFile( ArchiveInfo *ai, const char *file_name )
     return i;
 }
 
+static unsigned int getFileInfoHash( void *data, unsigned int index )
+{
+    return hashString( ((BaseReader::ArchiveInfo*)data)->fi_list[index].name );
+}
+
+static bool isSameFileInfo( void *data, unsigned int index1, unsigned int index2 )
+{
+    BaseReader::FileInfo *fi_list = ((BaseReader::ArchiveInfo*)data)->fi_list;
+    return !strcmp( fi_list[index1].name, fi_list[index2].name );
+}
+
+void SarReader::buildFileIndex( ArchiveInfo *ai )
+{
+    if ( ai->index_table ) delete[] ai->index_table;
+
+    // The names are upper-cased as getIndexFromFile() looks them up
+    ai->index_table = buildHashTable( ai->num_of_files, getFileInfoHash, isSameFileInfo, ai, &ai->index_table_size );
+}
+
 size_t SarReader::getFileLength( const char *file_name )
 {
     size_t ret;
@@ -368,6 +618,48 @@ size_t SarReader::getFile( const char *file_name, unsigned char *buf, int *locat
     return j;
 }
 
+bool SarReader::getFileViewSub( ArchiveInfo *ai, const char *file_name, const unsigned char **view, size_t *length )
+{
+    unsigned int i = getIndexFromFile( ai, file_name );
+    if ( i == ai->num_of_files ) return false;
+
+    // Found in this archive, only stored data can be used as it is in the mapping
+    *view = NULL;
+    if ( !ai->mapped_buffer || key_table_flag ) return true;
+
+    int type = ai->fi_list[i].compression_type;
+    if ( type == NO_COMPRESSION ) type = getRegisteredCompressionType( file_name );
+    if ( type != NO_COMPRESSION ) return true;
+    if ( ai->fi_list[i].offset + ai->fi_list[i].length > ai->mapped_length ) return true;
+
+    *view = ai->mapped_buffer + ai->fi_list[i].offset;
+    *length = ai->fi_list[i].length;
+    return true;
+}
+
+const unsigned char *SarReader::getSarFileView( const char *file_name, size_t *length, int *location )
+{
+    ArchiveInfo *info = archive_info.next;
+    for ( int i=0 ; i<num_of_sar_archives ; i++ ){
+        const unsigned char *view;
+        if ( getFileViewSub( info, file_name, &view, length ) ){
+            if ( view && location ) *location = ARCHIVE_TYPE_SAR;
+            return view;
+        }
+        info = info->next;
+    }
+
+    return NULL;
+}
+
+const unsigned char *SarReader::getFileView( const char *file_name, size_t *length, int *location )
+{
+    // Independent files have priority over the archives, same as getFile
+    if ( hasIndependentFile( file_name ) ) return NULL;
+
+    return getSarFileView( file_name, length, location );
+}
+
 SarReader::FileInfo SarReader::getFileByIndex( unsigned int index )
 {
     ArchiveInfo *info = archive_info.next;
@@ -29,7 +29,7 @@
 class SarReader : public DirectReader
 {
 public:
-    SarReader( const char *path=NULL, const unsigned char *key_table=NULL, bool try_parent=false );
+    SarReader( const char *path=NULL, const unsigned char *key_table=NULL, bool try_parent=false, bool use_mmap=false );
     ~SarReader();
 
     int open( const char *name=NULL );
@@ -39,20 +39,45 @@ public:
     
     size_t getFileLength( const char *file_name );
     size_t getFile( const char *file_name, unsigned char *buf, int *location=NULL );
+    const unsigned char *getFileView( const char *file_name, size_t *length, int *location=NULL );
     FileInfo getFileByIndex( unsigned int index );
 
     int writeHeader( FILE *fp );
     size_t putFile( FILE *fp, int no, size_t offset, size_t length, size_t original_length, bool modified_flag, unsigned char *buffer );
+
+    BaseReader *clone();
+
+    static void setArchiveIndexDir( const char *path );
     
 protected:
+    // Identifies the archive a saved table of contents was read from
+    struct ArchiveIndexHeader{
+        char magic[8];
+        unsigned long long archive_size;
+        long long archive_mtime;
+        unsigned int archive_type;
+        unsigned int offset;
+        unsigned int key_table_hash;
+        unsigned int compression_hash; // registered compression types, applied to the file list
+        unsigned int name_length; // followed by the archive name
+    };
+    static char *archive_index_dir;
+
     ArchiveInfo archive_info;
     ArchiveInfo *root_archive_info, *last_archive_info;
     int num_of_sar_archives;
 
     void readArchive( ArchiveInfo *ai, int archive_type = ARCHIVE_TYPE_SAR, unsigned int offset=0 );
+    bool getArchiveIndexHeader( ArchiveInfo *ai, int archive_type, unsigned int offset, ArchiveIndexHeader &header );
+    void getArchiveIndexPath( ArchiveInfo *ai, ArchiveIndexHeader &header, char *path, size_t path_len );
+    bool loadArchiveIndex( ArchiveInfo *ai, ArchiveIndexHeader &header );
+    void saveArchiveIndex( ArchiveInfo *ai, ArchiveIndexHeader &header );
     int readArchiveSub( ArchiveInfo *ai, int archive_type = ARCHIVE_TYPE_SAR, bool check_size = true );
     int getIndexFromFile( ArchiveInfo *ai, const char *file_name );
+    void buildFileIndex( ArchiveInfo *ai );
     size_t getFileSub( ArchiveInfo *ai, const char *file_name, unsigned char *buf );
+    bool getFileViewSub( ArchiveInfo *ai, const char *file_name, const unsigned char **view, size_t *length );
+    const unsigned char *getSarFileView( const char *file_name, size_t *length, int *location );
 
     int writeHeaderSub( ArchiveInfo *ai, FILE *fp, int archive_type = ARCHIVE_TYPE_SAR, int nsa_offset=0 );
     size_t putFileSub( ArchiveInfo *ai, FILE *fp, int no, size_t offset, size_t length, size_t original_length, int compression_type, bool modified_flag, unsigned char *buffer );
@@ -22,9 +22,20 @@
  */
 
 #include "ScriptHandler.h"
+#include "HashTable.h"
+#if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#define SCRIPT_CACHE_SUPPORTED
+#endif
 
 #define TMP_SCRIPT_BUF_LEN 4096
 #define STRING_BUFFER_LENGTH 4096
+#define SCRIPT_CHUNK_MIN_LENGTH (256*1024)
+#define TOKEN_CACHE_SIZE 16384 // 512KB, power of 2
+#define SCRIPT_CACHE_MAGIC "ONSSCR01"
+#define SCRIPT_CACHE_KEY_LENGTH 4096
 
 #define SKIP_SPACE(p) while ( *(p) == ' ' || *(p) == '\t' ) (p)++
 
@@ -32,12 +43,33 @@ ScriptHandler::ScriptHandler()
 {
     save_dir = NULL;
     num_of_labels = 0;
+    label_index_table = NULL;
+    label_index_table_size = 0;
+    script_cache_dir = NULL;
+    script_cache_key = new unsigned char[SCRIPT_CACHE_KEY_LENGTH];
+    script_cache_key_length = 0;
+    script_cache_flag = false;
+    num_of_named_labels = 0;
+    num_of_load_threads = 0;
+    token_cache = NULL;
     script_buffer = NULL;
     kidoku_buffer = NULL;
     log_info[LABEL_LOG].filename = "NScrllog.dat";
     log_info[FILE_LOG].filename  = "NScrflog.dat";
+    for ( int i=0 ; i<2 ; i++ ){
+        log_info[i].current_log = &log_info[i].root_log;
+        log_info[i].num_logs = 0;
+        log_info[i].hash_table = NULL;
+        log_info[i].hash_table_size = 0;
+        log_info[i].num_lookups = log_info[i].num_compares = 0;
+    }
     clickstr_list = NULL;
     decoder = NULL;
+    cBR = NULL;
+    file_write_func = NULL;
+    file_write_data = NULL;
+    reader_change_func = NULL;
+    reader_change_data = NULL;
     
     string_buffer       = new char[STRING_BUFFER_LENGTH];
     str_string_buffer   = new char[STRING_BUFFER_LENGTH];
@@ -65,6 +97,10 @@ ScriptHandler::~ScriptHandler()
     
     if ( script_buffer ) delete[] script_buffer;
     if ( kidoku_buffer ) delete[] kidoku_buffer;
+    if ( label_index_table ) delete[] label_index_table;
+    if ( script_cache_dir ) delete[] script_cache_dir;
+    clearTokenCache();
+    delete[] script_cache_key;
 
     delete[] string_buffer;
     delete[] str_string_buffer;
@@ -105,6 +141,7 @@ void ScriptHandler::reset()
     // reset log info
     resetLog( log_info[LABEL_LOG] );
     resetLog( log_info[FILE_LOG] );
+    new_label_flag = false;
     
     // reset number alias
     Alias *alias;
@@ -170,9 +207,26 @@ FILE *ScriptHandler::fopen( const char *path, const char *mode, bool use_save_di
         if ( filename[i] == '/' || filename[i] == '\\' )
             filename[i] = DELIMITER;
 
+    // The reader may remember that this file did not exist, and the image cache its
+    // old contents
+    if ( strchr( mode, 'w' ) || strchr( mode, 'a' ) ){
+        if ( cBR ) cBR->invalidateFileCache( path );
+        if ( file_write_func ) file_write_func( file_write_data, path );
+    }
+
     return ::fopen( filename, mode );
 }
 
+void ScriptHandler::setScriptCacheDir( const char *path )
+{
+    if ( script_cache_dir ) delete[] script_cache_dir;
+    script_cache_dir = NULL;
+    if ( path ){
+        script_cache_dir = new char[ strlen(path) + 1 ];
+        strcpy( script_cache_dir, path );
+    }
+}
+
 void ScriptHandler::setKeyTable( const unsigned char *key_table )
 {
     int i;
@@ -197,8 +251,13 @@ const char *ScriptHandler::readToken()
 
     text_flag = false;
 
+    // A command read before from the same place
+    if ( readCachedToken( buf ) ) return string_buffer;
+
     SKIP_SPACE( buf );
     markAsKidoku( buf );
+    char *kidoku_buf = buf;
+    int num_of_marks = 0; // not cached
 
   readTokenTop:
     string_counter = 0;
@@ -310,6 +369,7 @@ const char *ScriptHandler::readToken()
     else if ((ch >= 'a' && ch <= 'z') || 
              (ch >= 'A' && ch <= 'Z') ||
              ch == '_'){ // command
+        if (buf == kidoku_buf) num_of_marks = 1;
         do{
             if (ch >= 'A' && ch <= 'Z') ch += 'a' - 'A';
             addStringBuffer( ch );
@@ -324,6 +384,7 @@ const char *ScriptHandler::readToken()
         return readLabel();
     }
     else if (ch == '~' || ch == 0x0a || ch == ':'){
+        if (buf == kidoku_buf) num_of_marks = 2;
         addStringBuffer( ch );
         markAsKidoku( buf++ );
     }
@@ -334,12 +395,68 @@ const char *ScriptHandler::readToken()
     }
 
     next_script = checkComma(buf);
+    if (num_of_marks) addTokenCache( current_script, kidoku_buf, num_of_marks );
 
     //printf("readToken [%s] len=%d [%c(%x)] %p\n", string_buffer, strlen(string_buffer), ch, ch, next_script);
 
     return string_buffer;
 }
 
+void ScriptHandler::clearTokenCache()
+{
+    if ( token_cache ) delete[] token_cache;
+    token_cache = NULL;
+}
+
+// Direct mapped, so a line run now replaces one run long ago
+ScriptHandler::TokenCache *ScriptHandler::findTokenCache( int offset )
+{
+    unsigned int hash = offset * 2654435761u;
+    hash ^= hash >> 16;
+
+    return &token_cache[ hash & (TOKEN_CACHE_SIZE-1) ];
+}
+
+bool ScriptHandler::readCachedToken( char *buf )
+{
+    if ( token_cache == NULL ||
+         buf < script_buffer || buf >= script_buffer + script_buffer_length ) return false;
+
+    TokenCache *tc = findTokenCache( buf - script_buffer );
+    if ( tc->offset != buf - script_buffer ) return false;
+
+    for ( int i=0 ; i<tc->num_of_marks ; i++ )
+        markAsKidoku( script_buffer + tc->kidoku_offset );
+    memcpy( string_buffer, tc->token, tc->length+1 );
+    string_counter = tc->length;
+    end_status = tc->end_status;
+    next_script = script_buffer + tc->next_offset;
+
+    return true;
+}
+
+void ScriptHandler::addTokenCache( char *buf, char *kidoku_buf, int num_of_marks )
+{
+    // Only the script itself stays at the same address
+    if ( buf < script_buffer || buf >= script_buffer + script_buffer_length ||
+         string_counter >= TOKEN_CACHE_LENGTH ) return;
+
+    if ( token_cache == NULL ){
+        token_cache = new TokenCache[ TOKEN_CACHE_SIZE ];
+        for ( int i=0 ; i<TOKEN_CACHE_SIZE ; i++ )
+            token_cache[i].offset = -1;
+    }
+
+    TokenCache *tc = findTokenCache( buf - script_buffer );
+    tc->offset        = buf - script_buffer;
+    tc->next_offset   = next_script - script_buffer;
+    tc->kidoku_offset = kidoku_buf - script_buffer;
+    tc->end_status    = end_status;
+    tc->num_of_marks  = num_of_marks;
+    tc->length        = string_counter;
+    memcpy( tc->token, string_buffer, string_counter+1 );
+}
+
 const char *ScriptHandler::readLabel()
 {
     end_status = END_NONE;
@@ -687,6 +804,14 @@ void ScriptHandler::loadKidokuData()
     }
 }
 
+bool ScriptHandler::checkNewLabel()
+{
+    bool ret = new_label_flag;
+    new_label_flag = false;
+
+    return ret;
+}
+
 void ScriptHandler::addIntVariable(char **buf)
 {
     char num_buf[20];
@@ -922,17 +1047,37 @@ int ScriptHandler::getStringFromInteger( char *buffer, int no, int num_column, b
 
 int ScriptHandler::openScript(char *path)
 {
-    if (readScript(path) < 0) return -1;
-    readConfiguration();
-    variable_data = new VariableData[variable_range];
-    return labelScript();
+    // Only needed while a large script is decoded and labeled
+    load_threads.start( num_of_load_threads > 0 ? num_of_load_threads : SDL_GetCPUCount() );
+    int ret;
+#ifdef ANDROID
+    // errorAndExit() throws, as when the key table of nscript.___ is missing
+    try {
+#endif
+    ret = readScript(path);
+    if ( ret == 0 ){
+        readConfiguration();
+        variable_data = new VariableData[variable_range];
+        ret = labelScript();
+    }
+#ifdef ANDROID
+    } catch (ScriptException& e) {
+        load_threads.stop();
+        throw;
+    }
+#endif
+    load_threads.stop();
+
+    return ret;
 }
 
 struct ScriptHandler::LabelInfo ScriptHandler::lookupLabel( const char *label )
 {
     int i = findLabel( label );
 
+    int num_logs = log_info[LABEL_LOG].num_logs;
     findAndAddLog( log_info[LABEL_LOG], label_info[i].name, true );
+    if ( log_info[LABEL_LOG].num_logs != num_logs ) new_label_flag = true;
     return label_info[i];
 }
 
@@ -940,7 +1085,9 @@ struct ScriptHandler::LabelInfo ScriptHandler::lookupLabelNext( const char *labe
 {
     int i = findLabel( label );
     if ( i+1 < num_of_labels ){
+        int num_logs = log_info[LABEL_LOG].num_logs;
         findAndAddLog( log_info[LABEL_LOG], label_info[i+1].name, true );
+        if ( log_info[LABEL_LOG].num_logs != num_logs ) new_label_flag = true;
         return label_info[i+1];
     }
 
@@ -956,19 +1103,47 @@ ScriptHandler::LogLink *ScriptHandler::findAndAddLog( LogInfo &info, const char
         else if ( capital_name[i] == '/' ) capital_name[i] = '\\';
     }
     
-    LogLink *cur = info.root_log.next;
-    while( cur ){
-        if ( !strcmp( cur->name, capital_name ) ) break;
-        cur = cur->next;
+    unsigned int hash = hashString( capital_name );
+    info.num_lookups++;
+
+    LogLink *cur = NULL;
+    if ( info.hash_table ){
+        cur = info.hash_table[ hash & (info.hash_table_size-1) ];
+        while( cur ){
+            if ( cur->hash == hash ){
+                info.num_compares++;
+                if ( !strcmp( cur->name, capital_name ) ) break;
+            }
+            cur = cur->hash_next;
+        }
     }
     if ( !add_flag || cur ) return cur;
 
     LogLink *link = new LogLink();
     link->name = new char[strlen(capital_name)+1];
     strcpy( link->name, capital_name );
+    link->hash = hash;
     info.current_log->next = link;
     info.current_log = info.current_log->next;
     info.num_logs++;
+
+    // Grown so that the chains stay about one entry long
+    if ( (unsigned int)info.num_logs > info.hash_table_size ){
+        unsigned int size = info.hash_table_size ? info.hash_table_size*2 : 64;
+        LogLink **table = new LogLink*[size];
+        memset( table, 0, sizeof(LogLink*)*size );
+        for ( cur = info.root_log.next ; cur ; cur = cur->next ){
+            cur->hash_next = table[ cur->hash & (size-1) ];
+            table[ cur->hash & (size-1) ] = cur;
+        }
+        if ( info.hash_table ) delete[] info.hash_table;
+        info.hash_table = table;
+        info.hash_table_size = size;
+    }
+    else{
+        link->hash_next = info.hash_table[ hash & (info.hash_table_size-1) ];
+        info.hash_table[ hash & (info.hash_table_size-1) ] = link;
+    }
     
     return link;
 }
@@ -985,6 +1160,21 @@ void ScriptHandler::resetLog( LogInfo &info )
     info.root_log.next = NULL;
     info.current_log = &info.root_log;
     info.num_logs = 0;
+
+    if ( info.hash_table ) delete[] info.hash_table;
+    info.hash_table = NULL;
+    info.hash_table_size = 0;
+}
+
+void ScriptHandler::getLogStats( int *num_logs, unsigned int *num_lookups, unsigned int *num_compares )
+{
+    // Both logs, a lookup costs num_compares/num_lookups string comparisons on average
+    *num_logs = *num_lookups = *num_compares = 0;
+    for ( int i=0 ; i<2 ; i++ ){
+        *num_logs     += log_info[i].num_logs;
+        *num_lookups  += log_info[i].num_lookups;
+        *num_compares += log_info[i].num_compares;
+    }
 }
 
 ScriptHandler::ArrayVariable *ScriptHandler::getRootArrayVariable(){
@@ -1066,35 +1256,45 @@ ScriptHandler::VariableData &ScriptHandler::getVariableData(int no)
 // Private methods
 int ScriptHandler::readScript( char *path )
 {
+    clearTokenCache();
+
     archive_path = new char[strlen(path) + 1];
     strcpy( archive_path, path );
 
     FILE *fp = NULL;
     char filename[10];
+    const char *script_name = NULL;
     int i, encrypt_mode = 0;
     if ((fp = fopen("0.txt", "rb")) != NULL){
         encrypt_mode = 0;
+        script_name = "0.txt";
     }
     else if ((fp = fopen("00.txt", "rb")) != NULL){
         encrypt_mode = 0;
+        script_name = "00.txt";
     }
     else if ((fp = fopen("nscr_sec.dat", "rb")) != NULL){
         encrypt_mode = 2;
+        script_name = "nscr_sec.dat";
     }
     else if ((fp = fopen("nscript.___", "rb")) != NULL){
         encrypt_mode = 3;
+        script_name = "nscript.___";
     }
     else if ((fp = fopen("nscript.dat", "rb")) != NULL){
         encrypt_mode = 1;
+        script_name = "nscript.dat";
     }
 
     if (fp == NULL){
         loge( stderr, "can't open any of 0.txt, 00.txt, nscript.dat and nscript.___\n" );
         return -1;
     }
-    
+
     fseek( fp, 0, SEEK_END );
     int estimated_buffer_length = ftell( fp ) + 1;
+    startScriptCacheKey( encrypt_mode );
+    addScriptCacheKey( script_name, estimated_buffer_length-1 );
 
     if (encrypt_mode == 0){
         fclose(fp);
@@ -1106,40 +1306,50 @@ int ScriptHandler::readScript( char *path )
             }
             if (fp){
                 fseek( fp, 0, SEEK_END );
+                addScriptCacheKey( filename, ftell(fp) );
                 estimated_buffer_length += ftell(fp)+1;
                 fclose(fp);
             }
         }
     }
 
-    if ( script_buffer ) delete[] script_buffer;
-    script_buffer = new char[ estimated_buffer_length ];
-
-    char *p_script_buffer;
-    current_script = p_script_buffer = script_buffer;
-    
-    tmp_script_buf = new unsigned char[TMP_SCRIPT_BUF_LEN];
-    if (encrypt_mode > 0){
-        fseek( fp, 0, SEEK_SET );
-        readScriptSub( fp, &p_script_buffer, encrypt_mode );
-        fclose( fp );
+    // The decoded script of a previous start when none of the files has changed
+    if ( loadScriptCache() ){
+        if (encrypt_mode > 0) fclose( fp );
+        current_script = script_buffer;
     }
     else{
-        for (i=0 ; i<100 ; i++){
-            sprintf(filename, "%d.txt", i);
-            if ((fp = fopen(filename, "rb")) == NULL){
-                sprintf(filename, "%02d.txt", i);
-                fp = fopen(filename, "rb");
-            }
-            if (fp){
-                readScriptSub( fp, &p_script_buffer, 0 );
-                fclose(fp);
+        if ( script_buffer ) delete[] script_buffer;
+        script_buffer = new char[ estimated_buffer_length+1 ];
+
+        char *p_script_buffer;
+        current_script = p_script_buffer = script_buffer;
+
+        tmp_script_buf = new unsigned char[TMP_SCRIPT_BUF_LEN];
+        if (encrypt_mode > 0){
+            fseek( fp, 0, SEEK_SET );
+            readScriptSub( fp, &p_script_buffer, encrypt_mode );
+            fclose( fp );
+        }
+        else{
+            for (i=0 ; i<100 ; i++){
+                sprintf(filename, "%d.txt", i);
+                if ((fp = fopen(filename, "rb")) == NULL){
+                    sprintf(filename, "%02d.txt", i);
+                    fp = fopen(filename, "rb");
+                }
+                if (fp){
+                    readScriptSub( fp, &p_script_buffer, 0 );
+                    fclose(fp);
+                }
             }
         }
-    }
-    delete[] tmp_script_buf;
+        delete[] tmp_script_buf;
 
-    script_buffer_length = p_script_buffer - script_buffer;
+        script_buffer_length = p_script_buffer - script_buffer;
+        // SKIP_SPACE after the last label stops here
+        script_buffer[script_buffer_length] = '\0';
+    }
 
     if (!decoder) {
         decoder = ScriptDecoder::detectAndAllocateScriptDecoder(script_buffer, script_buffer_length);
@@ -1153,39 +1363,53 @@ int ScriptHandler::readScript( char *path )
     return 0;
 }
 
-int ScriptHandler::readScriptSub( FILE *fp, char **buf, int encrypt_mode )
+static const unsigned char script_magic[5] = {0x79, 0x57, 0x0d, 0x80, 0x04 };
+
+// What readScriptSub() carries from one byte to the next. Right after a newline it is
+// the same as at the top of a file, so the script can be decoded from any line on.
+struct ScriptDecodeState{
+    int  magic_counter;
+    bool newline_flag;
+    bool cr_flag;
+    bool newlabel_flag;
+    int  num_of_labels;
+
+    ScriptDecodeState( size_t offset ){
+        magic_counter = offset % 5;
+        newline_flag = true;
+        cr_flag = false;
+        newlabel_flag = false;
+        num_of_labels = 0;
+    };
+};
+
+static inline unsigned char decodeScriptByte( unsigned char ch, int encrypt_mode, int magic_counter,
+                                              const unsigned char *key_table )
 {
-    unsigned char magic[5] = {0x79, 0x57, 0x0d, 0x80, 0x04 };
-    int  magic_counter = 0;
-    bool newline_flag = true;
-    bool cr_flag = false;
-    bool newlabel_flag = false;
+    if      ( encrypt_mode == 1 ) ch ^= 0x84;
+    else if ( encrypt_mode == 2 ) ch = (ch ^ script_magic[magic_counter]) & 0xff;
+    else if ( encrypt_mode == 3 ) ch = key_table[ch] ^ 0x84;
+    return ch;
+}
 
-    if (encrypt_mode == 3 && !key_table_flag)
-        errorAndExit("readScriptSub: the EXE file must be specified with --key-exe option.");
+// Decodes len bytes, drops the CRs and counts the labels. Writes at most len bytes
+// to buf and returns the end.
+static char *decodeScript( const unsigned char *src, size_t len, char *buf, int encrypt_mode,
+                           const unsigned char *key_table, ScriptDecodeState &state )
+{
+    // Locals, since every store to buf could otherwise change the state
+    int  magic_counter = state.magic_counter;
+    bool newline_flag  = state.newline_flag;
+    bool cr_flag       = state.cr_flag;
+    bool newlabel_flag = state.newlabel_flag;
+    int  num_of_labels = state.num_of_labels;
 
-    size_t len=0, count=0;
-    while(1){
-        if (len == count){
-            len = fread(tmp_script_buf, 1, TMP_SCRIPT_BUF_LEN, fp);
-            if (len == 0){
-                if (cr_flag) *(*buf)++ = 0x0a;
-                break;
-            }
-            count = 0;
-        }
-        unsigned char ch = tmp_script_buf[count++];
-        if      ( encrypt_mode == 1 ) ch ^= 0x84;
-        else if ( encrypt_mode == 2 ){
-            ch = (ch ^ magic[magic_counter++]) & 0xff;
-            if ( magic_counter == 5 ) magic_counter = 0;
-        }
-        else if ( encrypt_mode == 3){
-            ch = key_table[(unsigned char)ch] ^ 0x84;
-        }
+    for ( size_t i=0 ; i<len ; i++ ){
+        unsigned char ch = decodeScriptByte( src[i], encrypt_mode, magic_counter, key_table );
+        if ( ++magic_counter == 5 ) magic_counter = 0;
 
         if ( cr_flag && ch != 0x0a ){
-            *(*buf)++ = 0x0a;
+            *buf++ = 0x0a;
             newline_flag = true;
             newlabel_flag = false;
             cr_flag = false;
@@ -1202,22 +1426,380 @@ int ScriptHandler::readScriptSub( FILE *fp, char **buf, int encrypt_mode )
             continue;
         }
         if ( ch == 0x0a ){
-            *(*buf)++ = 0x0a;
+            *buf++ = 0x0a;
             newline_flag = true;
             newlabel_flag = false;
             cr_flag = false;
         }
         else{
-            *(*buf)++ = ch;
+            *buf++ = ch;
             if ( ch != ' ' && ch != '\t' )
                 newline_flag = false;
         }
     }
 
+    state.magic_counter = magic_counter;
+    state.newline_flag  = newline_flag;
+    state.cr_flag       = cr_flag;
+    state.newlabel_flag = newlabel_flag;
+    state.num_of_labels = num_of_labels;
+
+    return buf;
+}
+
+int ScriptHandler::readScriptSub( FILE *fp, char **buf, int encrypt_mode )
+{
+    if (encrypt_mode == 3 && !key_table_flag)
+        errorAndExit("readScriptSub: the EXE file must be specified with --key-exe option.");
+
+    if ( readScriptChunks( fp, buf, encrypt_mode ) ) return 0;
+
+    ScriptDecodeState state( 0 );
+    size_t len;
+    while( (len = fread(tmp_script_buf, 1, TMP_SCRIPT_BUF_LEN, fp)) > 0 )
+        *buf = decodeScript( tmp_script_buf, len, *buf, encrypt_mode, key_table, state );
+    if (state.cr_flag) *(*buf)++ = 0x0a;
+    num_of_labels += state.num_of_labels;
+
     *(*buf)++ = 0x0a;
     return 0;
 }
 
+struct ScriptDecodeChunk{
+    const unsigned char *src;
+    size_t offset;
+    size_t length;
+    char *buf;     // starts at the same offset in the script buffer
+    char *buf_end;
+    int num_of_labels;
+};
+
+struct ScriptDecodeJob{
+    ScriptDecodeChunk chunks[BandThreads::MAX_THREADS];
+    int encrypt_mode;
+    const unsigned char *key_table;
+};
+
+static void decodeScriptChunks( void *data, int start, int end )
+{
+    ScriptDecodeJob *job = (ScriptDecodeJob*)data;
+
+    for ( int i=start ; i<end ; i++ ){
+        ScriptDecodeChunk &chunk = job->chunks[i];
+        ScriptDecodeState state( chunk.offset );
+        chunk.buf_end = decodeScript( chunk.src, chunk.length, chunk.buf,
+                                      job->encrypt_mode, job->key_table, state );
+        // Only the last chunk can end with a CR
+        if (state.cr_flag) *chunk.buf_end++ = 0x0a;
+        chunk.num_of_labels = state.num_of_labels;
+    }
+}
+
+bool ScriptHandler::readScriptChunks( FILE *fp, char **buf, int encrypt_mode )
+{
+    int num_of_chunks = load_threads.getNumThreads();
+    if ( num_of_chunks < 2 ) return false;
+
+    fseek( fp, 0, SEEK_END );
+    long len = ftell( fp );
+    fseek( fp, 0, SEEK_SET );
+    if ( len / SCRIPT_CHUNK_MIN_LENGTH < num_of_chunks )
+        num_of_chunks = len / SCRIPT_CHUNK_MIN_LENGTH;
+    if ( num_of_chunks < 2 ) return false;
+
+    unsigned char *src = new unsigned char[len];
+    if ( (long)fread( src, 1, len, fp ) != len ){
+        delete[] src;
+        fseek( fp, 0, SEEK_SET );
+        return false;
+    }
+
+    // Each chunk starts right after a newline
+    ScriptDecodeJob job;
+    job.encrypt_mode = encrypt_mode;
+    job.key_table = key_table;
+    long start = 0;
+    int n = 0;
+    for ( int i=1 ; i<=num_of_chunks && start<len ; i++ ){
+        long end = len;
+        if ( i < num_of_chunks ){
+            end = len * i / num_of_chunks;
+            if ( end < start ) end = start;
+            while ( end < len && decodeScriptByte( src[end], encrypt_mode, end % 5, key_table ) != 0x0a ) end++;
+            if ( end < len ) end++;
+        }
+        if ( end == start ) continue;
+
+        ScriptDecodeChunk &chunk = job.chunks[n++];
+        chunk.src = src + start;
+        chunk.offset = start;
+        chunk.length = end - start;
+        chunk.buf = *buf + start;
+        start = end;
+    }
+
+    load_threads.run( decodeScriptChunks, &job, n );
+
+    // A chunk never grows, so moving the chunks down in order overwrites nothing unread
+    char *p = *buf;
+    for ( int i=0 ; i<n ; i++ ){
+        size_t length = job.chunks[i].buf_end - job.chunks[i].buf;
+        if ( p != job.chunks[i].buf ) memmove( p, job.chunks[i].buf, length );
+        p += length;
+        num_of_labels += job.chunks[i].num_of_labels;
+    }
+    *p++ = 0x0a;
+    *buf = p;
+
+    delete[] src;
+    return true;
+}
+
+void ScriptHandler::startScriptCacheKey( int encrypt_mode )
+{
+    script_cache_flag = false;
+    script_cache_key_length = 0;
+#if defined(SCRIPT_CACHE_SUPPORTED)
+    if ( !script_cache_dir ) return;
+
+    // The key table decides how nscript.___ is decoded
+    unsigned int key_table_hash = HASH_INITIAL;
+    if ( encrypt_mode == 3 ){
+        if ( !key_table_flag ) return; // readScriptSub() reports the missing key
+        key_table_hash = hashBytes( key_table, 256 );
+    }
+
+    unsigned char *p = script_cache_key;
+    memcpy( p, SCRIPT_CACHE_MAGIC, 8 );
+    p += 8;
+    memcpy( p, &encrypt_mode, sizeof(encrypt_mode) );
+    p += sizeof(encrypt_mode);
+    memcpy( p, &key_table_hash, sizeof(key_table_hash) );
+    p += sizeof(key_table_hash);
+    script_cache_key_length = p - script_cache_key;
+#endif
+}
+
+void ScriptHandler::addScriptCacheKey( const char *filename, long size )
+{
+#if defined(SCRIPT_CACHE_SUPPORTED)
+    if ( script_cache_key_length == 0 ) return;
+
+    size_t name_len = strlen( filename );
+    long long values[2] = { size, 0 };
+    if ( script_cache_key_length + 1 + name_len + sizeof(values) > SCRIPT_CACHE_KEY_LENGTH ){
+        script_cache_key_length = 0;
+        return;
+    }
+
+    // Same path as fopen() opens
+    size_t len = strlen(archive_path) + name_len + 1;
+    char *path = new char[len];
+    snprintf( path, len, "%s%s", archive_path, filename );
+    for ( unsigned int i=0 ; path[i] ; i++ )
+        if ( path[i] == '/' || path[i] == '\\' )
+            path[i] = DELIMITER;
+
+    struct stat buf;
+    memset( &buf, 0, sizeof(buf) );
+    int ret = stat_ons( path, &buf );
+    delete[] path;
+    if ( ret != 0 ){
+        script_cache_key_length = 0;
+        return;
+    }
+    values[1] = buf.st_mtime;
+
+    unsigned char *p = script_cache_key + script_cache_key_length;
+    *p++ = name_len;
+    memcpy( p, filename, name_len );
+    p += name_len;
+    memcpy( p, values, sizeof(values) );
+    p += sizeof(values);
+    script_cache_key_length = p - script_cache_key;
+#endif
+}
+
+void ScriptHandler::getScriptCachePath( char *path, size_t path_len )
+{
+    // Hash of the game directory, so a new version of the script replaces the old
+    // cache; the key stored in the file tells whether it is still valid
+    unsigned int hash = hashString( archive_path );
+    snprintf( path, path_len, "%s%c%08x.scr", script_cache_dir, DELIMITER, hash );
+}
+
+bool ScriptHandler::loadScriptCache()
+{
+#if defined(SCRIPT_CACHE_SUPPORTED)
+    if ( script_cache_key_length == 0 ) return false;
+
+    char path[512];
+    getScriptCachePath( path, sizeof(path) );
+
+    // Read the whole cache with a single read, then take it apart in memory
+    int fd = ::open( path, O_RDONLY );
+    if ( fd < 0 ) return false;
+
+    struct stat buf;
+    if ( fstat( fd, &buf ) != 0 || (size_t)buf.st_size < sizeof(unsigned int) + script_cache_key_length ){
+        ::close( fd );
+        return false;
+    }
+    size_t size = buf.st_size;
+    unsigned char *data = new unsigned char[size];
+    ssize_t read_len = ::read( fd, data, size );
+    ::close( fd );
+
+    unsigned char *p = data, *end = data + size;
+    unsigned int key_length, buffer_length;
+    int num_of_all_labels, num_of_names;
+    LabelInfo *labels = NULL;
+    unsigned int *label_offsets = NULL; // header and start of each label in script_buffer
+    int i = 0;
+    bool ret = false;
+
+    memcpy( &key_length, p, sizeof(key_length) );
+    p += sizeof(key_length);
+    if ( read_len != (ssize_t)size ||
+         key_length != script_cache_key_length ||
+         memcmp( p, script_cache_key, key_length ) != 0 ) goto end;
+    p += key_length;
+
+    if ( p + sizeof(buffer_length) + sizeof(num_of_all_labels) + sizeof(num_of_names) > end ) goto end;
+    memcpy( &buffer_length, p, sizeof(buffer_length) );
+    p += sizeof(buffer_length);
+    memcpy( &num_of_all_labels, p, sizeof(num_of_all_labels) );
+    p += sizeof(num_of_all_labels);
+    memcpy( &num_of_names, p, sizeof(num_of_names) );
+    p += sizeof(num_of_names);
+    if ( num_of_names < 0 || num_of_names > num_of_all_labels ) goto end;
+
+    labels = new LabelInfo[ num_of_all_labels+1 ];
+    label_offsets = new unsigned int[ num_of_names*2+1 ];
+    for ( i=0 ; i<num_of_names ; i++ ){
+        unsigned int name_len, offsets[2];
+        int lines[2];
+
+        if ( p + sizeof(name_len) > end ) goto end;
+        memcpy( &name_len, p, sizeof(name_len) );
+        p += sizeof(name_len);
+        if ( name_len > (size_t)(end - p) || p + name_len + sizeof(offsets) + sizeof(lines) > end ) goto end;
+        labels[i].name = new char[ name_len+1 ];
+        memcpy( labels[i].name, p, name_len );
+        labels[i].name[name_len] = '\0';
+        p += name_len;
+
+        memcpy( offsets, p, sizeof(offsets) );
+        p += sizeof(offsets);
+        memcpy( lines, p, sizeof(lines) );
+        p += sizeof(lines);
+        if ( offsets[0] > buffer_length || offsets[1] > buffer_length ){
+            i++;
+            goto end;
+        }
+        label_offsets[i*2]   = offsets[0];
+        label_offsets[i*2+1] = offsets[1];
+        labels[i].start_line    = lines[0];
+        labels[i].num_of_lines  = lines[1];
+    }
+    if ( p + buffer_length != end ) goto end;
+
+    if ( script_buffer ) delete[] script_buffer;
+    script_buffer = new char[ buffer_length+1 ];
+    memcpy( script_buffer, p, buffer_length );
+    script_buffer[buffer_length] = '\0';
+    script_buffer_length = buffer_length;
+
+    for ( i=0 ; i<num_of_names ; i++ ){
+        labels[i].label_header  = script_buffer + label_offsets[i*2];
+        labels[i].start_address = script_buffer + label_offsets[i*2+1];
+    }
+    labels[num_of_all_labels].start_address = NULL;
+
+    label_info = labels;
+    labels = NULL;
+    num_of_labels = num_of_all_labels;
+    num_of_named_labels = num_of_names;
+    script_cache_flag = true;
+    ret = true;
+
+end:
+    if ( labels ){
+        for ( int j=0 ; j<i ; j++ ) delete[] labels[j].name;
+        delete[] labels;
+    }
+    if ( label_offsets ) delete[] label_offsets;
+    delete[] data;
+    return ret;
+#else
+    return false;
+#endif
+}
+
+void ScriptHandler::saveScriptCache()
+{
+#if defined(SCRIPT_CACHE_SUPPORTED)
+    if ( script_cache_key_length == 0 ) return;
+
+    int i;
+    unsigned int key_length = script_cache_key_length;
+    unsigned int buffer_length = script_buffer_length;
+    size_t size = sizeof(key_length) + key_length + sizeof(buffer_length) + sizeof(int)*2 + buffer_length;
+    for ( i=0 ; i<num_of_named_labels ; i++ )
+        size += sizeof(unsigned int) + strlen( label_info[i].name ) + sizeof(unsigned int)*2 + sizeof(int)*2;
+
+    unsigned char *data = new unsigned char[size];
+    unsigned char *p = data;
+    memcpy( p, &key_length, sizeof(key_length) );
+    p += sizeof(key_length);
+    memcpy( p, script_cache_key, key_length );
+    p += key_length;
+    memcpy( p, &buffer_length, sizeof(buffer_length) );
+    p += sizeof(buffer_length);
+    memcpy( p, &num_of_labels, sizeof(int) );
+    p += sizeof(int);
+    memcpy( p, &num_of_named_labels, sizeof(int) );
+    p += sizeof(int);
+
+    for ( i=0 ; i<num_of_named_labels ; i++ ){
+        LabelInfo &label = label_info[i];
+        unsigned int name_len = strlen( label.name );
+        unsigned int offsets[2] = { (unsigned int)(label.label_header - script_buffer),
+                                    (unsigned int)(label.start_address - script_buffer) };
+        int lines[2] = { label.start_line, label.num_of_lines };
+
+        memcpy( p, &name_len, sizeof(name_len) );
+        p += sizeof(name_len);
+        memcpy( p, label.name, name_len );
+        p += name_len;
+        memcpy( p, offsets, sizeof(offsets) );
+        p += sizeof(offsets);
+        memcpy( p, lines, sizeof(lines) );
+        p += sizeof(lines);
+    }
+    memcpy( p, script_buffer, buffer_length );
+
+    // Write to a temporary file first so a partially written cache is never loaded
+    char path[512], tmp_path[516];
+    getScriptCachePath( path, sizeof(path) );
+    snprintf( tmp_path, sizeof(tmp_path), "%s.tmp", path );
+
+    int fd = ::open( tmp_path, O_WRONLY | O_CREAT | O_TRUNC, 0600 );
+    if ( fd < 0 ){
+        logw( stderr, "can't create script cache %s\n", tmp_path );
+    }
+    else{
+        bool written = ::write( fd, data, size ) == (ssize_t)size;
+        ::close( fd );
+        if ( !written || rename( tmp_path, path ) != 0 ){
+            logw( stderr, "can't write script cache %s\n", path );
+            unlink( tmp_path );
+        }
+    }
+    delete[] data;
+#endif
+}
+
 void ScriptHandler::readConfiguration()
 {
     variable_range = 4096;
@@ -1301,8 +1883,193 @@ void ScriptHandler::readConfiguration()
     }
 }
 
+// Reads "*name" at buf the same way as readLabel() and returns what getNext() would,
+// or NULL when the name does not fit in string_buffer.
+static char *scanLabel( char *buf, char *name )
+{
+    int len = 0;
+    buf++;
+    SKIP_SPACE( buf );
+    char ch = *buf;
+    while((ch >= 'a' && ch <= 'z') || 
+          (ch >= 'A' && ch <= 'Z') ||
+          (ch >= '0' && ch <= '9') ||
+          ch == '_'){
+        if (len+3 == STRING_BUFFER_LENGTH) return NULL;
+        if (ch >= 'A' && ch <= 'Z') ch += 'a' - 'A';
+        name[len++] = ch;
+        ch = *++buf;
+    }
+    name[len] = '\0';
+
+    SKIP_SPACE( buf );
+    if (*buf == ','){
+        buf++;
+        SKIP_SPACE( buf );
+    }
+    return buf;
+}
+
+struct ScriptLabelChunk{
+    char *start, *end;
+    ScriptHandler::LabelInfo *labels;
+    int num_of_labels;
+    int num_of_lines;
+    int num_of_leading_lines; // belong to the last label of an earlier chunk
+    bool error_flag;
+};
+
+struct ScriptLabelJob{
+    ScriptLabelChunk chunks[BandThreads::MAX_THREADS];
+};
+
+static void labelChunks( void *data, int start, int end )
+{
+    ScriptLabelJob *job = (ScriptLabelJob*)data;
+    char name[STRING_BUFFER_LENGTH];
+
+    for ( int i=start ; i<end ; i++ ){
+        ScriptLabelChunk &chunk = job->chunks[i];
+        int label_counter = -1;
+        int current_line = 0;
+        int labels_size = 256;
+        char *buf = chunk.start;
+        chunk.labels = new ScriptHandler::LabelInfo[ labels_size ];
+        chunk.num_of_leading_lines = 0;
+        chunk.error_flag = false;
+
+        // Avoid the file byte order marks (utf8) and skip to first ';', '\n', or '*'
+        while ( i == 0 && buf < chunk.end ){
+            if (*buf == ';' || *buf == '*' || *buf == '\n') break;
+            buf++;
+        }
+
+        // Same as labelScript()
+        while ( buf < chunk.end ){
+            SKIP_SPACE( buf );
+            if ( *buf == '*' ){
+                while (*(buf+1) == '*') buf++;
+                char *label_header = buf;
+                buf = scanLabel( buf, name );
+                if ( buf == NULL ){
+                    chunk.error_flag = true;
+                    break;
+                }
+                if ( ++label_counter == labels_size ){
+                    ScriptHandler::LabelInfo *labels = new ScriptHandler::LabelInfo[ labels_size*2 ];
+                    memcpy( labels, chunk.labels, sizeof(ScriptHandler::LabelInfo)*labels_size );
+                    delete[] chunk.labels;
+                    chunk.labels = labels;
+                    labels_size *= 2;
+                }
+                ScriptHandler::LabelInfo &label = chunk.labels[ label_counter ];
+                label.name = new char[ strlen(name)+1 ];
+                strcpy( label.name, name );
+                label.label_header = label_header;
+                label.num_of_lines = 1;
+                label.start_line   = current_line;
+                if ( *buf == 0x0a ){
+                    buf++;
+                    current_line++;
+                }
+                SKIP_SPACE( buf );
+                label.start_address = buf;
+            }
+            else{
+                if ( label_counter >= 0 )
+                    chunk.labels[ label_counter ].num_of_lines++;
+                else
+                    chunk.num_of_leading_lines++;
+                while( *buf != 0x0a ) buf++;
+                buf++;
+                current_line++;
+            }
+        }
+
+        chunk.num_of_labels = label_counter+1;
+        chunk.num_of_lines = current_line;
+    }
+}
+
+bool ScriptHandler::labelScriptChunks()
+{
+    int num_of_chunks = load_threads.getNumThreads();
+    if ( (int)(script_buffer_length / SCRIPT_CHUNK_MIN_LENGTH) < num_of_chunks )
+        num_of_chunks = script_buffer_length / SCRIPT_CHUNK_MIN_LENGTH;
+    if ( num_of_chunks < 2 ) return false;
+
+    // Each chunk starts right after a newline
+    ScriptLabelJob job;
+    char *start = script_buffer, *buffer_end = script_buffer + script_buffer_length;
+    int i, j, n = 0;
+    for ( i=1 ; i<=num_of_chunks && start<buffer_end ; i++ ){
+        char *end = buffer_end;
+        if ( i < num_of_chunks ){
+            end = script_buffer + script_buffer_length * i / num_of_chunks;
+            if ( end < start ) end = start;
+            while ( end < buffer_end && *end != 0x0a ) end++;
+            if ( end < buffer_end ) end++;
+        }
+        if ( end == start ) continue;
+
+        job.chunks[n].start = start;
+        job.chunks[n++].end = end;
+        start = end;
+    }
+
+    load_threads.run( labelChunks, &job, n );
+
+    // Fall back to labelScript() to report a long name the same way
+    int label_counter = 0;
+    bool error_flag = false;
+    for ( i=0 ; i<n ; i++ ){
+        label_counter += job.chunks[i].num_of_labels;
+        if ( job.chunks[i].error_flag ) error_flag = true;
+    }
+    if ( error_flag || label_counter > num_of_labels ){
+        for ( i=0 ; i<n ; i++ ){
+            for ( j=0 ; j<job.chunks[i].num_of_labels ; j++ )
+                delete[] job.chunks[i].labels[j].name;
+            delete[] job.chunks[i].labels;
+        }
+        return false;
+    }
+
+    label_info = new LabelInfo[ num_of_labels+1 ];
+    label_counter = 0;
+    int current_line = 0;
+    for ( i=0 ; i<n ; i++ ){
+        ScriptLabelChunk &chunk = job.chunks[i];
+        if ( label_counter > 0 )
+            label_info[ label_counter-1 ].num_of_lines += chunk.num_of_leading_lines;
+        for ( j=0 ; j<chunk.num_of_labels ; j++ ){
+            label_info[ label_counter ] = chunk.labels[j];
+            label_info[ label_counter++ ].start_line += current_line;
+        }
+        current_line += chunk.num_of_lines;
+        delete[] chunk.labels;
+    }
+
+    label_info[num_of_labels].start_address = NULL;
+    num_of_named_labels = label_counter;
+
+    return true;
+}
+
 int ScriptHandler::labelScript()
 {
+    if ( script_cache_flag ){
+        // label_info was loaded together with the script
+        buildLabelIndex();
+        return 0;
+    }
+
+    if ( labelScriptChunks() ){
+        buildLabelIndex();
+        saveScriptCache();
+        return 0;
+    }
+
     int label_counter = -1;
     int current_line = 0;
     char *buf = script_buffer;
@@ -1343,10 +2110,36 @@ int ScriptHandler::labelScript()
     }
 
     label_info[num_of_labels].start_address = NULL;
+
+    // Extra '*'s on a label line are counted in num_of_labels but get no name
+    num_of_named_labels = label_counter+1;
+    buildLabelIndex();
+    saveScriptCache();
     
     return 0;
 }
 
+static unsigned int getLabelHash( void *data, unsigned int index )
+{
+    return hashString( ((ScriptHandler::LabelInfo*)data)[index].name );
+}
+
+static bool isSameLabel( void *data, unsigned int index1, unsigned int index2 )
+{
+    ScriptHandler::LabelInfo *label_info = (ScriptHandler::LabelInfo*)data;
+    return !strcmp( label_info[index1].name, label_info[index2].name );
+}
+
+void ScriptHandler::buildLabelIndex()
+{
+    if ( label_index_table ) delete[] label_index_table;
+
+    // The names are already lower case as readLabel() returns them, and the first
+    // one of the labels with the same name is used
+    label_index_table = buildHashTable( num_of_named_labels, getLabelHash, isSameLabel,
+                                        label_info, &label_index_table_size );
+}
+
 int ScriptHandler::findLabel( const char *label )
 {
     int i;
@@ -1356,9 +2149,21 @@ int ScriptHandler::findLabel( const char *label )
         capital_label[i] = label[i];
         if ( 'A' <= capital_label[i] && capital_label[i] <= 'Z' ) capital_label[i] += 'a' - 'A';
     }
-    for ( i=0 ; i<num_of_labels ; i++ ){
-        if ( !strcmp( label_info[i].name, capital_label ) )
-            return i;
+    if ( label_index_table ){
+        unsigned int mask = label_index_table_size - 1;
+        unsigned int j = hashString( capital_label ) & mask;
+        while ( label_index_table[j] ){
+            i = label_index_table[j] - 1;
+            if ( !strcmp( label_info[i].name, capital_label ) )
+                return i;
+            j = (j+1) & mask;
+        }
+    }
+    else{
+        for ( i=0 ; i<num_of_labels ; i++ ){
+            if ( !strcmp( label_info[i].name, capital_label ) )
+                return i;
+        }
     }
 
 #ifdef ENABLE_KOREAN
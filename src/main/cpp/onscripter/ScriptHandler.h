@@ -30,6 +30,7 @@
 #include "BaseReader.h"
 #include "ScriptDecoder.h"
 #include "ScriptException.h"
+#include "BandThreads.h"
 
 #ifdef ANDROID
 #include "MenuText.h"
@@ -46,6 +47,8 @@
 #define KOREAN_LABEL_END2 "l_testnano"
 #endif
 
+#define TOKEN_CACHE_LENGTH 16 // including '\0'
+
 typedef unsigned char uchar3[3];
 
 class ScriptHandler
@@ -118,6 +121,15 @@ public:
     void setSaveDir(const char *path);
     FILE *fopen( const char *path, const char *mode, bool use_save_dir=false );
     void setKeyTable( const unsigned char *key_table );
+    void setScriptCacheDir( const char *path );
+    void setNumLoadThreads( int num ){ num_of_load_threads = num; };
+    // func is called with the path of every file fopen() opens for writing
+    typedef void (*FileWriteFunc)( void *data, const char *path );
+    void setFileWriteFunc( FileWriteFunc func, void *data ){ file_write_func = func; file_write_data = data; };
+    // func is called before cBR is deleted, opens another archive or registers a compression type
+    typedef void (*ReaderChangeFunc)( void *data );
+    void setReaderChangeFunc( ReaderChangeFunc func, void *data ){ reader_change_func = func; reader_change_data = data; };
+    void prepareReaderChange(){ if ( reader_change_func ) reader_change_func( reader_change_data ); };
 
     // basic parser function
     const char *readToken();
@@ -137,6 +149,8 @@ public:
     // function for direct manipulation of script address 
     inline char *getCurrent(bool use_script=false){ return (use_script && is_internal_script)?last_script_context->current_script:current_script; };
     inline char *getNext(){ return next_script; };
+    inline char *getScriptBuffer(){ return script_buffer; };
+    inline char *getScriptBufferEnd(){ return script_buffer + script_buffer_length; };
     inline char *getWait(){ return wait_script?wait_script:next_script; };
     void setCurrent(char *pos);
     void pushCurrent( char *pos );
@@ -173,6 +187,7 @@ public:
     void setKidokuskip( bool kidokuskip_flag );
     void saveKidokuData();
     void loadKidokuData();
+    bool checkNewLabel(); // whether a label not in the label log was entered since the last call
 
     void addStrVariable(char **buf);
     void addIntVariable(char **buf);
@@ -207,24 +222,31 @@ public:
     };
     struct LogLink{
         LogLink *next;
+        LogLink *hash_next;
         char *name;
+        unsigned int hash;
 
         LogLink(){
-            next = NULL;
+            next = hash_next = NULL;
             name = NULL;
+            hash = 0;
         };
         ~LogLink(){
             if ( name ) delete[] name;
         };
     };
     struct LogInfo{
-        LogLink root_log;
+        LogLink root_log; // in the order the names were added, as they are saved
         LogLink *current_log;
         int num_logs;
         const char *filename;
+        LogLink **hash_table;
+        unsigned int hash_table_size;
+        unsigned int num_lookups, num_compares;
     } log_info[2];
     LogLink *findAndAddLog( LogInfo &info, const char *name, bool add_flag );
     void resetLog( LogInfo &info );
+    void getLogStats( int *num_logs, unsigned int *num_lookups, unsigned int *num_compares );
     
     /* ---------------------------------------- */
     /* Variable */
@@ -262,6 +284,11 @@ public:
 
     ScriptDecoder* decoder;
 private:
+    FileWriteFunc file_write_func;
+    void *file_write_data;
+    ReaderChangeFunc reader_change_func;
+    void *reader_change_data;
+
     enum { OP_INVALID = 0, // 000
            OP_PLUS    = 2, // 010
            OP_MINUS   = 3, // 011
@@ -315,8 +342,11 @@ private:
 
     int  readScript(char *path);
     int  readScriptSub(FILE *fp, char **buf, int encrypt_mode);
+    bool readScriptChunks(FILE *fp, char **buf, int encrypt_mode);
     void readConfiguration();
     int  labelScript();
+    bool labelScriptChunks();
+    void buildLabelIndex();
 
     int findLabel( const char* label );
 
@@ -355,10 +385,13 @@ private:
 
     LabelInfo *label_info;
     int num_of_labels;
+    unsigned int *label_index_table; // index+1 into label_info by the hash of the name, 0 if empty
+    unsigned int label_index_table_size;
 
     bool skip_enabled;
     bool kidokuskip_flag;
     char *kidoku_buffer;
+    bool new_label_flag;
 
     bool text_flag; // true if the current token is text
     int  end_status;
@@ -380,6 +413,42 @@ private:
     unsigned char key_table[256];
     bool key_table_flag;
 
+    /* ---------------------------------------- */
+    /* Decoded script and labels saved for the next start */
+    char *script_cache_dir;
+    unsigned char *script_cache_key; // encrypt mode and the name, size and time of the script files
+    size_t script_cache_key_length;
+    bool script_cache_flag; // script_buffer and label_info were loaded from the cache
+    int num_of_named_labels;
+
+    void startScriptCacheKey( int encrypt_mode );
+    void addScriptCacheKey( const char *filename, long size );
+    void getScriptCachePath( char *path, size_t path_len );
+    bool loadScriptCache();
+    void saveScriptCache();
+
+    /* ---------------------------------------- */
+    /* Threads decoding and labeling large scripts in chunks */
+    BandThreads load_threads;
+    int num_of_load_threads; // 0 for the number of CPUs
+
+    /* ---------------------------------------- */
+    /* Commands read by readToken(), by their offset in script_buffer */
+    struct TokenCache{
+        int offset; // -1 if empty
+        int next_offset;
+        int kidoku_offset;
+        unsigned char end_status;
+        unsigned char num_of_marks; // markAsKidoku() calls
+        unsigned char length;
+        char token[TOKEN_CACHE_LENGTH];
+    } *token_cache;
+
+    void clearTokenCache();
+    TokenCache *findTokenCache( int offset );
+    bool readCachedToken( char *buf );
+    void addTokenCache( char *buf, char *kidoku_buf, int num_of_marks );
+
 #ifdef ANDROID
     MenuTextBase* menuText;
 #endif
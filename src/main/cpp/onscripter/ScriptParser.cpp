@@ -80,6 +80,7 @@ ScriptParser::ScriptParser()
 
     render_font_outline = false;
     use_parent_resources = false;
+    use_mmap_archives = false;
     page_list = NULL;
 
 #ifdef ANDROID
@@ -119,7 +120,7 @@ ScriptParser::~ScriptParser()
 void ScriptParser::reset()
 {
     int i;
-    for (i='z'-'a' ; i>=0 ; i--){
+    for (i=USER_FUNC_HASH_SIZE-1 ; i>=0 ; i--){
         UserFuncHash &ufh = user_func_hash[i];
         UserFuncLUT *func = ufh.root.next;
         while(func){
@@ -281,10 +282,11 @@ void ScriptParser::reset()
 
 int ScriptParser::openScript()
 {
-    script_h.cBR = new NsaReader( 0, archive_path, BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources );
+    script_h.prepareReaderChange();
+    script_h.cBR = new NsaReader( 0, archive_path, BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources, use_mmap_archives );
     if (script_h.cBR->open( nsa_path )){
         delete script_h.cBR;
-        script_h.cBR = new DirectReader( archive_path, key_table, use_parent_resources );
+        script_h.cBR = new DirectReader( archive_path, key_table, use_parent_resources, use_mmap_archives );
         script_h.cBR->open();
     }
     
@@ -327,6 +329,28 @@ void ScriptParser::deleteRMenuLink()
     rmenu_link_width = 0;
 }
 
+void ScriptParser::addUserFunc( const char *cmd, bool lua_flag )
+{
+    unsigned int hash = hashString( cmd );
+    UserFuncHash &ufh = user_func_hash[hash & (USER_FUNC_HASH_SIZE-1)];
+    ufh.last->next = new UserFuncLUT();
+    ufh.last = ufh.last->next;
+    ufh.last->hash = hash;
+    ufh.last->lua_flag = lua_flag;
+    setStr( &ufh.last->command, cmd );
+}
+
+ScriptParser::UserFuncLUT *ScriptParser::findUserFunc( const char *cmd, unsigned int hash )
+{
+    UserFuncLUT *uf = user_func_hash[hash & (USER_FUNC_HASH_SIZE-1)].root.next;
+    while(uf){
+        if (uf->hash == hash && !strcmp( uf->command, cmd )) return uf;
+        uf = uf->next;
+    }
+
+    return NULL;
+}
+
 int ScriptParser::getSystemCallNo( const char *buffer )
 {
     if      ( !strcmp( buffer, "skip" ) )        return SYSTEM_SKIP;
@@ -32,6 +32,7 @@
 #include <sys/stat.h>
 
 #include "ScriptHandler.h"
+#include "CommandHash.h"
 #include "NsaReader.h"
 #include "DirectReader.h"
 #include "AnimationInfo.h"
@@ -58,6 +59,8 @@
 
 #define MAX_LAYER_NUM 32
 
+#define USER_FUNC_HASH_SIZE 64 // power of 2
+
 typedef unsigned char uchar3[3];
 
 class ScriptParser
@@ -173,10 +176,12 @@ protected:
     struct UserFuncLUT{
         struct UserFuncLUT *next;
         char *command;
+        unsigned int hash;
         bool lua_flag;
         UserFuncLUT(){
             next = NULL;
             command = NULL;
+            hash = 0;
             lua_flag = false;
         };
         ~UserFuncLUT(){
@@ -184,10 +189,14 @@ protected:
         };
     };
 
+    // defsub and luasub commands, by the hash of their names
     struct UserFuncHash{
         UserFuncLUT root;
         UserFuncLUT *last;
-    } user_func_hash['z'-'a'+1];
+    } user_func_hash[USER_FUNC_HASH_SIZE];
+
+    void addUserFunc( const char *cmd, bool lua_flag );
+    UserFuncLUT *findUserFunc( const char *cmd, unsigned int hash );
 
     struct NestInfo{
         enum { LABEL = 0,
@@ -256,6 +265,7 @@ protected:
     int  windowchip_sprite_no;
 
     bool use_parent_resources;
+    bool use_mmap_archives;
     
     int string_buffer_offset;
 
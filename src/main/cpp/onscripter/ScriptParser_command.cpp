@@ -198,6 +198,7 @@ int ScriptParser::soundpressplginCommand()
     if (*buf == 0) return RET_CONTINUE;
     
     buf++;
+    script_h.prepareReaderChange();
     script_h.cBR->registerCompressionType( buf, BaseReader::NBZ_COMPRESSION );
 
     return RET_CONTINUE;
@@ -494,8 +495,9 @@ int ScriptParser::nsaCommand()
         nsa_offset = 2;
     }
     
+    script_h.prepareReaderChange();
     delete script_h.cBR;
-    script_h.cBR = new NsaReader( nsa_offset, archive_path, BaseReader::ARCHIVE_TYPE_NSA|BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources );
+    script_h.cBR = new NsaReader( nsa_offset, archive_path, BaseReader::ARCHIVE_TYPE_NSA|BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources, use_mmap_archives );
     if ( script_h.cBR->open( nsa_path ) ){
         logw( stderr, " *** failed to open nsa or ns2 archive, ignored.  ***\n");
     }
@@ -708,13 +710,8 @@ int ScriptParser::luasubCommand()
 {
     const char *cmd = script_h.readLabel();
 
-    if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
-        ufh.last->next = new UserFuncLUT();
-        ufh.last = ufh.last->next;
-        ufh.last->lua_flag = true;
-        setStr( &ufh.last->command, cmd );
-    }
+    if (cmd[0] >= 'a' && cmd[0] <= 'z')
+        addUserFunc( cmd, true );
     
     return RET_CONTINUE;
 }
@@ -1240,12 +1237,8 @@ int ScriptParser::defsubCommand()
 {
     const char *cmd = script_h.readLabel();
 
-    if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
-        ufh.last->next = new UserFuncLUT();
-        ufh.last = ufh.last->next;
-        setStr( &ufh.last->command, cmd );
-    }
+    if (cmd[0] >= 'a' && cmd[0] <= 'z')
+        addUserFunc( cmd, false );
     
     return RET_CONTINUE;
 }
@@ -1414,13 +1407,15 @@ int ScriptParser::arcCommand()
     buf2[i] = '\0';
 
     if ( strcmp( script_h.cBR->getArchiveName(), "direct" ) == 0 ){
+        script_h.prepareReaderChange();
         delete script_h.cBR;
-        script_h.cBR = new SarReader( archive_path, key_table, use_parent_resources );
+        script_h.cBR = new SarReader( archive_path, key_table, use_parent_resources, use_mmap_archives );
         if ( script_h.cBR->open( buf2 ) ){
             logw( stderr, " *** failed to open archive %s, ignored.  ***\n", buf2 );
         }
     }
     else if ( strcmp( script_h.cBR->getArchiveName(), "sar" ) == 0 ){
+        script_h.prepareReaderChange();
         if ( script_h.cBR->open( buf2 ) ){
             logw( stderr, " *** failed to open archive %s, ignored.  ***\n", buf2 );
         }
@@ -0,0 +1,123 @@
+/* -*- C++ -*-
+ *
+ *  command_bench.cpp - compares the command lookups of ONScripter::parseLine()
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+
+#include "CommandHash.h"
+
+#define MAX_COMMANDS 1024
+
+static double getTime()
+{
+    struct timeval tv;
+    gettimeofday( &tv, NULL );
+    return tv.tv_sec + tv.tv_usec / 1000000.0;
+}
+
+int main( int argc, char **argv )
+{
+    if ( argc < 2 ){
+        fprintf( stderr, "Usage: command_bench ONScripter_lut.cpp [commands]\n" );
+        exit(-1);
+    }
+    int num_of_runs = ( argc > 2 ) ? atoi( argv[2] ) : 10000000;
+    if ( num_of_runs <= 0 ){
+        fprintf( stderr, "command_bench: invalid number of commands\n" );
+        exit(-1);
+    }
+
+    // The names of func_lut, in the same order
+    FILE *fp = fopen( argv[1], "r" );
+    if ( fp == NULL ){
+        perror( "command_bench" );
+        exit(-1);
+    }
+    char *names[MAX_COMMANDS];
+    int num = 0;
+    char line[256];
+    while ( num < MAX_COMMANDS && fgets( line, sizeof(line), fp ) ){
+        char *p = strstr( line, "{\"" ), *q;
+        if ( p == NULL || (q = strchr( p+2, '"' )) == NULL || q == p+2 ) continue;
+        *q = '\0';
+        names[num] = new char[ q - p - 1 ];
+        strcpy( names[num++], p+2 );
+    }
+    fclose( fp );
+    if ( num == 0 ){
+        fprintf( stderr, "command_bench: no command in %s\n", argv[1] );
+        exit(-1);
+    }
+
+    // What makeFuncLUT() built before: the names sharing the first letter
+    int first[26], count[26];
+    for ( int i=0 ; i<26 ; i++ ) first[i] = count[i] = 0;
+    for ( int i=0 ; i<num ; i++ ){
+        int j = names[i][0]-'a';
+        if ( count[j] == 0 ) first[j] = i;
+        count[j] = i - first[j] + 1;
+    }
+
+    CommandHash func_hash;
+    double start = getTime();
+    func_hash.build( (const char**)names, num );
+    double build_time = getTime() - start;
+
+    // A command stream where one of eight tokens is not a command
+    int num_of_tokens = 4096;
+    char **tokens = new char*[ num_of_tokens ];
+    srand( 1 );
+    for ( int i=0 ; i<num_of_tokens ; i++ ){
+        tokens[i] = new char[64];
+        if ( rand() % 8 == 0 )
+            sprintf( tokens[i], "%s_%d", names[rand() % num], i );
+        else
+            strcpy( tokens[i], names[rand() % num] );
+    }
+
+    start = getTime();
+    int sum = 0;
+    for ( int i=0 ; i<num_of_runs ; i++ ){
+        const char *cmd = tokens[i & (num_of_tokens-1)];
+        int j = cmd[0]-'a', k;
+        for ( k=0 ; k<count[j] ; k++ )
+            if ( !strcmp( names[first[j]+k], cmd ) ) break;
+        sum += ( k<count[j] ) ? first[j]+k : -1;
+    }
+    double scan_time = getTime() - start;
+
+    start = getTime();
+    int sum2 = 0;
+    for ( int i=0 ; i<num_of_runs ; i++ )
+        sum2 += func_hash.find( tokens[i & (num_of_tokens-1)] );
+    double hash_time = getTime() - start;
+
+    printf( "%d commands, perfect hash built in %.3f ms\n", num, build_time * 1000 );
+    printf( "first letter scan : %.0f commands/sec\n", num_of_runs / scan_time );
+    printf( "perfect hash      : %.0f commands/sec\n", num_of_runs / hash_time );
+    printf( "results           : %s\n", sum == sum2 ? "identical" : "DIFFERENT" );
+
+    for ( int i=0 ; i<num_of_tokens ; i++ ) delete[] tokens[i];
+    delete[] tokens;
+    for ( int i=0 ; i<num ; i++ ) delete[] names[i];
+
+    exit( sum == sum2 ? 0 : 1 );
+}
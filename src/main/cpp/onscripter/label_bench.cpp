@@ -0,0 +1,206 @@
+/* -*- C++ -*-
+ *
+ *  label_bench.cpp - measures label lookups on a synthetic script
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+
+#include "ScriptHandler.h"
+
+#ifdef ANDROID
+// The engine opens files through Java, plain files are enough here
+#undef fopen
+#undef mkdir
+extern "C" FILE *fopen_ons( const char *path, const char *mode )
+{
+    return fopen( path, mode );
+}
+
+extern "C" int mkdir_ons( const char *path, mode_t mode )
+{
+    return mkdir( path, mode );
+}
+
+extern "C" int stat_ons( const char *path, struct stat *buf )
+{
+    return stat( path, buf );
+}
+#endif
+
+static double getTime()
+{
+    struct timeval tv;
+    gettimeofday( &tv, NULL );
+    return tv.tv_sec + tv.tv_usec / 1000000.0;
+}
+
+static bool compareLabels( ScriptHandler &script_h, ScriptHandler &script_h2, char **names, int num_of_names )
+{
+    // The whole script, then each label
+    size_t length = script_h.getScriptBufferEnd() - script_h.getScriptBuffer();
+    if ( length != (size_t)(script_h2.getScriptBufferEnd() - script_h2.getScriptBuffer()) ||
+         memcmp( script_h.getScriptBuffer(), script_h2.getScriptBuffer(), length ) )
+        return false;
+
+    for ( int i=0 ; i<num_of_names ; i++ ){
+        ScriptHandler::LabelInfo label = script_h.lookupLabel( names[i] );
+        ScriptHandler::LabelInfo label2 = script_h2.lookupLabel( names[i] );
+        if ( strcmp( label.name, label2.name ) ||
+             label.start_line != label2.start_line ||
+             label.num_of_lines != label2.num_of_lines ||
+             strncmp( label.label_header, label2.label_header, 64 ) )
+            return false;
+    }
+    return true;
+}
+
+static double openScript( ScriptHandler &script_h, char *archive_path )
+{
+    double start = getTime();
+    if ( script_h.openScript( archive_path ) ){
+        fprintf( stderr, "label_bench: can't open the script in %s\n", archive_path );
+        exit(-1);
+    }
+    double open_time = getTime() - start;
+    script_h.reset(); // as ScriptParser::reset() does before the script runs
+
+    return open_time;
+}
+
+int main( int argc, char **argv )
+{
+    int num_of_labels  = ( argc > 1 ) ? atoi( argv[1] ) : 50000;
+    int num_of_lookups = ( argc > 2 ) ? atoi( argv[2] ) : 1000000;
+    int encrypt_mode   = ( argc > 3 ) ? atoi( argv[3] ) : 0;
+    if ( num_of_labels <= 0 || num_of_lookups <= 0 || encrypt_mode < 0 || encrypt_mode > 2 ){
+        fprintf( stderr, "Usage: label_bench [labels] [lookups] [encrypt_mode(0-2)]\n" );
+        exit(-1);
+    }
+
+    char dir[] = "/tmp/label_benchXXXXXX";
+    if ( mkdtemp( dir ) == NULL ){
+        perror( "label_bench" );
+        exit(-1);
+    }
+    const char *script_names[] = { "0.txt", "nscript.dat", "nscr_sec.dat" };
+    char path[256];
+    sprintf( path, "%s/%s", dir, script_names[encrypt_mode] );
+
+    // CRLF as written on Windows, encrypted as in nscript.dat and nscr_sec.dat
+    size_t script_length = 64 + num_of_labels * 48;
+    unsigned char *script = new unsigned char[ script_length ];
+    size_t len = sprintf( (char*)script, ";mode800\r\n*define\r\ngame\r\n*start\r\n" );
+    for ( int i=0 ; i<num_of_labels ; i++ )
+        len += sprintf( (char*)script + len, "*Label_%d\r\n  mov %%0,%d\r\n\r\n", i, i );
+    len += sprintf( (char*)script + len, "end" );
+    unsigned char magic[5] = {0x79, 0x57, 0x0d, 0x80, 0x04 };
+    for ( size_t i=0 ; i<len ; i++ ){
+        if      ( encrypt_mode == 1 ) script[i] ^= 0x84;
+        else if ( encrypt_mode == 2 ) script[i] ^= magic[i % 5];
+    }
+
+    FILE *fp = fopen( path, "wb" );
+    if ( fp == NULL || fwrite( script, 1, len, fp ) != len ){
+        perror( "label_bench" );
+        exit(-1);
+    }
+    fclose( fp );
+    delete[] script;
+
+    // Decoded on one thread, on all CPUs filling the script cache, and read back from the cache
+    ScriptHandler serial_script_h, script_h, cached_script_h;
+    char archive_path[256];
+    sprintf( archive_path, "%s/", dir );
+    serial_script_h.setNumLoadThreads( 1 );
+    script_h.setScriptCacheDir( dir );
+    cached_script_h.setScriptCacheDir( dir );
+    double serial_open_time = openScript( serial_script_h, archive_path );
+    double open_time = openScript( script_h, archive_path );
+    double cached_open_time = openScript( cached_script_h, archive_path );
+
+    // Mixed case names are folded by the lookup
+    int num_of_names = num_of_lookups < 4096 ? num_of_lookups : 4096;
+    char **names = new char*[ num_of_names ];
+    srand( 1 );
+    for ( int i=0 ; i<num_of_names ; i++ ){
+        names[i] = new char[32];
+        sprintf( names[i], "LABEL_%d", rand() % num_of_labels );
+    }
+
+    double start = getTime();
+    int sum = 0;
+    for ( int i=0 ; i<num_of_lookups ; i++ ){
+        ScriptHandler::LabelInfo label = script_h.lookupLabel( names[i % num_of_names] );
+        sum += label.start_line;
+    }
+    double lookup_time = getTime() - start;
+
+    // readToken() at the labels, then again from the token cache
+    char **addresses = new char*[ num_of_names ];
+    for ( int i=0 ; i<num_of_names ; i++ )
+        addresses[i] = script_h.lookupLabel( names[i] ).start_address;
+    double token_time[2];
+    long token_sum[2];
+    for ( int pass=0 ; pass<2 ; pass++ ){
+        token_sum[pass] = 0;
+        start = getTime();
+        for ( int i=0 ; i<num_of_names ; i++ ){
+            script_h.setCurrent( addresses[i] );
+            const char *token = script_h.readToken();
+            token_sum[pass] += (script_h.getNext() - script_h.getScriptBuffer()) + token[0];
+        }
+        token_time[pass] = getTime() - start;
+    }
+    delete[] addresses;
+
+    bool same_flag = compareLabels( serial_script_h, script_h, names, num_of_names );
+    bool cached_same_flag = compareLabels( serial_script_h, cached_script_h, names, num_of_names );
+
+    printf( "%d labels, script opened in %.1f ms on one thread\n", num_of_labels, serial_open_time * 1000 );
+    int num_of_threads = SDL_GetCPUCount();
+    if ( num_of_threads > BandThreads::MAX_THREADS ) num_of_threads = BandThreads::MAX_THREADS;
+    printf( "%.1f ms on %d threads (%s)\n", open_time * 1000, num_of_threads,
+            same_flag ? "identical" : "DIFFERENT" );
+    printf( "%.1f ms from the cache (%s)\n", cached_open_time * 1000,
+            cached_same_flag ? "identical" : "DIFFERENT" );
+    printf( "%d lookups in %.1f ms, %.0f lookups/sec (%d)\n",
+            num_of_lookups, lookup_time * 1000, num_of_lookups / lookup_time, sum );
+    printf( "readToken: %.0f commands/sec, %.0f from the token cache (%s)\n",
+            num_of_names / token_time[0], num_of_names / token_time[1],
+            token_sum[0] == token_sum[1] ? "identical" : "DIFFERENT" );
+
+    int num_logs;
+    unsigned int num_log_lookups, num_log_compares;
+    script_h.getLogStats( &num_logs, &num_log_lookups, &num_log_compares );
+    printf( "label log: %d names, %.2f comparisons per lookup\n",
+            num_logs, num_log_lookups ? (double)num_log_compares / num_log_lookups : 0.0 );
+
+    for ( int i=0 ; i<num_of_names ; i++ ) delete[] names[i];
+    delete[] names;
+    unlink( path );
+    char cache_path[256];
+    sprintf( cache_path, "rm -f %s/*.scr", dir );
+    system( cache_path );
+    rmdir( dir );
+
+    exit( same_flag && cached_same_flag && token_sum[0] == token_sum[1] ? 0 : 1 );
+}
@@ -94,6 +94,14 @@ void optionHelp()
     printf( "      --enable-wheeldown-advance\tadvance the text on mouse wheel down\n");
     printf( "      --disable-rescale\tdo not rescale the images in the archives\n");
     printf( "      --render-font-outline\trender the outline of a text instead of casting a shadow\n");
+    printf( "      --use-mmap-archives\tmemory map the archives and read stored files without copying\n");
+    printf( "      --archive-index-dir path\tsave the parsed archive headers in path to speed up the next start\n");
+    printf( "      --script-cache-dir path\tsave the decoded script and its labels in path to speed up the next start\n");
+    printf( "      --image-cache-size bytes\tkeep up to bytes of decoded images in memory\n");
+    printf( "      --image-prefetch-lines num\tdecode the images of the next num lines in the background, needs --image-cache-size\n");
+    printf( "      --glyph-cache-size bytes\tkeep up to bytes of rasterized glyphs in memory, 4MB by default\n");
+    printf( "      --glyph-prewarm num\trender the num most frequent characters of the script in the background when a font size is opened\n");
+    printf( "      --fast-forward\tdo not show the screen while skipping until the script waits for input\n");
     printf( "      --edit\t\tenable online modification of the volume and variables when 'z' is pressed\n");
     printf( "      --key-exe file\tset a file (*.EXE) that includes a key table\n");
     printf( "  -h, --help\t\tshow this help and exit\n");
@@ -167,6 +175,49 @@ JNIEXPORT void JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeLoadSaveFile) (JNIE
     }
 }
 
+JNIEXPORT jint JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetImageCacheHitCount) (JNIEnv * jniEnv, jobject thiz)
+{
+    return ons ? ons->getImageCacheHitCount() : 0;
+}
+
+JNIEXPORT jint JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetImageCacheMissCount) (JNIEnv * jniEnv, jobject thiz)
+{
+    return ons ? ons->getImageCacheMissCount() : 0;
+}
+
+JNIEXPORT jintArray JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetLogStats) (JNIEnv * jniEnv, jobject thiz)
+{
+    int num_logs = 0;
+    unsigned int num_lookups = 0, num_compares = 0;
+    if (ons) ons->getLogStats(&num_logs, &num_lookups, &num_compares);
+
+    jint stats[3] = { num_logs, (jint)num_lookups, (jint)num_compares };
+    jintArray ret = jniEnv->NewIntArray(3);
+    if (ret) jniEnv->SetIntArrayRegion(ret, 0, 3, stats);
+    return ret;
+}
+
+JNIEXPORT jintArray JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetRefreshStats) (JNIEnv * jniEnv, jobject thiz)
+{
+    unsigned int num_frames = 0, last_pixels = 0, average_pixels = 0;
+    if (ons) ons->getRefreshStats(&num_frames, &last_pixels, &average_pixels);
+
+    jint stats[3] = { (jint)num_frames, (jint)last_pixels, (jint)average_pixels };
+    jintArray ret = jniEnv->NewIntArray(3);
+    if (ret) jniEnv->SetIntArrayRegion(ret, 0, 3, stats);
+    return ret;
+}
+
+JNIEXPORT void JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeSkipToNextChoice) (JNIEnv * jniEnv, jobject thiz, jboolean stop_at_unread)
+{
+    if (ons) ons->startSkipToChoice(stop_at_unread == JNI_TRUE);
+}
+
+JNIEXPORT jint JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetFastForwardLinesPerSecond) (JNIEnv * jniEnv, jobject thiz)
+{
+    return ons ? ons->getFastForwardLinesPerSecond() : 0;
+}
+
 void playVideoAndroid(const char *filename, bool click_flag, bool loop_flag)
 {
     JNIWrapper wrapper(ONScripter::JNI_VM);
@@ -378,6 +429,42 @@ int main( int argc, char **argv )
             else if ( !strcmp( argv[0]+1, "-use-parent-resources" ) ){
                 ons->useParentResources();
             }
+            else if ( !strcmp( argv[0]+1, "-use-mmap-archives" ) ){
+                ons->useMappedArchives();
+            }
+            else if ( !strcmp( argv[0]+1, "-archive-index-dir" ) ){
+                argc--;
+                argv++;
+                ons->setArchiveIndexDir(argv[0]);
+            }
+            else if ( !strcmp( argv[0]+1, "-script-cache-dir" ) ){
+                argc--;
+                argv++;
+                ons->setScriptCacheDir(argv[0]);
+            }
+            else if ( !strcmp( argv[0]+1, "-image-cache-size" ) ){
+                argc--;
+                argv++;
+                ons->setImageCacheSize(strtoul(argv[0], NULL, 10));
+            }
+            else if ( !strcmp( argv[0]+1, "-glyph-cache-size" ) ){
+                argc--;
+                argv++;
+                ons->setGlyphCacheSize(strtoul(argv[0], NULL, 10));
+            }
+            else if ( !strcmp( argv[0]+1, "-glyph-prewarm" ) ){
+                argc--;
+                argv++;
+                ons->setGlyphPrewarmCount(atoi(argv[0]));
+            }
+            else if ( !strcmp( argv[0]+1, "-image-prefetch-lines" ) ){
+                argc--;
+                argv++;
+                ons->setImagePrefetchLines(atoi(argv[0]));
+            }
+            else if ( !strcmp( argv[0]+1, "-fast-forward" ) ){
+                ons->enableFastForward();
+            }
             else if ( !strcmp( argv[0]+1, "-edit" ) ){
                 ons->enableEdit();
             }
@@ -403,6 +490,16 @@ int main( int argc, char **argv )
             else if ( !strcmp( argv[0]+1, "-audio-hq" )){
                 ons->enableHQAudio();
             }
+            else if ( !strcmp( argv[0]+1, "-audio-freq" ) ){
+                argc--;
+                argv++;
+                ons->setAudioFreq(atoi(argv[0]));
+            }
+            else if ( !strcmp( argv[0]+1, "-audio-buffer" ) ){
+                argc--;
+                argv++;
+                ons->setAudioBufferSize(atoi(argv[0]));
+            }
             else if ( !strcmp( argv[0]+1, "-use-java-io" ) ) {
                 ONScripter::Use_java_io = true;
             }
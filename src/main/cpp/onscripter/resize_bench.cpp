@@ -0,0 +1,88 @@
+/* -*- C++ -*-
+ *
+ *  resize_bench.cpp - compares resizeImage() with resizeImageMT()
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <SDL.h>
+
+#include "resize_image.h"
+#include "BandThreads.h"
+
+int main( int argc, char **argv )
+{
+    if ( argc < 5 ){
+        fprintf( stderr, "Usage: resize_bench src_width src_height dst_width dst_height [loop] [threads]\n" );
+        exit(-1);
+    }
+    int src_w = atoi( argv[1] ), src_h = atoi( argv[2] );
+    int dst_w = atoi( argv[3] ), dst_h = atoi( argv[4] );
+    int loop = ( argc > 5 ) ? atoi( argv[5] ) : 20;
+    if ( src_w <= 0 || src_h <= 0 || dst_w <= 0 || dst_h <= 0 || loop <= 0 ){
+        fprintf( stderr, "resize_bench: invalid size\n" );
+        exit(-1);
+    }
+
+    if ( SDL_Init( SDL_INIT_TIMER ) < 0 ){
+        fprintf( stderr, "Couldn't initialize SDL: %s\n", SDL_GetError() );
+        exit(-1);
+    }
+    int threads = ( argc > 6 ) ? atoi( argv[6] ) : SDL_GetCPUCount();
+    BandThreads band_threads;
+    band_threads.start( threads );
+    threads = band_threads.getNumThreads();
+
+    // same sizes as ONScripter::resizeSurface()
+    unsigned char *src = new unsigned char[ src_w * src_h * 4 ];
+    unsigned char *tmp = new unsigned char[ src_w * (src_h+1) * 4 + 4 ];
+    unsigned char *dst1 = new unsigned char[ dst_w * dst_h * 4 ];
+    unsigned char *dst2 = new unsigned char[ dst_w * dst_h * 4 ];
+
+    srand( 1 );
+    for ( int i=0 ; i<src_w * src_h * 4 ; i++ ) src[i] = rand() & 0xff;
+    memset( tmp, 0, src_w * (src_h+1) * 4 + 4 );
+
+    Uint32 start = SDL_GetTicks();
+    for ( int i=0 ; i<loop ; i++ )
+        resizeImage( dst1, dst_w, dst_h, dst_w * 4, src, src_w, src_h, src_w * 4,
+                     4, tmp, src_w * 4, false );
+    Uint32 serial_time = SDL_GetTicks() - start;
+
+    start = SDL_GetTicks();
+    for ( int i=0 ; i<loop ; i++ )
+        resizeImageMT( dst2, dst_w, dst_h, dst_w * 4, src, src_w, src_h, src_w * 4,
+                       4, tmp, src_w * 4, false, &band_threads );
+    Uint32 parallel_time = SDL_GetTicks() - start;
+
+    bool same_flag = memcmp( dst1, dst2, dst_w * dst_h * 4 ) == 0;
+
+    printf( "%dx%d -> %dx%d, %d times\n", src_w, src_h, dst_w, dst_h, loop );
+    printf( "resizeImage   : %.2f ms\n", (double)serial_time / loop );
+    printf( "resizeImageMT : %.2f ms (%d threads)\n", (double)parallel_time / loop, threads );
+    printf( "output        : %s\n", same_flag ? "identical" : "DIFFERENT" );
+
+    delete[] src;
+    delete[] tmp;
+    delete[] dst1;
+    delete[] dst2;
+
+    band_threads.stop();
+    SDL_Quit();
+    exit( same_flag ? 0 : 1 );
+}
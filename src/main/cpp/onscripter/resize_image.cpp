@@ -23,26 +23,39 @@
 
 #include <stdio.h>
 #include <string.h>
+#include "resize_image.h"
 
-static unsigned long *pixel_accum=NULL;
-static unsigned long *pixel_accum_num=NULL;
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define USE_NEON_RESAMPLE
+#endif
+
+struct WeightedSum{
+    unsigned long *pixel_accum;
+    unsigned long *pixel_accum_num;
+    unsigned long tmp_acc[4];
+    unsigned long tmp_acc_num[4];
+};
+
+static WeightedSum weighted_sum={NULL, NULL};
 static int pixel_accum_size=0;
-static unsigned long tmp_acc[4];
-static unsigned long tmp_acc_num[4];
 
-static void calcWeightedSumColumnInit(unsigned char **src,
+static void calcWeightedSumColumnInit(WeightedSum *ws, unsigned char **src, int y,
                                       int interpolation_height,
                                       int image_width, int image_height, int image_pixel_width, int byte_per_pixel)
 {
-    int y_end   = -interpolation_height/2+interpolation_height;
+    // columns summed up to the row before y
+    int y_start = y-1-interpolation_height/2;
+    int y_end   = y-1-interpolation_height/2+interpolation_height;
 
-    memset(pixel_accum, 0, image_width*byte_per_pixel*sizeof(unsigned long));
-    memset(pixel_accum_num, 0, image_width*byte_per_pixel*sizeof(unsigned long));
+    memset(ws->pixel_accum, 0, image_width*byte_per_pixel*sizeof(unsigned long));
+    memset(ws->pixel_accum_num, 0, image_width*byte_per_pixel*sizeof(unsigned long));
     for (int s=0 ; s<byte_per_pixel ; s++){
-        for (int i=0 ; i<y_end-1 ; i++){
+        for (int i=y_start ; i<y_end ; i++){
+            if (i < 0) continue;
             if (i >= image_height) break;
-            unsigned long *pa = pixel_accum + image_width*s;
-            unsigned long *pan = pixel_accum_num + image_width*s;
+            unsigned long *pa = ws->pixel_accum + image_width*s;
+            unsigned long *pan = ws->pixel_accum_num + image_width*s;
             unsigned char *p = *src+image_pixel_width*i+s;
             for (int j=image_width ; j!=0 ; j--, p+=byte_per_pixel){
                 *pa++ += *p;
@@ -52,7 +65,7 @@ static void calcWeightedSumColumnInit(unsigned char **src,
     }
 }
 
-static void calcWeightedSumColumn(unsigned char **src, int y,
+static void calcWeightedSumColumn(WeightedSum *ws, unsigned char **src, int y,
                                   int interpolation_height,
                                   int image_width, int image_height, int image_pixel_width, int byte_per_pixel)
 {
@@ -61,8 +74,8 @@ static void calcWeightedSumColumn(unsigned char **src, int y,
 
     for (int s=0 ; s<byte_per_pixel ; s++){
         if ((y_start-1)>=0 && (y_start-1)<image_height){
-            unsigned long *pa = pixel_accum + image_width*s;
-            unsigned long *pan = pixel_accum_num + image_width*s;
+            unsigned long *pa = ws->pixel_accum + image_width*s;
+            unsigned long *pan = ws->pixel_accum_num + image_width*s;
             unsigned char *p = *src+image_pixel_width*(y_start-1)+s;
             for (int j=image_width ; j!=0 ; j--, p+=byte_per_pixel){
                 *pa++ -= *p;
@@ -71,8 +84,8 @@ static void calcWeightedSumColumn(unsigned char **src, int y,
         }
         
         if ((y_end-1)>=0 && (y_end-1)<image_height){
-            unsigned long *pa = pixel_accum + image_width*s;
-            unsigned long *pan = pixel_accum_num + image_width*s;
+            unsigned long *pa = ws->pixel_accum + image_width*s;
+            unsigned long *pan = ws->pixel_accum_num + image_width*s;
             unsigned char *p = *src+image_pixel_width*(y_end-1)+s;
             for (int j=image_width ; j!=0 ; j--, p+=byte_per_pixel){
                 *pa++ += *p;
@@ -82,7 +95,7 @@ static void calcWeightedSumColumn(unsigned char **src, int y,
     }
 }
 
-static void calcWeightedSum(unsigned char **dst, unsigned char **src, int x,
+static void calcWeightedSum(WeightedSum *ws, unsigned char **dst, unsigned char **src, int x,
                             int interpolation_width,
                             int image_width, int byte_per_pixel)
 {
@@ -91,84 +104,105 @@ static void calcWeightedSum(unsigned char **dst, unsigned char **src, int x,
     
     for (int s=0 ; s<byte_per_pixel ; s++){
         if ((x_start-1)>=0 && (x_start-1)<image_width){
-            tmp_acc[s] -= pixel_accum[image_width*s+x_start-1];
-            tmp_acc_num[s] -= pixel_accum_num[image_width*s+x_start-1];
+            ws->tmp_acc[s] -= ws->pixel_accum[image_width*s+x_start-1];
+            ws->tmp_acc_num[s] -= ws->pixel_accum_num[image_width*s+x_start-1];
         }
         if ((x_end-1)>=0 && (x_end-1)<image_width){
-            tmp_acc[s] += pixel_accum[image_width*s+x_end-1];
-            tmp_acc_num[s] += pixel_accum_num[image_width*s+x_end-1];
+            ws->tmp_acc[s] += ws->pixel_accum[image_width*s+x_end-1];
+            ws->tmp_acc_num[s] += ws->pixel_accum_num[image_width*s+x_end-1];
         }
-        *(*dst)++ = (unsigned char)(tmp_acc[s]/tmp_acc_num[s]);
+        *(*dst)++ = (unsigned char)(ws->tmp_acc[s]/ws->tmp_acc_num[s]);
     }
 }
 
-void resizeImage( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
-                  unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
-                  int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag )
+static void smoothRows( WeightedSum *ws, int row_start, int row_end,
+                        int dst_width, int dst_height,
+                        unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                        int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width )
 {
-    if (dst_width == 0 || dst_height == 0) return;
-    
-    unsigned char *tmp_buf = tmp_buffer;
+    unsigned char *tmp_buf = tmp_buffer + tmp_total_width * row_start;
     unsigned char *src_buf = src_buffer;
 
     int i, j, s;
     int tmp_offset = tmp_total_width - src_width * byte_per_pixel;
 
-    unsigned int mx, my;
-
-    if ( src_width  > 1 ) mx = 1;
-    else                  mx = 0;
-    if ( src_height > 1 ) my = 1;
-    else                  my = 0;
-
     int interpolation_width = src_width / dst_width;
     if ( interpolation_width == 0 ) interpolation_width = 1;
     int interpolation_height = src_height / dst_height;
     if ( interpolation_height == 0 ) interpolation_height = 1;
 
-    if (pixel_accum_size < src_width*byte_per_pixel){
-        pixel_accum_size = src_width*byte_per_pixel;
-        if (pixel_accum) delete[] pixel_accum;
-        pixel_accum = new unsigned long[pixel_accum_size];
-        if (pixel_accum_num) delete[] pixel_accum_num;
-        pixel_accum_num = new unsigned long[pixel_accum_size];
-    }
-    /* smoothing */
-    if ( byte_per_pixel >= 3 ){
-        calcWeightedSumColumnInit(&src_buf, interpolation_height,
-                                  src_width, src_height, src_total_width, byte_per_pixel );
-        for ( i=0 ; i<src_height ; i++ ){
-            calcWeightedSumColumn(&src_buf, i, interpolation_height,
-                                  src_width, src_height, src_total_width, byte_per_pixel );
-            for (s=0 ; s<byte_per_pixel ; s++){
-                tmp_acc[s]=0;
-                tmp_acc_num[s]=0;
-                for (j=0 ; j<-interpolation_width/2+interpolation_width-1 ; j++){
-                    if (j >= src_width) break;
-                    tmp_acc[s] += pixel_accum[src_width*s+j];
-                    tmp_acc_num[s] += pixel_accum_num[src_width*s+j];
-                }
+    calcWeightedSumColumnInit(ws, &src_buf, row_start, interpolation_height,
+                              src_width, src_height, src_total_width, byte_per_pixel );
+    for ( i=row_start ; i<row_end ; i++ ){
+        calcWeightedSumColumn(ws, &src_buf, i, interpolation_height,
+                              src_width, src_height, src_total_width, byte_per_pixel );
+        for (s=0 ; s<byte_per_pixel ; s++){
+            ws->tmp_acc[s]=0;
+            ws->tmp_acc_num[s]=0;
+            for (j=0 ; j<-interpolation_width/2+interpolation_width-1 ; j++){
+                if (j >= src_width) break;
+                ws->tmp_acc[s] += ws->pixel_accum[src_width*s+j];
+                ws->tmp_acc_num[s] += ws->pixel_accum_num[src_width*s+j];
             }
-            
-            for ( j=0 ; j<src_width ; j++ )
-                calcWeightedSum(&tmp_buf, &src_buf, j,
-                                interpolation_width,
-                                src_width, byte_per_pixel );
-            tmp_buf += tmp_offset;
         }
+            
+        for ( j=0 ; j<src_width ; j++ )
+            calcWeightedSum(ws, &tmp_buf, &src_buf, j,
+                            interpolation_width,
+                            src_width, byte_per_pixel );
+        tmp_buf += tmp_offset;
     }
-    else{
-        tmp_buffer = src_buffer;
-    }
-    
-    /* resampling */
-    unsigned char *dst_buf = dst_buffer;
+}
+
+static void resampleRows( int row_start, int row_end, bool simd_flag,
+                          unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                          int src_width, int src_height,
+                          int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag )
+{
+    unsigned char *dst_buf = dst_buffer + dst_total_width * row_start;
+    int i, j, s;
+
+    unsigned int mx, my;
+
+    if ( src_width  > 1 ) mx = 1;
+    else                  mx = 0;
+    if ( src_height > 1 ) my = 1;
+    else                  my = 0;
+
     int dh1 = dst_height-1; if (dh1==0) dh1 = 1;
     int dw1 = dst_width-1;  if (dw1==0) dw1 = 1;
-    for ( i=0 ; i<dst_height ; i++ ){
+    for ( i=row_start ; i<row_end ; i++ ){
         int y = (i<<3) * (src_height-1) / dh1;
         int dy = y & 0x7;
         y >>= 3;
+#if defined(USE_NEON_RESAMPLE)
+        if (simd_flag && byte_per_pixel == 4 && !palette_flag){
+            // the 4 channels of a pixel at once, the sum of the weights is 64 so 16 bits are enough
+            for ( j=0 ; j<dst_width ; j++ ){
+                int x = (j<<3) * (src_width-1) / dw1;
+                int dx = x & 0x7;
+                x >>= 3;
+
+                unsigned char *p = tmp_buffer + tmp_total_width * y + x * 4;
+                uint32_t a, b, c, d;
+                memcpy(&a, p, 4);
+                memcpy(&b, p+mx*4, 4);
+                memcpy(&c, p+my*tmp_total_width, 4);
+                memcpy(&d, p+mx*4+my*tmp_total_width, 4);
+                uint8x8_t upper = vreinterpret_u8_u32(vset_lane_u32(b, vdup_n_u32(a), 1));
+                uint8x8_t lower = vreinterpret_u8_u32(vset_lane_u32(d, vdup_n_u32(c), 1));
+                uint16x8_t w_upper = vcombine_u16(vdup_n_u16((8-dx)*(8-dy)), vdup_n_u16(dx*(8-dy)));
+                uint16x8_t w_lower = vcombine_u16(vdup_n_u16((8-dx)*dy),     vdup_n_u16(dx*dy));
+                uint16x8_t acc = vmulq_u16(vmovl_u8(upper), w_upper);
+                acc = vmlaq_u16(acc, vmovl_u8(lower), w_lower);
+                uint16x4_t sum = vadd_u16(vget_low_u16(acc), vget_high_u16(acc));
+                uint32_t q = vget_lane_u32(vreinterpret_u32_u8(vshrn_n_u16(vcombine_u16(sum, sum), 6)), 0);
+                memcpy(dst_buf, &q, 4);
+                dst_buf += 4;
+            }
+        }
+        else
+#endif
         for ( j=0 ; j<dst_width ; j++ ){
             int x = (j<<3) * (src_width-1) / dw1;
             int dx = x & 0x7;
@@ -193,9 +227,14 @@ void resizeImage( unsigned char *dst_buffer, int dst_width, int dst_height, int
         for ( j=0 ; j<dst_total_width - dst_width*byte_per_pixel ; j++ )
             *dst_buf++ = 0;
     }
+}
 
+static void preserveCorners( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                             unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                             int byte_per_pixel )
+{
     /* pixels at the corners are preserved */
-    for ( i=0 ; i<byte_per_pixel ; i++ ){
+    for ( int i=0 ; i<byte_per_pixel ; i++ ){
         dst_buffer[i] = src_buffer[i];
         dst_buffer[(dst_width-1)*byte_per_pixel+i] = src_buffer[(src_width-1)*byte_per_pixel+i];
         dst_buffer[(dst_height-1)*dst_total_width+i] = src_buffer[(src_height-1)*src_total_width+i];
@@ -203,3 +242,79 @@ void resizeImage( unsigned char *dst_buffer, int dst_width, int dst_height, int
             src_buffer[(src_height-1)*src_total_width+(src_width-1)*byte_per_pixel+i];
     }
 }
+
+void resizeImage( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                  unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                  int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag )
+{
+    if (dst_width == 0 || dst_height == 0) return;
+    
+    if (pixel_accum_size < src_width*byte_per_pixel){
+        pixel_accum_size = src_width*byte_per_pixel;
+        if (weighted_sum.pixel_accum) delete[] weighted_sum.pixel_accum;
+        weighted_sum.pixel_accum = new unsigned long[pixel_accum_size];
+        if (weighted_sum.pixel_accum_num) delete[] weighted_sum.pixel_accum_num;
+        weighted_sum.pixel_accum_num = new unsigned long[pixel_accum_size];
+    }
+    /* smoothing */
+    if ( byte_per_pixel >= 3 ){
+        smoothRows( &weighted_sum, 0, src_height, dst_width, dst_height,
+                    src_buffer, src_width, src_height, src_total_width,
+                    byte_per_pixel, tmp_buffer, tmp_total_width );
+    }
+    else{
+        tmp_buffer = src_buffer;
+    }
+    
+    /* resampling */
+    resampleRows( 0, dst_height, false,
+                  dst_buffer, dst_width, dst_height, dst_total_width,
+                  src_width, src_height,
+                  byte_per_pixel, tmp_buffer, tmp_total_width, palette_flag );
+
+    preserveCorners( dst_buffer, dst_width, dst_height, dst_total_width,
+                     src_buffer, src_width, src_height, src_total_width, byte_per_pixel );
+}
+
+void resizeImageSmoothBand( int row_start, int row_end,
+                            int dst_width, int dst_height,
+                            unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                            int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width )
+{
+    if (dst_width == 0 || dst_height == 0 || byte_per_pixel < 3 || row_start >= row_end) return;
+
+    WeightedSum ws;
+    ws.pixel_accum = new unsigned long[src_width*byte_per_pixel];
+    ws.pixel_accum_num = new unsigned long[src_width*byte_per_pixel];
+
+    smoothRows( &ws, row_start, row_end, dst_width, dst_height,
+                src_buffer, src_width, src_height, src_total_width,
+                byte_per_pixel, tmp_buffer, tmp_total_width );
+
+    delete[] ws.pixel_accum;
+    delete[] ws.pixel_accum_num;
+}
+
+void resizeImageResampleBand( int row_start, int row_end,
+                              unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                              unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                              int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag )
+{
+    if (dst_width == 0 || dst_height == 0 || row_start >= row_end) return;
+
+    if ( byte_per_pixel < 3 ) tmp_buffer = src_buffer;
+    resampleRows( row_start, row_end, true,
+                  dst_buffer, dst_width, dst_height, dst_total_width,
+                  src_width, src_height,
+                  byte_per_pixel, tmp_buffer, tmp_total_width, palette_flag );
+}
+
+void resizeImageCorners( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                         unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                         int byte_per_pixel )
+{
+    if (dst_width == 0 || dst_height == 0) return;
+
+    preserveCorners( dst_buffer, dst_width, dst_height, dst_total_width,
+                     src_buffer, src_width, src_height, src_total_width, byte_per_pixel );
+}
@@ -24,3 +24,26 @@
 void resizeImage( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
                   unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
                   int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag );
+
+// The steps of resizeImage() over the rows [row_start, row_end) so that bands of rows can
+// be processed by several threads. Smoothing writes the rows of tmp_buffer (one per source
+// row) and has to finish for all bands before resampling writes the rows of dst_buffer.
+void resizeImageSmoothBand( int row_start, int row_end,
+                            int dst_width, int dst_height,
+                            unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                            int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width );
+void resizeImageResampleBand( int row_start, int row_end,
+                              unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                              unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                              int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag );
+void resizeImageCorners( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                         unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                         int byte_per_pixel );
+
+class BandThreads;
+// Same result as resizeImage() computed by the threads of a pool, or by the calling thread
+// when threads is NULL (resize_image_mt.cpp)
+void resizeImageMT( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                    unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                    int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag,
+                    BandThreads *threads );
@@ -0,0 +1,91 @@
+/* -*- C++ -*-
+ *
+ *  resize_image_mt.cpp - resize image by several threads working on bands of rows
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+#include "resize_image.h"
+#include "BandThreads.h"
+
+// smaller images are not worth waking the threads up for
+#define MIN_PIXELS_PER_THREAD (128*128)
+
+struct ResizeJob{
+    unsigned char *dst_buffer;
+    int dst_width, dst_height, dst_total_width;
+    unsigned char *src_buffer;
+    int src_width, src_height, src_total_width;
+    int byte_per_pixel;
+    unsigned char *tmp_buffer;
+    int tmp_total_width;
+    bool palette_flag;
+};
+
+static void smoothRows( void *data, int row_start, int row_end )
+{
+    ResizeJob *job = (ResizeJob*)data;
+
+    resizeImageSmoothBand( row_start, row_end, job->dst_width, job->dst_height,
+                           job->src_buffer, job->src_width, job->src_height, job->src_total_width,
+                           job->byte_per_pixel, job->tmp_buffer, job->tmp_total_width );
+}
+
+static void resampleRows( void *data, int row_start, int row_end )
+{
+    ResizeJob *job = (ResizeJob*)data;
+
+    resizeImageResampleBand( row_start, row_end,
+                             job->dst_buffer, job->dst_width, job->dst_height, job->dst_total_width,
+                             job->src_buffer, job->src_width, job->src_height, job->src_total_width,
+                             job->byte_per_pixel, job->tmp_buffer, job->tmp_total_width, job->palette_flag );
+}
+
+void resizeImageMT( unsigned char *dst_buffer, int dst_width, int dst_height, int dst_total_width,
+                    unsigned char *src_buffer, int src_width, int src_height, int src_total_width,
+                    int byte_per_pixel, unsigned char *tmp_buffer, int tmp_total_width, bool palette_flag,
+                    BandThreads *threads )
+{
+    if (dst_width == 0 || dst_height == 0) return;
+
+    ResizeJob job;
+    job.dst_buffer = dst_buffer;
+    job.dst_width = dst_width;
+    job.dst_height = dst_height;
+    job.dst_total_width = dst_total_width;
+    job.src_buffer = src_buffer;
+    job.src_width = src_width;
+    job.src_height = src_height;
+    job.src_total_width = src_total_width;
+    job.byte_per_pixel = byte_per_pixel;
+    job.tmp_buffer = tmp_buffer;
+    job.tmp_total_width = tmp_total_width;
+    job.palette_flag = palette_flag;
+
+    // run() returns when all bands are done, so resampling never reads a row
+    // that another band is still smoothing
+    if ( threads && dst_width * dst_height >= MIN_PIXELS_PER_THREAD * 2 ){
+        if ( byte_per_pixel >= 3 ) threads->run( smoothRows, &job, src_height );
+        threads->run( resampleRows, &job, dst_height );
+    }
+    else{
+        if ( byte_per_pixel >= 3 ) smoothRows( &job, 0, src_height );
+        resampleRows( &job, 0, dst_height );
+    }
+
+    resizeImageCorners( dst_buffer, dst_width, dst_height, dst_total_width,
+                        src_buffer, src_width, src_height, src_total_width, byte_per_pixel );
+}
@@ -87,6 +87,8 @@ static size_t audioBufferSize = 0;
 
 // Extremely wicked JNI environment to call Java functions from C code
 static jbyteArray audioBufferJNI = NULL;
+// Direct ByteBuffer shared with AudioThread, audioBuffer points into it and stays pinned
+static jobject audioDirectBufferJNI = NULL;
 static JavaVM *jniVM = NULL;
 static jobject JavaAudioThread = NULL;
 static jmethodID JavaInitAudio = NULL;
@@ -155,8 +157,12 @@ static void ANDROIDAUD_CloseAudio(_THIS)
 	JNIEnv * jniEnv = NULL;
 	(*jniVM)->AttachCurrentThread(jniVM, &jniEnv, NULL);
 
-	(*jniEnv)->DeleteGlobalRef(jniEnv, audioBufferJNI);
+	if( audioBufferJNI )
+		(*jniEnv)->DeleteGlobalRef(jniEnv, audioBufferJNI);
 	audioBufferJNI = NULL;
+	if( audioDirectBufferJNI )
+		(*jniEnv)->DeleteGlobalRef(jniEnv, audioDirectBufferJNI);
+	audioDirectBufferJNI = NULL;
 	audioBuffer = NULL;
 	audioBufferSize = 0;
 	
@@ -185,6 +191,8 @@ static void ANDROIDAUD_ThreadInit(_THIS)
 	jclass JavaAudioThreadClass = NULL;
 	jmethodID JavaInitThread = NULL;
 	jmethodID JavaGetBuffer = NULL;
+	jmethodID JavaGetDirectBuffer = NULL;
+	jobject directBuffer = NULL;
 	jboolean isCopy = JNI_TRUE;
 
 	(*jniVM)->AttachCurrentThread(jniVM, &jniEnvPlaying, NULL);
@@ -196,6 +204,25 @@ static void ANDROIDAUD_ThreadInit(_THIS)
 	JavaInitThread = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "initAudioThread", "()I");
 	(*jniEnvPlaying)->CallIntMethod( jniEnvPlaying, JavaAudioThread, JavaInitThread );
 
+	/* The mixer writes straight into the memory of a direct ByteBuffer, which AudioTrack reads
+	   without copying, so no byte[] has to be pinned and released on every period */
+	JavaGetDirectBuffer = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "getDirectBuffer", "()Ljava/nio/ByteBuffer;");
+	if( JavaGetDirectBuffer )
+		directBuffer = (*jniEnvPlaying)->CallObjectMethod( jniEnvPlaying, JavaAudioThread, JavaGetDirectBuffer );
+	if( directBuffer &&
+		(*jniEnvPlaying)->GetDirectBufferAddress(jniEnvPlaying, directBuffer) != NULL &&
+		(*jniEnvPlaying)->GetDirectBufferCapacity(jniEnvPlaying, directBuffer) >= this->spec.size )
+	{
+		audioDirectBufferJNI = (*jniEnvPlaying)->NewGlobalRef(jniEnvPlaying, directBuffer);
+		audioBuffer = (unsigned char *) (*jniEnvPlaying)->GetDirectBufferAddress(jniEnvPlaying, audioDirectBufferJNI);
+		JavaFillBuffer = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "fillDirectBuffer", "()I");
+		SDL_memset(audioBuffer, this->spec.silence, this->spec.size);
+		return;
+	}
+	if( (*jniEnvPlaying)->ExceptionCheck(jniEnvPlaying) )
+		(*jniEnvPlaying)->ExceptionClear(jniEnvPlaying);
+	__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_ThreadInit(): no direct audio buffer, using byte array");
+
 	JavaGetBuffer = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "getBuffer", "()[B");
 	audioBufferJNI = (*jniEnvPlaying)->CallObjectMethod( jniEnvPlaying, JavaAudioThread, JavaGetBuffer );
 	audioBufferJNI = (*jniEnvPlaying)->NewGlobalRef(jniEnvPlaying, audioBufferJNI);
@@ -220,6 +247,13 @@ static void ANDROIDAUD_PlayAudio(_THIS)
 {
 	jboolean isCopy = JNI_TRUE;
 
+	if( audioDirectBufferJNI )
+	{
+		/* audioBuffer stays valid, AudioTrack reads it in place */
+		(*jniEnvPlaying)->CallIntMethod( jniEnvPlaying, JavaAudioThread, JavaFillBuffer );
+		return;
+	}
+
 	(*jniEnvPlaying)->ReleaseByteArrayElements(jniEnvPlaying, audioBufferJNI, (jbyte *)audioBuffer, 0);
 	audioBuffer = NULL;
 
@@ -1,24 +1,92 @@
 package com.onscripter;
 
+import android.content.Context;
+import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
 
 import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
 
 
 class AudioThread {
 
+    // The mixer runs at least this many frames at a time in low latency mode
+    private static final int MIN_LOW_LATENCY_FRAMES = 256;
+
     private AudioTrack mAudio;
     private byte[] mAudioBuffer;
+    // Written by the native mixer in place, shared for the whole life of mAudio
+    private ByteBuffer mAudioDirectBuffer;
+    // Frames the device mixes at a time, 0 unless the track was opened in low latency mode
+    private final int mBurstFrames;
+    private int mUnderrunCount;
 
-    public AudioThread()
+    public AudioThread(@NonNull Context context, boolean lowLatency)
     {
         mAudio = null;
         mAudioBuffer = null;
+        mAudioDirectBuffer = null;
+        mBurstFrames = lowLatency && isLowLatencySupported() ? getNativeBurstFrames(context) : 0;
         nativeAudioInitJavaCallbacks();
     }
 
+    static boolean isLowLatencySupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /** Sample rate of the output, playing at another rate skips the fast mixer of the device */
+    static int getNativeSampleRate(@NonNull Context context)
+    {
+        return getAudioProperty(context, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, 48000);
+    }
+
+    static int getNativeBurstFrames(@NonNull Context context)
+    {
+        return getAudioProperty(context, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, 256);
+    }
+
+    /** Frames the native mixer renders at a time, a whole number of bursts */
+    static int getLowLatencyBufferFrames(@NonNull Context context)
+    {
+        final int burst = getNativeBurstFrames(context);
+        return (MIN_LOW_LATENCY_FRAMES + burst - 1) / burst * burst;
+    }
+
+    private static int getAudioProperty(@NonNull Context context, String key, int defaultValue)
+    {
+        AudioManager audio = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String value = audio != null ? audio.getProperty(key) : null;
+        try {
+            int n = value != null ? Integer.parseInt(value) : 0;
+            return n > 0 ? n : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // Give the track one more burst of headroom whenever it ran dry since the last write
+    private void growBufferOnUnderrun()
+    {
+        if( mBurstFrames == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.O ) {
+            return;
+        }
+        int count = mAudio.getUnderrunCount();
+        if( count > mUnderrunCount ) {
+            mUnderrunCount = count;
+            int frames = mAudio.getBufferSizeInFrames() + mBurstFrames;
+            if( frames <= mAudio.getBufferCapacityInFrames() ) {
+                mAudio.setBufferSizeInFrames(frames);
+            }
+        }
+    }
+
     /* Called from SDL_androidaudio.c */
     @Keep
     int fillBuffer()
@@ -29,6 +97,22 @@ class AudioThread {
             } catch(Exception ignored){}
         };
         mAudio.write( mAudioBuffer, 0, mAudioBuffer.length );
+        growBufferOnUnderrun();
+        return 1;
+    }
+
+    /* Called from SDL_androidaudio.c */
+    @Keep
+    int fillDirectBuffer()
+    {
+        while (mAudio.getPlayState() == AudioTrack.PLAYSTATE_PAUSED) {
+            try{
+                Thread.sleep(500);
+            } catch(Exception ignored){}
+        };
+        mAudioDirectBuffer.rewind();
+        mAudio.write( mAudioDirectBuffer, mAudioDirectBuffer.capacity(), AudioTrack.WRITE_BLOCKING );
+        growBufferOnUnderrun();
         return 1;
     }
 
@@ -43,30 +127,75 @@ class AudioThread {
             encoding = ( encoding == 1 ) ? AudioFormat.ENCODING_PCM_16BIT :
                 AudioFormat.ENCODING_PCM_8BIT;
 
-            if( AudioTrack.getMinBufferSize( rate, channels, encoding ) > bufSize ) {
-                bufSize = AudioTrack.getMinBufferSize( rate, channels, encoding );
+            if( mBurstFrames > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+                mAudio = createLowLatencyTrack( rate, channels, encoding, bufSize );
+            }
+            else {
+                if( AudioTrack.getMinBufferSize( rate, channels, encoding ) > bufSize ) {
+                    bufSize = AudioTrack.getMinBufferSize( rate, channels, encoding );
+                }
+
+                mAudio = new AudioTrack(AudioManager.STREAM_MUSIC,
+                        rate,
+                        channels,
+                        encoding,
+                        bufSize,
+                        AudioTrack.MODE_STREAM );
             }
 
-            mAudioBuffer = new byte[bufSize];
-
-            mAudio = new AudioTrack(AudioManager.STREAM_MUSIC,
-                    rate,
-                    channels,
-                    encoding,
-                    bufSize,
-                    AudioTrack.MODE_STREAM );
+            mAudioDirectBuffer = ByteBuffer.allocateDirect(bufSize);
             mAudio.play();
         }
-        return mAudioBuffer.length;
+        return mAudioDirectBuffer.capacity();
+    }
+
+    // The mixer keeps its own buffer size so it runs once per few bursts. The track starts
+    // with one burst more than that queued and grows in growBufferOnUnderrun().
+    @RequiresApi(Build.VERSION_CODES.O)
+    private AudioTrack createLowLatencyTrack(int rate, int channels, int encoding, int bufSize)
+    {
+        final int frameSize = ( channels == AudioFormat.CHANNEL_OUT_MONO ? 1 : 2 ) *
+            ( encoding == AudioFormat.ENCODING_PCM_16BIT ? 2 : 1 );
+        final int capacity = Math.max( AudioTrack.getMinBufferSize( rate, channels, encoding ),
+                bufSize * 4 );
+
+        AudioTrack track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_GAME)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(rate)
+                        .setChannelMask(channels)
+                        .setEncoding(encoding)
+                        .build())
+                .setBufferSizeInBytes(capacity)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .build();
+        track.setBufferSizeInFrames( bufSize / frameSize + mBurstFrames );
+        mUnderrunCount = track.getUnderrunCount();
+        return track;
     }
 
     /* Called from SDL_androidaudio.c */
     @Keep
     public byte[] getBuffer()
     {
+        // Only when the native side can't use the direct buffer
+        if( mAudioBuffer == null && mAudioDirectBuffer != null ) {
+            mAudioBuffer = new byte[mAudioDirectBuffer.capacity()];
+        }
         return mAudioBuffer;
     }
 
+    /* Called from SDL_androidaudio.c */
+    @Keep
+    public ByteBuffer getDirectBuffer()
+    {
+        return mAudioDirectBuffer;
+    }
+
     /* Called from SDL_androidaudio.c */
     @Keep
     public int deinitAudio()
@@ -78,6 +207,7 @@ class AudioThread {
             mAudio = null;
         }
         mAudioBuffer = null;
+        mAudioDirectBuffer = null;
         return 1;
     }
 
@@ -15,6 +15,7 @@ import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -82,9 +83,45 @@ class DemoRenderer extends GLSurfaceView_SDL.Renderer {
         if (mBuilder.readParentAssets) {
             flags.add("--use-parent-resources");
         }
+        if (mBuilder.useMappedArchives) {
+            flags.add("--use-mmap-archives");
+        }
+        if (mBuilder.imageCacheSize > 0) {
+            flags.add("--image-cache-size");
+            flags.add(Integer.toString(mBuilder.imageCacheSize));
+        }
+        if (mBuilder.imagePrefetchLines > 0) {
+            flags.add("--image-prefetch-lines");
+            flags.add(Integer.toString(mBuilder.imagePrefetchLines));
+        }
+        if (mBuilder.glyphPrewarmCount > 0) {
+            flags.add("--glyph-prewarm");
+            flags.add(Integer.toString(mBuilder.glyphPrewarmCount));
+        }
+        if (mBuilder.useArchiveIndex) {
+            final File archiveIndexDir = new File(mBuilder.context.getCacheDir(), "archive_index");
+            if (archiveIndexDir.isDirectory() || archiveIndexDir.mkdirs()) {
+                flags.add("--archive-index-dir");
+                flags.add(archiveIndexDir.getAbsolutePath());
+            }
+        }
+        final File scriptCacheDir = new File(mBuilder.context.getCacheDir(), "script_cache");
+        if (scriptCacheDir.isDirectory() || scriptCacheDir.mkdirs()) {
+            flags.add("--script-cache-dir");
+            flags.add(scriptCacheDir.getAbsolutePath());
+        }
+        if (mBuilder.useFastForwardSkip) {
+            flags.add("--fast-forward");
+        }
         if (mBuilder.useHQAudio) {
             flags.add("--audio-hq");
         }
+        if (mBuilder.useLowLatencyAudio && AudioThread.isLowLatencySupported()) {
+            flags.add("--audio-freq");
+            flags.add(Integer.toString(AudioThread.getNativeSampleRate(mBuilder.context)));
+            flags.add("--audio-buffer");
+            flags.add(Integer.toString(AudioThread.getLowLatencyBufferFrames(mBuilder.context)));
+        }
         if (mBuilder.fontPath != null) {
             flags.add("-f");
             flags.add(mBuilder.fontPath);
@@ -0,0 +1,219 @@
+package com.onscripter;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory index of the game folder when it is opened through a tree Uri. Each directory is
+ * listed once with a single child documents query and then existence, last modified and
+ * document id lookups are answered from memory instead of querying the content resolver for
+ * every file native code touches. Names are matched case-insensitively like the native readers.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class DocumentTreeIndex {
+    private static final String TAG = "DocumentTreeIndex";
+
+    static final long UNKNOWN_LAST_MODIFIED = Long.MIN_VALUE;
+
+    private static final String[] CHILD_PROJECTION = new String[] {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED
+    };
+
+    static class Entry {
+        @NonNull
+        final String documentId;
+        final boolean isDirectory;
+        // Guarded by the index lock, see getLastModified() and setLastModified()
+        private long lastModified;
+
+        // Lowercase name to entry, null until this directory has been listed
+        @Nullable
+        Map<String, Entry> children;
+
+        Entry(@NonNull String documentId, boolean isDirectory, long lastModified) {
+            this.documentId = documentId;
+            this.isDirectory = isDirectory;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @NonNull
+    private final ContentResolver mResolver;
+    @NonNull
+    private final Uri mTreeUri;
+    @NonNull
+    private final String mRootPath;
+    @NonNull
+    private final Entry mRoot;
+
+    DocumentTreeIndex(@NonNull ContentResolver resolver, @NonNull Uri treeUri,
+                      @NonNull String rootDocumentId) {
+        mResolver = resolver;
+        mTreeUri = treeUri;
+        mRootPath = rootDocumentId;
+        mRoot = new Entry(rootDocumentId, true, UNKNOWN_LAST_MODIFIED);
+    }
+
+    /**
+     * Checks if the document id is inside the indexed game folder. Paths that leave the folder
+     * (such as the parent assets) or are not normalized are not handled by this index.
+     * @param documentId document id built from the game folder and a relative path
+     * @return true if lookups for this document id can be answered by this index
+     */
+    boolean covers(@NonNull String documentId) {
+        if (documentId.equals(mRootPath)) {
+            return true;
+        }
+        if (!documentId.startsWith(mRootPath + "/")) {
+            return false;
+        }
+        for (String name : documentId.substring(mRootPath.length() + 1).split("/", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the entry for a document, listing any parent directories not yet in memory
+     * @param documentId document id inside the game folder, see {@link #covers(String)}
+     * @return the entry or null if the document does not exist
+     */
+    @Nullable
+    synchronized Entry find(@NonNull String documentId) {
+        if (documentId.equals(mRootPath)) {
+            return mRoot;
+        }
+        Entry entry = mRoot;
+        for (String name : documentId.substring(mRootPath.length() + 1).split("/")) {
+            if (!entry.isDirectory) {
+                return null;
+            }
+            entry = listChildren(entry).get(toKey(name));
+            if (entry == null) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Add a document created by the engine so it can be found without listing its parent again
+     * @param parentDocumentId document id of the parent folder
+     * @param name display name of the new document
+     * @param documentUri uri returned when the document was created
+     * @param isDirectory if the document is a folder
+     */
+    synchronized void add(@NonNull String parentDocumentId, @NonNull String name,
+                          @NonNull Uri documentUri, boolean isDirectory) {
+        if (!covers(parentDocumentId)) {
+            return;
+        }
+        final Entry parent = find(parentDocumentId);
+        if (parent == null || parent.children == null) {
+            return;
+        }
+        final String documentId = DocumentsContract.getDocumentId(documentUri);
+        final Entry entry = new Entry(documentId, isDirectory, UNKNOWN_LAST_MODIFIED);
+        if (isDirectory) {
+            // Nothing is inside a new folder, avoid listing it
+            entry.children = new HashMap<>();
+        }
+        parent.children.put(toKey(name), entry);
+    }
+
+    /**
+     * Forget the last modified time of a document, used when the engine writes to it
+     * @param documentId document id inside the game folder
+     */
+    synchronized void invalidateLastModified(@NonNull String documentId) {
+        final Entry entry = find(documentId);
+        if (entry != null) {
+            entry.lastModified = UNKNOWN_LAST_MODIFIED;
+        }
+    }
+
+    /**
+     * Get the last modified time of an entry returned by {@link #find(String)}
+     * @param entry entry of this index
+     * @return the last modified time or {@link #UNKNOWN_LAST_MODIFIED}
+     */
+    synchronized long getLastModified(@NonNull Entry entry) {
+        return entry.lastModified;
+    }
+
+    /**
+     * Remember the last modified time of an entry after querying the content resolver for it
+     * @param entry entry of this index
+     * @param lastModified last modified time of the document
+     */
+    synchronized void setLastModified(@NonNull Entry entry, long lastModified) {
+        entry.lastModified = lastModified;
+    }
+
+    @NonNull
+    private Map<String, Entry> listChildren(@NonNull Entry directory) {
+        if (directory.children != null) {
+            return directory.children;
+        }
+        final Map<String, Entry> children = new HashMap<>();
+        final Uri uri = DocumentsContract.buildChildDocumentsUriUsingTree(mTreeUri,
+                directory.documentId);
+        try (final Cursor c = mResolver.query(uri, CHILD_PROJECTION, null, null, null)) {
+            if (c == null) {
+                Log.e(TAG, "Failed to list children, path: " + uri);
+                return children;
+            }
+            final int idIndex = c.getColumnIndex(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+            final int nameIndex = c.getColumnIndex(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
+            final int mimeIndex = c.getColumnIndex(DocumentsContract.Document.COLUMN_MIME_TYPE);
+            final int modifiedIndex = c.getColumnIndex(
+                    DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            while (c.moveToNext()) {
+                final String documentId = c.getString(idIndex);
+                String name = nameIndex >= 0 ? c.getString(nameIndex) : null;
+                if (name == null) {
+                    name = getName(documentId);
+                }
+                final boolean isDirectory = DocumentsContract.Document.MIME_TYPE_DIR.equals(
+                        c.getString(mimeIndex));
+                final long lastModified = modifiedIndex >= 0 && !c.isNull(modifiedIndex)
+                        ? c.getLong(modifiedIndex) : UNKNOWN_LAST_MODIFIED;
+                children.put(toKey(name), new Entry(documentId, isDirectory, lastModified));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to list children, path: " + uri, e);
+            return children;
+        }
+
+        // Only keep the listing when the query succeeded so a failure can be retried later
+        directory.children = children;
+        return children;
+    }
+
+    @NonNull
+    private static String getName(@NonNull String documentId) {
+        return documentId.substring(documentId.lastIndexOf('/') + 1);
+    }
+
+    @NonNull
+    private static String toKey(@NonNull String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,120 @@
+package com.onscripter;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Keeps recently opened read-only file descriptors so native code opening the same file again
+ * (archives, scripts, saves) does not have to go through the content resolver. Each open hands
+ * back a new descriptor that native code owns, the pooled descriptor stays open until it is
+ * evicted from the pool. Pooled descriptors are only used while holding the pool lock so an
+ * eviction on another thread cannot close one while it is being reopened.
+ */
+class FileDescriptorPool {
+    private static final String TAG = "FileDescriptorPool";
+
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    private static final int READ_MODE = 0;
+
+    @NonNull
+    private final LruCache<String, ParcelFileDescriptor> mPool;
+
+    FileDescriptorPool(int maxSize) {
+        mPool = new LruCache<String, ParcelFileDescriptor>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                                        ParcelFileDescriptor oldValue,
+                                        ParcelFileDescriptor newValue) {
+                try {
+                    oldValue.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close pooled file descriptor for " + key, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Open a file in read mode, reusing a pooled descriptor when the file was opened before
+     * @param resolver used to open the file if it is not in the pool
+     * @param uri the file to open
+     * @return descriptor owned by the caller or -1 if the file cannot be opened
+     * @throws FileNotFoundException if the content resolver cannot open the file
+     */
+    int openReadOnly(@NonNull ContentResolver resolver, @NonNull Uri uri)
+            throws FileNotFoundException {
+        final String key = getKey(uri, READ_MODE);
+        synchronized (this) {
+            final ParcelFileDescriptor pfd = mPool.get(key);
+            if (pfd != null) {
+                try {
+                    return reopen(pfd).detachFd();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to reuse file descriptor for " + uri, e);
+                    mPool.remove(key);
+                }
+            }
+        }
+
+        // Not pooled, the content resolver is queried without holding the lock
+        final ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            return -1;
+        }
+        if (pfd.getStatSize() < 0) {
+            // Pipes and sockets cannot be shared, give it to native code directly
+            return pfd.detachFd();
+        }
+        final ParcelFileDescriptor copy;
+        try {
+            copy = reopen(pfd);
+        } catch (IOException e) {
+            // Cannot be reopened, give the new descriptor to native code without pooling it
+            Log.w(TAG, "Unable to reuse file descriptor for " + uri, e);
+            return pfd.detachFd();
+        }
+        synchronized (this) {
+            mPool.put(key, pfd);
+        }
+        return copy.detachFd();
+    }
+
+    /**
+     * Remove all pooled descriptors of a file, used when the file is opened for writing
+     * @param uri the file
+     */
+    synchronized void invalidate(@NonNull Uri uri) {
+        mPool.remove(getKey(uri, READ_MODE));
+    }
+
+    /**
+     * Close all pooled descriptors
+     */
+    synchronized void clear() {
+        mPool.evictAll();
+    }
+
+    @NonNull
+    private static ParcelFileDescriptor reopen(@NonNull ParcelFileDescriptor pfd)
+            throws IOException {
+        // Opening the descriptor again through proc gives native code its own file offset,
+        // a plain dup() shares the offset with every other copy handed out from this pool
+        return ParcelFileDescriptor.open(new File("/proc/self/fd/" + pfd.getFd()),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @NonNull
+    private static String getKey(@NonNull Uri uri, int mode) {
+        return mode + ":" + uri;
+    }
+}
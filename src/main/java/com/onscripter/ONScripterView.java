@@ -98,6 +98,12 @@ public class ONScripterView extends DemoGLSurfaceView {
     private native void nativeSetSentenceFontScale(double scale);
     private native void nativeLoadSaveFile(int number);
     private native int nativeGetDialogFontSize();
+    private native int nativeGetImageCacheHitCount();
+    private native int nativeGetImageCacheMissCount();
+    private native int[] nativeGetLogStats();
+    private native int[] nativeGetRefreshStats();
+    private native int nativeGetFastForwardLinesPerSecond();
+    private native void nativeSkipToNextChoice(boolean stopAtUnread);
 
     /**
      * Constructor with parameters
@@ -106,7 +112,7 @@ public class ONScripterView extends DemoGLSurfaceView {
     public ONScripterView(@NonNull Builder builder) {
         super(builder);
 
-        mAudioThread = new AudioThread();
+        mAudioThread = new AudioThread(builder.context, builder.useLowLatencyAudio);
         mMainHandler = new Handler(Looper.getMainLooper());
         sHandler = new UpdateHandler(this);
 
@@ -119,6 +125,9 @@ public class ONScripterView extends DemoGLSurfaceView {
     private static UpdateHandler sHandler;
 
     private ONScripterEventListener mListener;
+    // Created lazily because native code calls back before this view is constructed
+    private DocumentTreeIndex mTreeIndex;
+    private FileDescriptorPool mFdPool;
     private boolean mGameReady;
     boolean mIsVideoPlaying = false;
     boolean mHasExit = false;
@@ -127,6 +136,7 @@ public class ONScripterView extends DemoGLSurfaceView {
     public void exitApp() {
         mHasExit = true;
         super.exitApp();
+        closeFdPool();
     }
 
     @Override
@@ -177,6 +187,63 @@ public class ONScripterView extends DemoGLSurfaceView {
         return !mHasExit ? nativeGetDialogFontSize() : 0;
     }
 
+    /**
+     * Get the number of images that were loaded from the decoded image cache
+     * @return hit count, 0 if the cache is disabled
+     */
+    public int getImageCacheHitCount() {
+        return !mHasExit ? nativeGetImageCacheHitCount() : 0;
+    }
+
+    /**
+     * Get the number of images that had to be read and decoded because they were not cached
+     * @return miss count, 0 if the cache is disabled
+     */
+    public int getImageCacheMissCount() {
+        return !mHasExit ? nativeGetImageCacheMissCount() : 0;
+    }
+
+    /**
+     * Get the size and the lookup cost of the label and file logs (the read history)
+     * @return number of logged names, number of lookups and number of name comparisons
+     *         those lookups needed, or null if the game has exited
+     */
+    public int[] getLogStats() {
+        return !mHasExit ? nativeGetLogStats() : null;
+    }
+
+    /**
+     * Get how many pixels are composited and sent to the screen for each displayed frame
+     * @return number of frames, pixels refreshed for the last frame and the average pixels
+     *         per frame, or null if the game has exited
+     */
+    public int[] getRefreshStats() {
+        return !mHasExit ? nativeGetRefreshStats() : null;
+    }
+
+    /**
+     * Run the game without drawing it or waiting on timers until the next selection or button
+     * wait. This turns skip mode on, so {@link ONScripterEventListener#skipStateChanged(boolean)}
+     * is called with true now and with false when the game stops. Nothing happens if a
+     * selection is already shown.
+     * @param stopAtUnread also stop at the first line not read before, as kept by the game's
+     *                     kidoku data or label log
+     */
+    public void skipToNextChoice(boolean stopAtUnread) {
+        if (!mHasExit) {
+            nativeSkipToNextChoice(stopAtUnread);
+        }
+    }
+
+    /**
+     * Get how fast the script runs while skipping without showing the screen, see
+     * {@link Builder#useFastForwardSkip()} and {@link #skipToNextChoice(boolean)}
+     * @return script lines per second of the current or last skip, 0 if none yet
+     */
+    public int getFastForwardLinesPerSecond() {
+        return !mHasExit ? nativeGetFastForwardLinesPerSecond() : 0;
+    }
+
     /**
      * Get the render width of the game. This value is not the size of this view and is set in the
      * script
@@ -274,6 +341,7 @@ public class ONScripterView extends DemoGLSurfaceView {
     @Override
     protected void onFinish() {
         super.onFinish();
+        closeFdPool();
         mMainHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -298,7 +366,7 @@ public class ONScripterView extends DemoGLSurfaceView {
                     // File does not exist
                     return -1;
                 }
-                pfd = resolver.openFileDescriptor(uri, "r");
+                return getFdPool().openReadOnly(resolver, uri);
             } else {    // Write Mode
                 if (!exists) {
                     // File does not exist
@@ -307,7 +375,14 @@ public class ONScripterView extends DemoGLSurfaceView {
                         return -1;
                     }
                 }
+                getFdPool().invalidate(uri);
                 pfd = resolver.openFileDescriptor(uri, "rw");
+
+                // Contents will change so the cached last modified time is no longer valid
+                final DocumentTreeIndex index = getTreeIndex();
+                if (index != null && isIndexed(index, uri)) {
+                    index.invalidateLastModified(DocumentsContract.getDocumentId(uri));
+                }
             }
 
             if (pfd == null) {
@@ -336,13 +411,31 @@ public class ONScripterView extends DemoGLSurfaceView {
             return new File(Objects.requireNonNull(uri.getPath())).lastModified();
         }
 
+        // Try to get the date last modified from the index before querying
+        DocumentTreeIndex.Entry entry = null;
+        final DocumentTreeIndex index = getTreeIndex();
+        if (index != null && isIndexed(index, uri)) {
+            entry = index.find(DocumentsContract.getDocumentId(uri));
+            if (entry == null) {
+                return -1;
+            }
+            final long lastModified = index.getLastModified(entry);
+            if (lastModified != DocumentTreeIndex.UNKNOWN_LAST_MODIFIED) {
+                return lastModified;
+            }
+        }
+
         // Use content resolver to get the date last modified and return it
         final String[] proj = new String[] { DocumentsContract.Document.COLUMN_LAST_MODIFIED };
         try (final Cursor c = resolver.query(uri, proj,null, null, null)) {
             if (c != null) {
                 if (c.moveToNext()) {
-                    return c.getLong(c.getColumnIndex(
+                    final long lastModified = c.getLong(c.getColumnIndex(
                             DocumentsContract.Document.COLUMN_LAST_MODIFIED));
+                    if (entry != null) {
+                        index.setLastModified(entry, lastModified);
+                    }
+                    return lastModified;
                 }
             } else {
                 Log.e(TAG, "Failed to resolve self, path: " + uri);
@@ -361,8 +454,9 @@ public class ONScripterView extends DemoGLSurfaceView {
             File file = new File(DocumentsContract.getDocumentId(uri));
             Uri parentUri = DocumentsContract.buildDocumentUriUsingTree(uri, file.getParent());
             try {
-                DocumentsContract.createDocument(getContext().getContentResolver(), parentUri,
-                        DocumentsContract.Document.MIME_TYPE_DIR, file.getName());
+                addToTreeIndex(parentUri, file.getName(), DocumentsContract.createDocument(
+                        getContext().getContentResolver(), parentUri,
+                        DocumentsContract.Document.MIME_TYPE_DIR, file.getName()), true);
             } catch (FileNotFoundException ignored) {
                 return -1;
             }
@@ -385,16 +479,19 @@ public class ONScripterView extends DemoGLSurfaceView {
                     Uri parentParentUri = DocumentsContract.buildDocumentUriUsingTree(uri,
                             parentParentPath);
                     try {
-                        DocumentsContract.createDocument(getContext().getContentResolver(),
-                                parentParentUri, DocumentsContract.Document.MIME_TYPE_DIR,
-                                file.getParentFile().getName());
+                        addToTreeIndex(parentParentUri, file.getParentFile().getName(),
+                                DocumentsContract.createDocument(
+                                        getContext().getContentResolver(), parentParentUri,
+                                        DocumentsContract.Document.MIME_TYPE_DIR,
+                                        file.getParentFile().getName()), true);
                     } catch (FileNotFoundException ignored) {
                         return false;
                     }
                 }
             }
-            DocumentsContract.createDocument(getContext().getContentResolver(), parentUri,
-                    "application/octet-stream", file.getName());
+            addToTreeIndex(parentUri, file.getName(), DocumentsContract.createDocument(
+                    getContext().getContentResolver(), parentUri, "application/octet-stream",
+                    file.getName()), false);
             return true;
         } else {
             return new File(Objects.requireNonNull(uri.getPath())).createNewFile();
@@ -415,9 +512,62 @@ public class ONScripterView extends DemoGLSurfaceView {
 
         // Relative path from game path, build tree Uri above lollipop otherwise file uri
         path = getGamePath() + File.separator + path;
-        return getTreeUri() != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
-                ? DocumentsContract.buildDocumentUriUsingTree(getTreeUri(), path)
-                : Uri.fromFile(new File(path));
+        final DocumentTreeIndex index = getTreeIndex();
+        if (index != null) {
+            // Use the document id of the existing file in case the case of the name differs
+            if (index.covers(path)) {
+                final DocumentTreeIndex.Entry entry = index.find(path);
+                if (entry != null) {
+                    path = entry.documentId;
+                }
+            }
+            return DocumentsContract.buildDocumentUriUsingTree(getTreeUri(), path);
+        }
+        return Uri.fromFile(new File(path));
+    }
+
+    @NonNull
+    private synchronized FileDescriptorPool getFdPool() {
+        if (mFdPool == null) {
+            mFdPool = new FileDescriptorPool(FileDescriptorPool.DEFAULT_MAX_SIZE);
+        }
+        return mFdPool;
+    }
+
+    private synchronized void closeFdPool() {
+        if (mFdPool != null) {
+            mFdPool.clear();
+        }
+    }
+
+    @Nullable
+    private synchronized DocumentTreeIndex getTreeIndex() {
+        if (mTreeIndex == null && getTreeUri() != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mTreeIndex = new DocumentTreeIndex(getContext().getContentResolver(), getTreeUri(),
+                    getGamePath());
+        }
+        return mTreeIndex;
+    }
+
+    private static boolean isIndexed(@NonNull DocumentTreeIndex index, @NonNull Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            return false;
+        }
+        try {
+            return index.covers(DocumentsContract.getDocumentId(uri));
+        } catch (IllegalArgumentException ignored) {
+            // Not a document uri
+            return false;
+        }
+    }
+
+    private void addToTreeIndex(@NonNull Uri parentUri, @NonNull String name,
+                                @Nullable Uri documentUri, boolean isDirectory) {
+        final DocumentTreeIndex index = getTreeIndex();
+        if (index != null && documentUri != null) {
+            index.add(DocumentsContract.getDocumentId(parentUri), name, documentUri, isDirectory);
+        }
     }
 
     private boolean exists(@NonNull Uri uri) {
@@ -425,6 +575,10 @@ public class ONScripterView extends DemoGLSurfaceView {
                 || ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
             return new File(Objects.requireNonNull(uri.getPath())).exists();
         } else if (getTreeUri() != null) {
+            final DocumentTreeIndex index = getTreeIndex();
+            if (index != null && isIndexed(index, uri)) {
+                return index.find(DocumentsContract.getDocumentId(uri)) != null;
+            }
             try (final Cursor c = getContext().getContentResolver().query(uri, null,
                     null, null, null)) {
                 if (c != null) {
@@ -476,8 +630,15 @@ public class ONScripterView extends DemoGLSurfaceView {
         @Nullable
         String screenshotPath;
         boolean useHQAudio;
+        boolean useLowLatencyAudio;
         boolean renderOutline;
         boolean readParentAssets;
+        boolean useMappedArchives;
+        boolean useArchiveIndex;
+        int imageCacheSize;
+        int imagePrefetchLines;
+        int glyphPrewarmCount;
+        boolean useFastForwardSkip;
 
         public Builder(@NonNull Context context, @NonNull Uri gameUri) {
             this.context = context;
@@ -499,6 +660,18 @@ public class ONScripterView extends DemoGLSurfaceView {
             return this;
         }
 
+        /**
+         * Play at the sample rate of the device in its low latency output mode and mix a few
+         * bursts at a time, so sound effects start right after a touch. The output buffer grows
+         * when the device reports underruns. Needs Android 8.0, ignored before.
+         * Overrides {@link #useHQAudio()}.
+         * @return this builder
+         */
+        public Builder useLowLatencyAudio() {
+            useLowLatencyAudio = true;
+            return this;
+        }
+
         public Builder useRenderOutline() {
             renderOutline = true;
             return this;
@@ -509,6 +682,70 @@ public class ONScripterView extends DemoGLSurfaceView {
             return this;
         }
 
+        /**
+         * Memory map the game archives so uncompressed images and sounds are decoded directly
+         * from the archive instead of being copied into memory first
+         * @return this builder
+         */
+        public Builder useMappedArchives() {
+            useMappedArchives = true;
+            return this;
+        }
+
+        /**
+         * Save the file list of each game archive in the app cache folder so the next start
+         * reads it from there instead of parsing the archive headers again
+         * @return this builder
+         */
+        public Builder useArchiveIndex() {
+            useArchiveIndex = true;
+            return this;
+        }
+
+        /**
+         * Keep decoded images in memory so images shown again are not read and decoded again.
+         * The least recently used images are dropped when the cache grows over this size.
+         * @param bytes memory used by the cache, 0 disables it (default)
+         * @return this builder
+         */
+        public Builder setImageCacheSize(int bytes) {
+            imageCacheSize = bytes;
+            return this;
+        }
+
+        /**
+         * Decode the images used by the next lines of the script on background threads so they
+         * are ready when the script shows them. Needs {@link #setImageCacheSize(int)}.
+         * @param lines number of script lines to look ahead, 0 disables it (default)
+         * @return this builder
+         */
+        public Builder setImagePrefetchLines(int lines) {
+            imagePrefetchLines = lines;
+            return this;
+        }
+
+        /**
+         * Render the characters used most often in the script on a background thread whenever
+         * a font size is opened, including after {@link #setFontScaling(double)}, so the first
+         * page in that size does not stutter
+         * @param glyphs number of the most frequent characters to render, 0 disables it (default)
+         * @return this builder
+         */
+        public Builder setGlyphPrewarmCount(int glyphs) {
+            glyphPrewarmCount = glyphs;
+            return this;
+        }
+
+        /**
+         * Skip without showing the frames nobody sees: while skip mode is on, effects end at once
+         * and nothing is sent to the screen until skipping stops or the game waits for input
+         * @return this builder
+         */
+        public Builder useFastForwardSkip() {
+            useFastForwardSkip = true;
+            return this;
+        }
+
         public ONScripterView create() {
             return new ONScripterView(this);
         }